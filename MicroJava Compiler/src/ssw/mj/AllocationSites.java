@@ -0,0 +1,113 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Allocation-site profile (java ssw.mj.Run fileName -allocs)
+// ===========================================================================
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Counts the heap blocks and bytes allocated by every <code>new</code> and
+ * <code>newarray</code> of a program, see {@link Interpreter#alloc}. If the
+ * heap is garbage collected, the bytes every site has live after the latest
+ * collection are recorded as well: after a heap overflow these are the
+ * blocks that filled the heap, while the allocated bytes are dominated by
+ * short-lived garbage. The report ranks the sites by live and then by
+ * allocated bytes and names them after their method and, if the object file
+ * has a line table, their source line.
+ */
+final class AllocationSites {
+
+    private final Interpreter vm;
+    private final long[] count, bytes; // per code address
+    private long compiledCount, compiledBytes; // by compiled code, which has no code addresses
+    private long[] live; // per code address: bytes live after the latest collection, null before
+    private int collections;
+
+    AllocationSites(Interpreter vm) {
+        this.vm = vm;
+        count = new long[vm.code.length];
+        bytes = new long[vm.code.length];
+    }
+
+    /**
+     * Record a block of size bytes allocated by the instruction at pc, -1 for
+     * compiled code.
+     */
+    void record(int pc, int size) {
+        long b = Collector.words(size) * 4L;
+        if (pc < 0) {
+            compiledCount++;
+            compiledBytes += b;
+        } else {
+            count[pc]++;
+            bytes[pc] += b;
+        }
+    }
+
+    /**
+     * The collector has compacted the heap to the live blocks below free.
+     */
+    void collected(Collector collector, int free) {
+        if (live == null) {
+            live = new long[count.length];
+        } else {
+            Arrays.fill(live, 0);
+        }
+        collector.liveSites(free, live);
+        collections++;
+    }
+
+    void print(PrintStream out, int top) {
+        long objects = compiledCount, total = compiledBytes;
+        Integer[] sites = new Integer[count.length];
+        int n = 0;
+        for (int pc = 0; pc < count.length; pc++) {
+            if (count[pc] > 0) {
+                objects += count[pc];
+                total += bytes[pc];
+                sites[n++] = pc;
+            }
+        }
+        long[] live = this.live != null ? this.live : new long[count.length];
+        long liveTotal = 0;
+        for (long b : live) {
+            liveTotal += b;
+        }
+        Arrays.sort(sites, 0, n, (a, b) -> live[a] != live[b] ? Long.compare(live[b], live[a])
+                : Long.compare(bytes[b], bytes[a]));
+        out.println();
+        out.println("-- " + objects + " heap blocks with " + total + " bytes allocated");
+        if (collections > 0) {
+            out.println("-- " + liveTotal + " bytes live after the last of " + collections + " collections");
+        }
+        out.println("-- allocation sites by live and allocated bytes:");
+        out.printf("%12s %7s %12s %7s %12s  %s%n", "live", "", "bytes", "", "blocks", "site");
+        for (int i = 0; i < Math.min(n, top); i++) {
+            int pc = sites[i];
+            out.printf("%12d %6.2f%% %12d %6.2f%% %12d  %s%n", live[pc], percent(live[pc], liveTotal), bytes[pc],
+                    percent(bytes[pc], total), count[pc], site(pc));
+        }
+        if (compiledCount > 0) {
+            out.printf("%12s %7s %12d %6.2f%% %12d  compiled code%n", "", "", compiledBytes,
+                    percent(compiledBytes, total), compiledCount);
+        }
+    }
+
+    private String site(int pc) {
+        String s = pc + " " + OpCode.get(vm.code[pc]).cleanName();
+        if (vm.analysis != null && vm.analysis.methodAt(pc) != null) {
+            int entry = vm.analysis.methodAt(pc).entry;
+            s += " in " + vm.symbols.name(entry) + "+" + (pc - entry);
+        }
+        int line = vm.lines.lineAt(pc);
+        return line > 0 ? s + ", line " + line : s;
+    }
+
+    private static double percent(long n, long total) {
+        return total == 0 ? 0 : 100.0 * n / total;
+    }
+}
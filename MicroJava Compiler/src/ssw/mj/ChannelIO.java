@@ -0,0 +1,127 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Block-oriented input (java ssw.mj.Run fileName -input inFile)
+// ===========================================================================
+package ssw.mj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Reads the input of a program in blocks from a blocking channel, or from
+ * an input file mapped into memory, instead of a byte at a time. Numbers are
+ * parsed straight from the buffer, which is refilled only when it is used
+ * up. Output goes to <code>System.out</code> like that of
+ * {@link Interpreter#ConsoleIO}, which reads standard input this way.
+ */
+public class ChannelIO implements Interpreter.IO, Closeable {
+
+    private static final int blockSize = 1 << 16;
+
+    private final ReadableByteChannel channel; // null if the whole input is in the buffer
+    private final ByteBuffer in; // unread input between position and limit
+
+    /**
+     * Input read from channel.
+     */
+    public ChannelIO(ReadableByteChannel channel) {
+        this.channel = channel;
+        in = ByteBuffer.allocateDirect(blockSize);
+        in.limit(0);
+    }
+
+    private ChannelIO(ByteBuffer mapped) {
+        channel = null;
+        in = mapped;
+    }
+
+    /**
+     * Input from file, which is mapped into memory if it fits into a buffer
+     * and read in blocks otherwise.
+     */
+    public static ChannelIO open(Path file) throws IOException {
+        FileChannel ch = FileChannel.open(file);
+        if (ch.size() > Integer.MAX_VALUE) {
+            return new ChannelIO(ch);
+        }
+        try (ch) {
+            return new ChannelIO(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    /**
+     * Refill the buffer, false at the end of the input.
+     */
+    private boolean fill() {
+        if (channel == null) {
+            return false;
+        }
+        in.clear();
+        try {
+            int n;
+            do {
+                n = channel.read(in);
+            } while (n == 0);
+        } catch (IOException e) {
+            in.clear(); // treated as the end of the input
+        }
+        in.flip();
+        return in.hasRemaining();
+    }
+
+    @Override
+    public char read() {
+        if (!in.hasRemaining() && !fill()) {
+            return 0;
+        }
+        return (char) (in.get() & 0xff);
+    }
+
+    @Override
+    public int readInt() {
+        int prev = ' ';
+        int b = read();
+        while (b < '0' || b > '9') {
+            prev = b;
+            b = read();
+        }
+        int val = b - '0';
+        for (; ; ) {
+            int pos = in.position(), limit = in.limit();
+            while (pos < limit) {
+                b = in.get(pos++);
+                if (b < '0' || b > '9') { // the char behind the number is consumed, see Interpreter.IO
+                    in.position(pos);
+                    return prev == '-' ? -val : val;
+                }
+                val = 10 * val + b - '0';
+            }
+            in.position(pos);
+            if (!fill()) {
+                return prev == '-' ? -val : val;
+            }
+        }
+    }
+
+    @Override
+    public void write(char c) {
+        System.out.print(c);
+    }
+
+    @Override
+    public void write(char[] buf, int off, int len) {
+        System.out.print(String.valueOf(buf, off, len));
+        System.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,564 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Load-time verification: method structure and stack depths of a code array
+// ===========================================================================
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds the methods of a code array that are reachable from main (every
+ * method starts with <code>enter</code>) and computes the expression stack
+ * depth before every reachable instruction, relative to the stack of the
+ * method's caller.
+ * Depths must agree wherever control flow merges, which holds for all code
+ * produced by the MicroJava compiler.
+ * <p>
+ * Code that passes the analysis has valid jump targets, matching
+ * <code>enter</code>/<code>exit</code>/<code>return</code> structure, local
+ * variables within the frame, global variables within the data and no
+ * expression stack underflow. Methods whose frame or expression stack alone
+ * exceeds the interpreter's stacks are rejected, and so is a program whose
+ * call graph has no recursion but whose deepest call chain does not fit. For
+ * such a program the worst-case stack usage is known exactly, so that no
+ * overflow can happen at run time.
+ */
+final class CodeAnalysis {
+
+    /**
+     * Analysis result for one method.
+     */
+    static final class Method {
+        /**
+         * Address of the <code>enter</code> instruction.
+         */
+        final int entry;
+        /**
+         * Address following the last instruction of the method.
+         */
+        final int end;
+        final int psize, lsize;
+        /**
+         * True if <code>return</code> leaves a value on the expression stack.
+         */
+        boolean returnsValue;
+        /**
+         * True if returnsValue has been determined, which after the analysis
+         * is the case for all methods that can return at all.
+         */
+        boolean kindKnown;
+        /**
+         * Maximum expression stack depth within the method.
+         */
+        int maxStack;
+        /**
+         * Expression stack words used by the method and its callees above
+         * the method's base, and method stack words for the frames of the
+         * method and its callees; -1 until computed.
+         */
+        int exprBound = -1, frameBound = -1;
+        private boolean visiting; // on the current path of the bound computation
+        /**
+         * Expression stack depth before the instruction at
+         * <code>entry + i</code>, -1 if the instruction is unreachable or
+         * <code>entry + i</code> is not the start of an instruction.
+         */
+        int[] depth;
+
+        Method(int entry, int end, int psize, int lsize) {
+            this.entry = entry;
+            this.end = end;
+            this.psize = psize;
+            this.lsize = lsize;
+        }
+
+        int depthAt(int pc) {
+            return depth[pc - entry];
+        }
+    }
+
+    final byte[] code;
+    final int startPC;
+    private final int dataSize;
+
+    /**
+     * Methods in address order.
+     */
+    final Method[] methods;
+
+    /**
+     * Expression stack and method stack words the program needs in the worst
+     * case, -1 if the program is recursive, i.e. has no static bound.
+     */
+    int maxExprStack = -1, maxMethodStack = -1;
+
+    private CodeAnalysis(byte[] code, int startPC, int dataSize, Method[] methods) {
+        this.code = code;
+        this.startPC = startPC;
+        this.dataSize = dataSize;
+        this.methods = methods;
+    }
+
+    /**
+     * Method whose code contains pc, or null.
+     */
+    Method methodAt(int pc) {
+        int lo = 0, hi = methods.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Method m = methods[mid];
+            if (pc < m.entry) {
+                hi = mid - 1;
+            } else if (pc >= m.end) {
+                lo = mid + 1;
+            } else {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Method starting at pc, or null.
+     */
+    Method methodEntry(int pc) {
+        Method m = methodAt(pc);
+        return m != null && m.entry == pc ? m : null;
+    }
+
+    static CodeAnalysis analyze(byte[] code, int startPC, int dataSize, Interpreter.Limits limits)
+            throws FormatException {
+        // Decode the instructions reachable from main, following jumps and
+        // calls. Bytes behind the code (e.g. the unused part of the code
+        // buffer) are never looked at.
+        int[] owner = new int[code.length]; // method entry for every decoded byte
+        Arrays.fill(owner, -1);
+        boolean[] start = new boolean[code.length + 1];
+        List<Method> found = new ArrayList<>();
+        List<Integer> entries = new ArrayList<>();
+        entries.add(startPC);
+        int[] work = new int[code.length + 1];
+        while (!entries.isEmpty()) {
+            int entry = entries.remove(entries.size() - 1);
+            boolean inside = entry >= 0 && entry < code.length;
+            if (inside && owner[entry] == entry) {
+                continue; // already known
+            }
+            if (!inside || owner[entry] >= 0 || code[entry] != OpCode.enter.code()) {
+                throw new FormatException("call target " + entry + " is no method entry");
+            }
+            int end = entry;
+            int top = 0;
+            work[top++] = entry;
+            while (top > 0) {
+                int pc = work[--top];
+                if (pc == code.length) {
+                    throw new FormatException("control falls off the end of the code");
+                }
+                if (start[pc] && owner[pc] == entry) {
+                    continue;
+                }
+                OpCode op = OpCode.get(code[pc]);
+                if (op == null) {
+                    throw new FormatException("wrong opcode " + code[pc] + " at " + pc);
+                }
+                int next = pc + 1 + op.getOpsSize();
+                if (next > code.length) {
+                    throw new FormatException("truncated instruction at " + pc);
+                }
+                for (int b = pc; b < next; b++) {
+                    if (owner[b] >= 0) {
+                        throw new FormatException("jump into another instruction or method at " + pc);
+                    }
+                    owner[b] = entry;
+                }
+                start[pc] = true;
+                end = Math.max(end, next);
+                switch (op) {
+                    case enter:
+                        if (pc != entry) {
+                            throw new FormatException("enter inside method at " + pc);
+                        }
+                        work[top++] = next;
+                        break;
+                    case jmp:
+                        work[top++] = target(code, pc);
+                        break;
+                    case jeq:
+                    case jne:
+                    case jlt:
+                    case jle:
+                    case jgt:
+                    case jge:
+                        work[top++] = target(code, pc);
+                        work[top++] = next;
+                        break;
+                    case call:
+                        entries.add(pc + get2(code, pc + 1));
+                        work[top++] = next;
+                        break;
+                    case return_:
+                    case trap:
+                        break;
+                    default:
+                        work[top++] = next;
+                }
+            }
+            int psize = code[entry + 1];
+            int lsize = code[entry + 2];
+            if (psize < 0 || lsize < psize) {
+                throw new FormatException("invalid frame size at " + entry);
+            }
+            found.add(new Method(entry, end, psize, lsize));
+        }
+        found.sort((x, y) -> Integer.compare(x.entry, y.entry));
+        Method[] methods = found.toArray(new Method[0]);
+        for (int i = 1; i < methods.length; i++) {
+            if (methods[i - 1].end > methods[i].entry) {
+                throw new FormatException("method at " + methods[i - 1].entry + " overlaps method at "
+                        + methods[i].entry);
+            }
+        }
+        CodeAnalysis a = new CodeAnalysis(code, startPC, dataSize, methods);
+        Method main = a.methodEntry(startPC);
+        if (main == null) {
+            throw new FormatException("startPC is no method entry");
+        }
+        if (main.psize != 0) {
+            throw new FormatException("main method must not have parameters");
+        }
+
+        // Stack effects of calls depend on whether the callee returns a
+        // value. Find the return kinds first, following only paths whose calls
+        // go to methods with a known kind, until nothing changes any more.
+        // Methods that never reach a return this way cannot return at all
+        // (e.g. functions ending in the trap for a missing return).
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Method m : methods) {
+                if (!m.kindKnown) {
+                    a.analyze(m, start, true);
+                    changed |= m.kindKnown;
+                }
+            }
+        }
+        for (Method m : methods) {
+            a.analyze(m, start, false);
+            if (m.maxStack > limits.exprStack) {
+                throw new FormatException("method at " + m.entry + " needs " + m.maxStack
+                        + " expression stack words, only " + limits.exprStack + " available");
+            }
+            if (2 + m.lsize > limits.methodStack) {
+                throw new FormatException("method at " + m.entry + " needs " + (2 + m.lsize)
+                        + " method stack words, only " + limits.methodStack + " available");
+            }
+        }
+
+        if (a.bound(main)) {
+            a.maxExprStack = main.exprBound;
+            a.maxMethodStack = main.frameBound - 1; // main has no return address
+            if (a.maxExprStack > limits.exprStack) {
+                throw new FormatException("calls from main need " + a.maxExprStack
+                        + " expression stack words, only " + limits.exprStack + " available");
+            }
+            if (a.maxMethodStack > limits.methodStack) {
+                throw new FormatException("calls from main need " + a.maxMethodStack
+                        + " method stack words, only " + limits.methodStack + " available");
+            }
+        }
+        return a;
+    }
+
+    /**
+     * Compute the stack bounds of m and its callees. Returns false if m can
+     * call itself, directly or indirectly.
+     */
+    private boolean bound(Method m) {
+        if (m.exprBound >= 0) {
+            return true;
+        }
+        if (m.visiting) {
+            return false;
+        }
+        m.visiting = true;
+        int expr = m.maxStack;
+        int frames = 0;
+        for (int pc = m.entry; pc < m.end; pc++) {
+            if (m.depthAt(pc) >= 0 && code[pc] == OpCode.call.code()) {
+                Method callee = methodEntry(pc + get2(pc + 1));
+                if (!bound(callee)) {
+                    return false;
+                }
+                // the callee's stack starts where its arguments were
+                expr = Math.max(expr, m.depthAt(pc) - callee.psize + callee.exprBound);
+                frames = Math.max(frames, callee.frameBound);
+            }
+        }
+        m.visiting = false;
+        m.exprBound = expr;
+        m.frameBound = 2 + m.lsize + frames; // return address, dynamic link, locals
+        return true;
+    }
+
+    /**
+     * Data flow analysis of the expression stack depth in one method. Paths are
+     * cut at calls to methods whose return kind is not (yet) known. In probe
+     * mode the analysis only determines the method's own return kind.
+     */
+    private void analyze(Method m, boolean[] start, boolean probe) throws FormatException {
+        int[] depth = new int[m.end - m.entry];
+        Arrays.fill(depth, -1);
+        int[] work = new int[depth.length];
+        int top = 0;
+        int first = m.entry + 3; // behind enter, the arguments are popped
+        if (first >= m.end) {
+            throw new FormatException("empty method at " + m.entry);
+        }
+        depth[first - m.entry] = 0;
+        work[top++] = first;
+        int max = 0;
+        int returnDepth = -1;
+        while (top > 0) {
+            int pc = work[--top];
+            int d = depth[pc - m.entry];
+            OpCode op = OpCode.get(code[pc]);
+            int next = pc + 1 + op.getOpsSize();
+            int pops, pushes;
+            int target = 0;
+            boolean jump = false;
+            boolean fallThrough = true;
+            checkOperand(m, op, pc);
+            switch (op) {
+                case load:
+                case load_0:
+                case load_1:
+                case load_2:
+                case load_3:
+                case getstatic:
+                case const_0:
+                case const_1:
+                case const_2:
+                case const_3:
+                case const_4:
+                case const_5:
+                case const_m1:
+                case const_:
+                case new_:
+                case read:
+                case bread:
+                    pops = 0;
+                    pushes = 1;
+                    break;
+                case store:
+                case store_0:
+                case store_1:
+                case store_2:
+                case store_3:
+                case putstatic:
+                case pop:
+                    pops = 1;
+                    pushes = 0;
+                    break;
+                case getfield:
+                case neg:
+                case newarray:
+                case arraylength:
+                    pops = 1;
+                    pushes = 1;
+                    break;
+                case putfield:
+                case print:
+                case bprint:
+                    pops = 2;
+                    pushes = 0;
+                    break;
+                case add:
+                case sub:
+                case mul:
+                case div:
+                case rem:
+                case shl:
+                case shr:
+                case aload:
+                case baload:
+                    pops = 2;
+                    pushes = 1;
+                    break;
+                case astore:
+                case bastore:
+                    pops = 3;
+                    pushes = 0;
+                    break;
+                case dup:
+                    pops = 1;
+                    pushes = 2;
+                    break;
+                case dup2:
+                    pops = 2;
+                    pushes = 4;
+                    break;
+                case inc:
+                case nop:
+                    pops = 0;
+                    pushes = 0;
+                    break;
+                case exit:
+                    if (next >= m.end || code[next] != OpCode.return_.code()) {
+                        throw new FormatException("exit not followed by return at " + pc);
+                    }
+                    pops = 0;
+                    pushes = 0;
+                    break;
+                case jmp:
+                    pops = 0;
+                    pushes = 0;
+                    target = pc + get2(pc + 1);
+                    jump = true;
+                    fallThrough = false;
+                    break;
+                case jeq:
+                case jne:
+                case jlt:
+                case jle:
+                case jgt:
+                case jge:
+                    pops = 2;
+                    pushes = 0;
+                    target = pc + get2(pc + 1);
+                    jump = true;
+                    break;
+                case call:
+                    Method callee = methodEntry(pc + get2(pc + 1));
+                    if (callee == null) {
+                        throw new FormatException("call target is no method entry at " + pc);
+                    }
+                    pops = callee.psize;
+                    pushes = callee.returnsValue ? 1 : 0;
+                    fallThrough = callee.kindKnown;
+                    break;
+                case return_:
+                    if (pc == first || code[pc - 1] != OpCode.exit.code() || !start[pc - 1]) {
+                        throw new FormatException("return without exit at " + pc);
+                    }
+                    if (d > 1 || (returnDepth >= 0 && d != returnDepth)
+                            || (!probe && d != (m.returnsValue ? 1 : 0))) {
+                        throw new FormatException("inconsistent stack depth at return at " + pc);
+                    }
+                    returnDepth = d;
+                    pops = d;
+                    pushes = 0;
+                    fallThrough = false;
+                    break;
+                case trap:
+                    pops = 0;
+                    pushes = 0;
+                    fallThrough = false;
+                    break;
+                case enter:
+                    throw new FormatException("enter inside method at " + pc);
+                default:
+                    throw new FormatException("wrong opcode " + op + " at " + pc);
+            }
+            if (d < pops) {
+                throw new FormatException("expression stack underflow at " + pc);
+            }
+            int after = d - pops + pushes;
+            max = Math.max(max, Math.max(d, after));
+            if (fallThrough) {
+                if (next >= m.end) {
+                    throw new FormatException("control falls off the end of the method at " + pc);
+                }
+                top = merge(m, depth, work, top, next, after, pc);
+            }
+            if (jump) {
+                if (target < m.entry + 3 || target >= m.end || !start[target]) {
+                    throw new FormatException("invalid jump target " + target + " at " + pc);
+                }
+                top = merge(m, depth, work, top, target, after, pc);
+            }
+        }
+        if (probe) {
+            if (returnDepth >= 0) {
+                m.returnsValue = returnDepth == 1;
+                m.kindKnown = true;
+            }
+        } else {
+            m.depth = depth;
+            m.maxStack = max;
+        }
+    }
+
+    /**
+     * Local variable operands must lie in the frame of m, global ones in the
+     * data area.
+     */
+    private void checkOperand(Method m, OpCode op, int pc) throws FormatException {
+        int n;
+        switch (op) {
+            case load:
+            case store:
+            case inc:
+                n = code[pc + 1];
+                break;
+            case load_0:
+            case load_1:
+            case load_2:
+            case load_3:
+                n = op.code() - OpCode.load_0.code();
+                break;
+            case store_0:
+            case store_1:
+            case store_2:
+            case store_3:
+                n = op.code() - OpCode.store_0.code();
+                break;
+            case getstatic:
+            case putstatic:
+                n = get2(pc + 1);
+                if (n < 0 || n >= dataSize) {
+                    throw new FormatException("global variable " + n + " outside the data at " + pc);
+                }
+                return;
+            default:
+                return;
+        }
+        if (n < 0 || n >= m.lsize) {
+            throw new FormatException("local variable " + n + " outside the frame at " + pc);
+        }
+    }
+
+    private static int merge(Method m, int[] depth, int[] work, int top, int pc, int d, int from) throws FormatException {
+        int old = depth[pc - m.entry];
+        if (old < 0) {
+            depth[pc - m.entry] = d;
+            work[top++] = pc;
+        } else if (old != d) {
+            throw new FormatException("inconsistent stack depth at " + pc + " (from " + from + ")");
+        }
+        return top;
+    }
+
+    private int get2(int pc) {
+        return get2(code, pc);
+    }
+
+    private static int get2(byte[] code, int pc) {
+        return (short) ((code[pc] << 8) + (code[pc + 1] & 0xff));
+    }
+
+    /**
+     * Target of the jump at pc, which must lie within the code.
+     */
+    private static int target(byte[] code, int pc) throws FormatException {
+        int target = pc + get2(code, pc + 1);
+        if (target < 0 || target >= code.length) {
+            throw new FormatException("invalid jump target " + target + " at " + pc);
+        }
+        return target;
+    }
+}
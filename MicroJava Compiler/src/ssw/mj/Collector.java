@@ -0,0 +1,326 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Precise mark-compact garbage collection of the heap
+// ===========================================================================
+package ssw.mj;
+
+import java.util.Arrays;
+
+/**
+ * Sliding mark-compact collector for the heap of an interpreter. Every heap
+ * block is tagged with its type in a side table (see {@link RefMaps#CHARS}),
+ * so objects keep the layout of the bump allocator: class objects are their
+ * fields, arrays are a length word followed by the elements. Live blocks are
+ * moved towards address 1 in address order, so allocation stays a pointer
+ * bump.
+ * <p>
+ * Roots are the reference slots of the global data, of every frame on the
+ * method stack and of the live part of the expression stack, as described by
+ * the {@link RefMaps} at the allocating instruction and at the call
+ * instruction of every caller. The register machine keeps frames and stack
+ * values in registers (see {@link RegisterCode}), at the same slots.
+ */
+final class Collector {
+
+    private final Interpreter vm;
+    private final DecodedCode decoded;
+    private final RefMaps maps;
+    private int[] tags; // per heap word: tag of the block starting there, negative while marked, 0 inside blocks
+    private int[] forward; // per live block: its new address, built on the first collection after a growth
+    private int[] marking = new int[64]; // blocks whose fields still have to be marked
+    private int[] sites; // per heap word: allocating pc of the block starting there, null if not tracked
+
+    /**
+     * The frames of a stopped run, whose reference slots are marked or
+     * relocated.
+     */
+    private interface Frames {
+        void visit(boolean relocate);
+    }
+
+    Collector(Interpreter vm, DecodedCode decoded, RefMaps maps) {
+        this.vm = vm;
+        this.decoded = decoded;
+        this.maps = maps;
+        this.tags = new int[vm.heap.words()];
+    }
+
+    /**
+     * Heap words of a block of size bytes. Every block has at least one word
+     * to hold its tag.
+     */
+    static int words(int size) {
+        return Math.max(1, (size + 3) >> 2);
+    }
+
+    /**
+     * Follow the heap of the interpreter, which has grown.
+     */
+    void heapGrown() {
+        tags = Arrays.copyOf(tags, vm.heap.words());
+        if (sites != null) {
+            sites = Arrays.copyOf(sites, tags.length);
+        }
+        forward = null;
+    }
+
+    /**
+     * The interpreter has cleared the heap below free for another run.
+     */
+    void reset(int free) {
+        Arrays.fill(tags, 0, free, 0);
+        if (sites != null) {
+            Arrays.fill(sites, 0, free, 0);
+        }
+    }
+
+    /**
+     * Remember the allocating instruction of every block from now on, see
+     * {@link #liveSites}.
+     */
+    void trackSites() {
+        if (sites == null) {
+            sites = new int[tags.length];
+        }
+    }
+
+    /**
+     * Tag the block at adr allocated by the instruction at pc.
+     */
+    void tag(int adr, int pc) {
+        tags[adr] = maps.tags[pc];
+        if (sites != null) {
+            sites[adr] = pc;
+        }
+    }
+
+    /**
+     * Add the bytes of every block below free to bytes at its allocating
+     * instruction. Right after a collection these are the live blocks.
+     */
+    void liveSites(int free, long[] bytes) {
+        for (int adr = 1; adr < free; adr += size(adr)) {
+            bytes[sites[adr]] += size(adr) * 4L;
+        }
+    }
+
+    /**
+     * Collect garbage at the allocation at pc, executed in the frame fp of
+     * the method stack with the live part of the expression stack in
+     * stack[bottom..top). Return addresses on the method stack are indices
+     * into ops.
+     *
+     * @return the new start of the free heap area
+     */
+    int collect(int[] ops, int pc, int[] stack, int bottom, int top, int fp, int free) {
+        return collect(relocate -> interpreterFrames(ops, pc, stack, bottom, top, fp, relocate), free);
+    }
+
+    /**
+     * Collect garbage at the allocation at code address pc in the register
+     * machine, executed in the frame at regs[fp]. calls[0..csp) holds the
+     * return index into ops and the frame of every caller.
+     *
+     * @return the new start of the free heap area
+     */
+    int collect(int[] ops, int pc, int[] regs, int fp, int[] calls, int csp, int free) {
+        return collect(relocate -> registerFrames(ops, pc, regs, fp, calls, csp, relocate), free);
+    }
+
+    private int collect(Frames frames, int free) {
+        Heap heap = vm.heap;
+        if (forward == null) {
+            forward = new int[heap.words()];
+        }
+
+        visit(vm.data, maps.globalRefs, 0, false); // mark
+        frames.visit(false);
+
+        // compute new addresses, then update references while the old
+        // addresses are still valid
+        int to = 1;
+        for (int adr = 1; adr < free; adr += size(adr)) {
+            if (tags[adr] < 0) {
+                forward[adr] = to;
+                to += size(adr);
+            }
+        }
+        visit(vm.data, maps.globalRefs, 0, true);
+        frames.visit(true);
+        for (int adr = 1; adr < free; adr += size(adr)) {
+            if (tags[adr] < 0) {
+                relocateFields(adr);
+            }
+        }
+
+        // slide; a moved block never overlaps a block not visited yet
+        for (int adr = 1; adr < free; ) {
+            int tag = tags[adr];
+            int len = size(adr);
+            tags[adr] = 0;
+            if (tag < 0) {
+                heap.move(adr, forward[adr], len);
+                tags[forward[adr]] = -tag;
+                if (sites != null) {
+                    sites[forward[adr]] = sites[adr];
+                }
+            }
+            adr += len;
+        }
+        heap.clear(to, free);
+        return to;
+    }
+
+    /**
+     * Mark or relocate the roots in the frames of the interpreter.
+     */
+    private void interpreterFrames(int[] ops, int pc, int[] stack, int bottom, int top, int fp, boolean relocate) {
+        int[] local = vm.local;
+        for (; ; ) {
+            top -= maps.live[pc];
+            visit(stack, maps.stackRefs[pc], top, relocate);
+            visit(local, maps.frameRefs[pc], fp, relocate);
+            if (local[fp - 1] == 0) { // main
+                break;
+            }
+            pc = decoded.pcAt(ops, local[fp - 2]) - 3; // call of the current method
+            fp = local[fp - 1];
+        }
+        if (top != bottom) {
+            throw new IllegalStateException("expression stack does not match reference maps");
+        }
+    }
+
+    /**
+     * Mark or relocate the roots in the frames of the register machine. The
+     * stack values of a method follow its locals.
+     */
+    private void registerFrames(int[] ops, int pc, int[] regs, int fp, int[] calls, int csp, boolean relocate) {
+        for (; ; ) {
+            visit(regs, maps.stackRefs[pc], fp + vm.analysis.methodAt(pc).lsize, relocate);
+            visit(regs, maps.frameRefs[pc], fp, relocate);
+            if (csp == 0) { // main
+                break;
+            }
+            csp -= 4;
+            pc = ops[calls[csp] - 1]; // code address of the call
+            fp = calls[csp + 1];
+        }
+    }
+
+    private void visit(int[] words, int[] refs, int base, boolean relocate) {
+        for (int k = 0; k < refs.length; k += 2) {
+            int i = base + refs[k];
+            if (words[i] != 0) {
+                if (relocate) {
+                    words[i] = relocate(words[i], refs[k + 1]);
+                } else {
+                    mark(words[i], refs[k + 1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark the block referenced by ref of type reference type and everything
+     * reachable from it.
+     */
+    private void mark(int ref, int type) {
+        int top = 0;
+        push(start(ref, type), top++);
+        while (top > 0) {
+            int adr = marking[--top];
+            int tag = tags[adr];
+            if (tag < 0) {
+                continue;
+            }
+            tags[adr] = -tag;
+            if (tag == RefMaps.CHARS) {
+                continue;
+            }
+            int t = tag - RefMaps.FIRST_TYPE;
+            Heap heap = vm.heap;
+            if (maps.isArray[t]) {
+                int elem = maps.elemRef[t];
+                if (elem > 0) {
+                    for (int i = 1; i <= heap.get(adr); i++) {
+                        if (heap.get(adr + i) != 0) {
+                            push(start(heap.get(adr + i), elem), top++);
+                        }
+                    }
+                }
+            } else {
+                int[] refs = maps.fieldRefs[t];
+                for (int k = 0; k < refs.length; k += 2) {
+                    if (heap.get(adr + refs[k]) != 0) {
+                        push(start(heap.get(adr + refs[k]), refs[k + 1]), top++);
+                    }
+                }
+            }
+        }
+    }
+
+    private void push(int adr, int top) {
+        if (top == marking.length) {
+            marking = Arrays.copyOf(marking, 2 * marking.length);
+        }
+        marking[top] = adr;
+    }
+
+    /**
+     * Relocate the reference fields of the marked block at adr.
+     */
+    private void relocateFields(int adr) {
+        int tag = -tags[adr];
+        if (tag == RefMaps.CHARS) {
+            return;
+        }
+        int t = tag - RefMaps.FIRST_TYPE;
+        Heap heap = vm.heap;
+        if (maps.isArray[t]) {
+            int elem = maps.elemRef[t];
+            if (elem > 0) {
+                for (int i = 1; i <= heap.get(adr); i++) {
+                    if (heap.get(adr + i) != 0) {
+                        heap.set(adr + i, relocate(heap.get(adr + i), elem));
+                    }
+                }
+            }
+        } else {
+            int[] refs = maps.fieldRefs[t];
+            for (int k = 0; k < refs.length; k += 2) {
+                if (heap.get(adr + refs[k]) != 0) {
+                    heap.set(adr + refs[k], relocate(heap.get(adr + refs[k]), refs[k + 1]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Start of the block referenced by ref of type reference type.
+     */
+    private int start(int ref, int type) {
+        int adr = maps.isArray[type - 1] ? ref - 1 : ref;
+        if (adr <= 0 || adr >= tags.length || tags[adr] == 0) {
+            throw new IllegalStateException("reference " + ref + " does not point to a heap block");
+        }
+        return adr;
+    }
+
+    private int relocate(int ref, int type) {
+        int adr = start(ref, type);
+        return forward[adr] + (ref - adr);
+    }
+
+    /**
+     * Heap words of the (possibly marked) block at adr.
+     */
+    private int size(int adr) {
+        int tag = Math.abs(tags[adr]);
+        if (tag == RefMaps.CHARS) {
+            return words(vm.heap.get(adr) + 4);
+        }
+        int t = tag - RefMaps.FIRST_TYPE;
+        return maps.isArray[t] ? words(vm.heap.get(adr) * 4 + 4) : words(maps.nFields[t] * 4);
+    }
+}
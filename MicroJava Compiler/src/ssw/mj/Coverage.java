@@ -0,0 +1,175 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Block, line and branch coverage (java ssw.mj.Run fileName -coverage outFile)
+// ===========================================================================
+package ssw.mj;
+
+import java.io.PrintStream;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Records which basic blocks of a program are executed. Blocks start at
+ * jump and call targets and behind jumps, calls, returns and traps, and are
+ * numbered in code order. The interpreter runs a copy of its stream in which
+ * the first handler of every block not visited yet is replaced by a COVER
+ * probe. The probe sets the block's bit and puts the original handler back,
+ * so every block costs one extra dispatch on its first visit and nothing
+ * afterwards.
+ * <p>
+ * The report maps the blocks to the source lines the compiler records (see
+ * {@link Lines}). A line is covered if all blocks with code of the line were
+ * executed. A conditional jump counts as covered if the blocks at its target
+ * and behind it were both executed.
+ */
+final class Coverage {
+
+    private final Interpreter vm;
+    private final int[] starts; // per block: stream index of its first instruction
+    private final int[] blockAt; // per stream index: block starting there, -1 otherwise
+    private final int end; // stream index behind the last instruction
+    private final BitSet visited = new BitSet();
+    private int[] ops; // probed stream of the current run
+    private int[] replaced; // per block: handler its probe replaced in ops
+
+    Coverage(Interpreter vm) {
+        this.vm = vm;
+        DecodedCode d = vm.decoded;
+        int[] ops = d.ops;
+        end = d.indexOf[d.indexOf.length - 1];
+        boolean[] leader = new boolean[end + 1];
+        leader[0] = true;
+        for (int idx = 0; idx < end; idx += size(ops[idx])) {
+            int h = ops[idx];
+            if (h >= JMP && h <= CALL) {
+                leader[Math.min(ops[idx + 1], end)] = true; // bad targets lie behind end
+            }
+            if (h >= JMP && h <= RETURN || h == TRAP) {
+                leader[idx + size(h)] = true;
+            }
+        }
+        blockAt = new int[end];
+        int n = 0;
+        for (int idx = 0; idx < end; idx += size(ops[idx])) {
+            blockAt[idx] = leader[idx] ? n++ : -1;
+        }
+        starts = new int[n];
+        for (int idx = 0; idx < end; idx += size(ops[idx])) {
+            if (blockAt[idx] >= 0) {
+                starts[blockAt[idx]] = idx;
+            }
+        }
+    }
+
+    /**
+     * Copy of stream, which the interpreter is about to run, with a probe in
+     * every block that has not been visited yet.
+     */
+    int[] probe(int[] stream) {
+        ops = stream.clone();
+        replaced = new int[starts.length];
+        for (int b = 0; b < starts.length; b++) {
+            if (!visited.get(b)) {
+                replaced[b] = ops[starts[b]];
+                ops[starts[b]] = COVER;
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Called by the probe at stream index idx, which is then executed again.
+     */
+    void visit(int idx) {
+        int b = blockAt[idx];
+        visited.set(b);
+        ops[idx] = replaced[b];
+    }
+
+    /**
+     * Print the coverage, with the lines of the source if it is given.
+     */
+    void print(PrintStream out, List<String> source) {
+        int[] ops = vm.decoded.ops;
+        Lines lines = vm.lines;
+        Map<Integer, int[]> perLine = new TreeMap<>(); // blocks and visited blocks of every line
+        StringBuilder branches = new StringBuilder();
+        int nBranches = 0, coveredBranches = 0;
+        for (int b = 0; b < starts.length; b++) {
+            int next = b + 1 < starts.length ? starts[b + 1] : end;
+            int last = 0; // line of the previous instruction of the block
+            for (int idx = starts[b]; idx < next; idx += size(ops[idx])) {
+                int pc = vm.decoded.pcOf[idx];
+                int line = lines.lineAt(pc);
+                if (line != last) {
+                    int[] counts = perLine.computeIfAbsent(line, l -> new int[2]);
+                    counts[0]++;
+                    counts[1] += visited.get(b) ? 1 : 0;
+                    last = line;
+                }
+                if (ops[idx] >= JEQ && ops[idx] <= JGE) {
+                    nBranches++;
+                    boolean taken = reached(ops[idx + 1]);
+                    boolean fallen = reached(idx + size(ops[idx]));
+                    if (taken && fallen) {
+                        coveredBranches++;
+                    } else if (visited.get(b)) {
+                        branches.append(String.format("  line %d, pc %d: %s%n", line, pc,
+                                taken ? "never falls through" : fallen ? "never taken" : "never reached"));
+                    }
+                }
+            }
+        }
+        int coveredLines = 0;
+        for (int[] counts : perLine.values()) {
+            coveredLines += counts[0] == counts[1] ? 1 : 0;
+        }
+        out.printf("-- coverage: %d of %d lines, %d of %d blocks, %d of %d branches%n", coveredLines, perLine.size(),
+                visited.cardinality(), starts.length, coveredBranches, nBranches);
+        if (lines.isEmpty()) {
+            out.println("-- no line information, blocks not executed:");
+            for (int b = visited.nextClearBit(0); b < starts.length; b = visited.nextClearBit(b + 1)) {
+                int pc = vm.decoded.pcOf[starts[b]];
+                CodeAnalysis.Method m = vm.analysis.methodAt(pc);
+                out.printf("  pc %d (%s+%d)%n", pc, vm.symbols.name(m.entry), pc - m.entry);
+            }
+        } else if (source != null) {
+            for (int line = 1; line <= source.size(); line++) {
+                out.printf("%5d %s | %s%n", line, mark(perLine.get(line)), source.get(line - 1));
+            }
+        } else {
+            for (Map.Entry<Integer, int[]> e : perLine.entrySet()) {
+                int[] counts = e.getValue();
+                if (counts[1] < counts[0]) {
+                    out.printf("  line %d: %s%n", e.getKey(), counts[1] == 0 ? "not covered" : "partly covered");
+                }
+            }
+        }
+        if (branches.length() > 0) {
+            out.println("-- branches not covered both ways:");
+            out.print(branches);
+        }
+    }
+
+    /**
+     * True if the block starting at stream index idx was executed.
+     */
+    private boolean reached(int idx) {
+        return idx < end && visited.get(blockAt[idx]);
+    }
+
+    /**
+     * Marker of a line: + covered, ~ partly covered, - not covered, blank
+     * without code.
+     */
+    private static char mark(int[] counts) {
+        if (counts == null) {
+            return ' ';
+        }
+        return counts[1] == counts[0] ? '+' : counts[1] > 0 ? '~' : '-';
+    }
+}
@@ -0,0 +1,583 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Pre-decoded instruction stream
+// ===========================================================================
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.util.Arrays;
+
+/**
+ * Load-time translation of a MicroJava code array into an <code>int[]</code>
+ * instruction stream. Every instruction is stored as a handler index followed
+ * by its operands, already sign-extended. Related opcodes are folded into one
+ * handler (e.g. <code>load_0..load_3</code> become <code>LOAD n</code>, all
+ * constants become <code>CONST v</code>) and jump distances are replaced by
+ * absolute indices into the stream, so the interpreter never touches the
+ * original bytes while running.
+ */
+final class DecodedCode {
+
+    // ----- handler indices
+    static final int LOAD = 0, // n
+            STORE = 1, // n
+            GETSTATIC = 2, // adr
+            PUTSTATIC = 3, // adr
+            GETFIELD = 4, // off
+            PUTFIELD = 5, // off
+            CONST = 6, // val
+            ADD = 7,
+            SUB = 8,
+            MUL = 9,
+            DIV = 10,
+            REM = 11,
+            NEG = 12,
+            SHL = 13,
+            SHR = 14,
+            INC = 15, // n, delta
+            NEW = 16, // size in bytes
+            NEWARRAY = 17, // 0 = char, 1 = word
+            ALOAD = 18,
+            ASTORE = 19,
+            BALOAD = 20,
+            BASTORE = 21,
+            ARRAYLENGTH = 22,
+            POP = 23,
+            DUP = 24,
+            DUP2 = 25,
+            JMP = 26, // target
+            JEQ = 27, // target
+            JNE = 28, // target
+            JLT = 29, // target
+            JLE = 30, // target
+            JGT = 31, // target
+            JGE = 32, // target
+            CALL = 33, // target
+            RETURN = 34,
+            ENTER = 35, // psize, lsize
+            EXIT = 36,
+            READ = 37,
+            PRINT = 38,
+            BREAD = 39,
+            BPRINT = 40,
+            TRAP = 41, // n
+            NOP = 42,
+            ILLEGAL = 43, // opcode byte
+            BAD_TARGET = 44, // byte address
+            END = 45;
+
+    /**
+     * Number of base handlers.
+     */
+    static final int numHandlers = END + 1;
+
+    // ----- superinstructions: the head slot gets the fused handler, the
+    // operands stay in the slots of the original instructions
+    static final int LOAD_LOAD_ADD = 46,
+            LOAD_CONST_ADD = 47,
+            LOAD_CONST_SUB = 48,
+            LOAD_LOAD_ALOAD = 49,
+            GETSTATIC_LOAD_ALOAD = 50,
+            LOAD_LOAD_JEQ = 51,
+            LOAD_LOAD_JNE = 52,
+            LOAD_LOAD_JLT = 53,
+            LOAD_LOAD_JLE = 54,
+            LOAD_LOAD_JGT = 55,
+            LOAD_LOAD_JGE = 56,
+            LOAD_CONST_JEQ = 57,
+            LOAD_CONST_JNE = 58,
+            LOAD_CONST_JLT = 59,
+            LOAD_CONST_JLE = 60,
+            LOAD_CONST_JGT = 61,
+            LOAD_CONST_JGE = 62,
+            LOAD_LOAD = 63,
+            LOAD_CONST = 64,
+            ADD_STORE = 65,
+            INC_JMP = 66,
+            EXIT_RETURN = 67;
+
+    // ----- handlers of the counted stream for tiered execution
+    static final int LOOP = 68, // target; backward jmp
+            INVOKE = 69; // target; call
+
+    // ----- handler of the traced stream
+    static final int TRACE = 70; // stream index of the next instruction in ops
+
+    // ----- handlers of the sampled stream
+    static final int SAMPLE_JMP = 71, // target; backward jmp
+            SAMPLE_CALL = 72; // target; call
+
+    // ----- handler of the covered stream
+    static final int COVER = 73; // in place of the first handler of a block, see Coverage
+
+    /**
+     * Fused handler followed by the handler sequence it replaces. Chosen from
+     * <code>java ssw.mj.Run fileName -mine-pairs</code> statistics over the
+     * sample programs; longer sequences are tried first.
+     */
+    private static final int[][] superinstructions = {
+            {LOAD_LOAD_ADD, LOAD, LOAD, ADD},
+            {LOAD_CONST_ADD, LOAD, CONST, ADD},
+            {LOAD_CONST_SUB, LOAD, CONST, SUB},
+            {LOAD_LOAD_ALOAD, LOAD, LOAD, ALOAD},
+            {GETSTATIC_LOAD_ALOAD, GETSTATIC, LOAD, ALOAD},
+            {LOAD_LOAD_JEQ, LOAD, LOAD, JEQ},
+            {LOAD_LOAD_JNE, LOAD, LOAD, JNE},
+            {LOAD_LOAD_JLT, LOAD, LOAD, JLT},
+            {LOAD_LOAD_JLE, LOAD, LOAD, JLE},
+            {LOAD_LOAD_JGT, LOAD, LOAD, JGT},
+            {LOAD_LOAD_JGE, LOAD, LOAD, JGE},
+            {LOAD_CONST_JEQ, LOAD, CONST, JEQ},
+            {LOAD_CONST_JNE, LOAD, CONST, JNE},
+            {LOAD_CONST_JLT, LOAD, CONST, JLT},
+            {LOAD_CONST_JLE, LOAD, CONST, JLE},
+            {LOAD_CONST_JGT, LOAD, CONST, JGT},
+            {LOAD_CONST_JGE, LOAD, CONST, JGE},
+            {LOAD_LOAD, LOAD, LOAD},
+            {LOAD_CONST, LOAD, CONST},
+            {ADD_STORE, ADD, STORE},
+            {INC_JMP, INC, JMP},
+            {EXIT_RETURN, EXIT, RETURN}};
+
+    /**
+     * Handler names for diagnostic output.
+     */
+    private static final String[] names = {
+            "load", "store", "getstatic", "putstatic", "getfield", "putfield",
+            "const", "add", "sub", "mul", "div", "rem", "neg", "shl", "shr",
+            "inc", "new", "newarray", "aload", "astore", "baload", "bastore",
+            "arraylength", "pop", "dup", "dup2", "jmp", "jeq", "jne", "jlt",
+            "jle", "jgt", "jge", "call", "return", "enter", "exit", "read",
+            "print", "bread", "bprint", "trap", "nop", "illegal", "bad_target",
+            "end", "load_load_add", "load_const_add", "load_const_sub",
+            "load_load_aload", "getstatic_load_aload", "load_load_jeq",
+            "load_load_jne", "load_load_jlt", "load_load_jle", "load_load_jgt",
+            "load_load_jge", "load_const_jeq", "load_const_jne",
+            "load_const_jlt", "load_const_jle", "load_const_jgt",
+            "load_const_jge", "load_load", "load_const", "add_store", "inc_jmp",
+            "exit_return", "loop", "invoke", "trace", "sample_jmp", "sample_call",
+            "cover"};
+
+    /**
+     * Number of stream slots (handler + operands) per handler.
+     */
+    private static final int[] slots = {
+            2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 3, 2, 2, 1, 1,
+            1, 1, 1, 1, 1, 1, 2, 2, 2, 2, 2, 2, 2, 2, 1, 3, 1, 1, 1, 1,
+            1, 2, 1, 2, 2, 1, 5, 5, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6,
+            6, 6, 4, 4, 3, 5, 2, 2, 2, 2, 2, 2, 1};
+
+    /**
+     * Instruction stream: handler index followed by its operands.
+     */
+    final int[] ops;
+
+    /**
+     * Same stream with superinstructions fused in. Jump targets and operand
+     * positions are unchanged.
+     */
+    final int[] fused;
+
+    private int[] traced, tracedIndex; // see traced(), built on first use
+
+    /**
+     * Byte address of the instruction at a stream index, -1 for operand slots.
+     */
+    final int[] pcOf;
+
+    /**
+     * Stream index of the instruction at a byte address, -1 if no instruction
+     * starts there.
+     */
+    final int[] indexOf;
+
+    DecodedCode(byte[] code) {
+        // pass 1: stream index of every instruction start
+        indexOf = new int[code.length + 1];
+        Arrays.fill(indexOf, -1);
+        int len = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            indexOf[pc] = len;
+            OpCode op = opAt(code, pc);
+            if (op == null) {
+                len += slots[ILLEGAL];
+                pc++;
+            } else {
+                len += slots[handler(op)];
+                pc += 1 + op.getOpsSize();
+            }
+        }
+        int end = len;
+        indexOf[code.length] = end; // falling off the code area ends in END
+
+        // pass 2: emit handlers and operands; invalid jump targets get a
+        // BAD_TARGET instruction appended behind END
+        int[] stream = new int[end + slots[END]];
+        int[] pcs = new int[stream.length];
+        Arrays.fill(pcs, -1);
+        boolean[] isTarget = new boolean[stream.length];
+        int n = 0;
+        pc = 0;
+        while (pc < code.length) {
+            pcs[n] = pc;
+            OpCode op = opAt(code, pc);
+            if (op == null) {
+                stream[n++] = ILLEGAL;
+                stream[n++] = code[pc];
+                pc++;
+                continue;
+            }
+            int adr = pc;
+            pc++;
+            stream[n++] = handler(op);
+            switch (op) {
+                case load_0:
+                case load_1:
+                case load_2:
+                case load_3:
+                    stream[n++] = op.code() - OpCode.load_0.code();
+                    break;
+                case store_0:
+                case store_1:
+                case store_2:
+                case store_3:
+                    stream[n++] = op.code() - OpCode.store_0.code();
+                    break;
+                case const_0:
+                case const_1:
+                case const_2:
+                case const_3:
+                case const_4:
+                case const_5:
+                    stream[n++] = op.code() - OpCode.const_0.code();
+                    break;
+                case const_m1:
+                    stream[n++] = -1;
+                    break;
+                case const_:
+                    stream[n++] = get4(code, pc);
+                    break;
+                case load:
+                case store:
+                case newarray:
+                case trap:
+                    stream[n++] = code[pc];
+                    break;
+                case getstatic:
+                case putstatic:
+                case getfield:
+                case putfield:
+                    stream[n++] = get2(code, pc);
+                    break;
+                case new_:
+                    stream[n++] = get2(code, pc) * 4;
+                    break;
+                case inc:
+                case enter:
+                    stream[n++] = code[pc];
+                    stream[n++] = code[pc + 1];
+                    break;
+                case jmp:
+                case jeq:
+                case jne:
+                case jlt:
+                case jle:
+                case jgt:
+                case jge:
+                case call:
+                    int target = adr + get2(code, pc);
+                    if (target >= 0 && target <= code.length && indexOf[target] >= 0) {
+                        isTarget[indexOf[target]] = true;
+                        stream[n++] = indexOf[target];
+                    } else {
+                        int bad = stream.length;
+                        stream = Arrays.copyOf(stream, bad + slots[BAD_TARGET]);
+                        pcs = Arrays.copyOf(pcs, stream.length);
+                        stream[bad] = BAD_TARGET;
+                        stream[bad + 1] = target;
+                        pcs[bad] = adr;
+                        pcs[bad + 1] = -1;
+                        stream[n++] = bad;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            pc += op.getOpsSize();
+        }
+        stream[end] = END;
+        pcs[end] = code.length;
+        ops = stream;
+        pcOf = pcs;
+        fused = fuse(stream, end, isTarget);
+    }
+
+    /**
+     * Replace the head of every sequence listed in superinstructions by its
+     * fused handler. Sequences are only fused if no jump leads into their
+     * middle.
+     */
+    private static int[] fuse(int[] ops, int end, boolean[] isTarget) {
+        int[] f = ops.clone();
+        int idx = 0;
+        while (idx < end) {
+            int len = slots[ops[idx]];
+            for (int[] sup : superinstructions) {
+                if (matches(ops, idx, end, sup, isTarget)) {
+                    f[idx] = sup[0];
+                    len = slots[sup[0]];
+                    break;
+                }
+            }
+            idx += len;
+        }
+        return f;
+    }
+
+    private static boolean matches(int[] ops, int idx, int end, int[] sup, boolean[] isTarget) {
+        for (int k = 1; k < sup.length; k++) {
+            if (idx >= end || ops[idx] != sup[k] || (k > 1 && isTarget[idx])) {
+                return false;
+            }
+            idx += slots[sup[k]];
+        }
+        return true;
+    }
+
+    /**
+     * Copy of the plain stream for tiered execution, in which calls become
+     * INVOKE and backward jumps become LOOP, so that both can be counted.
+     * Methods that get hot are compiled, so the counted stream is
+     * interpreted without superinstructions.
+     */
+    int[] counted() {
+        return instrumented(ops, LOOP, INVOKE);
+    }
+
+    /**
+     * Copy of the fused stream for sampled execution, in which calls become
+     * SAMPLE_CALL and backward jumps become SAMPLE_JMP, so that every method
+     * entry and loop iteration can take a sample. Superinstructions that end
+     * in a backward jump are split again.
+     */
+    int[] sampled() {
+        return instrumented(fused, SAMPLE_JMP, SAMPLE_CALL);
+    }
+
+    /**
+     * Copy of stream, the plain or the fused stream, with backward jumps
+     * replaced by the handler loop and calls by the handler call.
+     */
+    private int[] instrumented(int[] stream, int loop, int call) {
+        int[] s = stream.clone();
+        int end = indexOf[indexOf.length - 1];
+        int head = 0, headEnd = 0;
+        for (int idx = 0; idx < end; idx += slots[ops[idx]]) {
+            if (idx == headEnd) {
+                head = idx;
+                headEnd = idx + slots[stream[idx]];
+            }
+            if (ops[idx] == JMP && ops[idx + 1] <= idx) {
+                s[head] = ops[head];
+                s[idx] = loop;
+            } else if (ops[idx] == CALL) {
+                s[idx] = call;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Copy of the plain stream for instrumented execution, in which every
+     * instruction is preceded by a TRACE with the instruction's index in ops.
+     * Jumps and calls lead to the TRACE of their target. Only this stream
+     * makes the interpreter report instructions, so the other streams run
+     * without any tracing overhead. Built on the first call, which may come
+     * from any of the interpreters sharing the code, see {@link ProgramImage}.
+     */
+    synchronized int[] traced() {
+        if (traced != null) {
+            return traced;
+        }
+        int[] map = new int[ops.length];
+        int n = 0;
+        for (int idx = 0; idx < ops.length; idx += slots[ops[idx]]) {
+            map[idx] = n;
+            n += slots[TRACE] + slots[ops[idx]];
+        }
+        int[] t = new int[n];
+        for (int idx = 0; idx < ops.length; idx += slots[ops[idx]]) {
+            int at = map[idx];
+            t[at] = TRACE;
+            t[at + 1] = idx;
+            System.arraycopy(ops, idx, t, at + 2, slots[ops[idx]]);
+            if (ops[idx] >= JMP && ops[idx] <= CALL) {
+                t[at + 3] = map[ops[idx + 1]];
+            }
+        }
+        tracedIndex = map;
+        traced = t;
+        return t;
+    }
+
+    /**
+     * Index in {@link #traced()} of the TRACE before the instruction at index
+     * idx of ops.
+     */
+    int tracedIndex(int idx) {
+        traced();
+        return tracedIndex[idx];
+    }
+
+    /**
+     * Byte address of the instruction at index idx of stream, which is
+     * {@link #ops}, {@link #fused} or {@link #traced()}. In the traced stream
+     * idx may also be the index of the TRACE before the instruction.
+     */
+    int pcAt(int[] stream, int idx) {
+        if (stream == traced) {
+            return pcOf[stream[idx] == TRACE ? stream[idx + 1] : stream[idx - 1]];
+        }
+        return pcOf[idx];
+    }
+
+    /**
+     * Number of stream slots (handler + operands) of a handler.
+     */
+    static int size(int handler) {
+        return slots[handler];
+    }
+
+    static String name(int handler) {
+        return names[handler];
+    }
+
+    /**
+     * Opcode at <code>pc</code>, or null if the byte is no valid opcode or its
+     * operands are cut off by the end of the code area.
+     */
+    private static OpCode opAt(byte[] code, int pc) {
+        OpCode op = OpCode.get(code[pc]);
+        if (op == null || pc + op.getOpsSize() >= code.length) {
+            return null;
+        }
+        return op;
+    }
+
+    private static int handler(OpCode op) {
+        switch (op) {
+            case load:
+            case load_0:
+            case load_1:
+            case load_2:
+            case load_3:
+                return LOAD;
+            case store:
+            case store_0:
+            case store_1:
+            case store_2:
+            case store_3:
+                return STORE;
+            case getstatic:
+                return GETSTATIC;
+            case putstatic:
+                return PUTSTATIC;
+            case getfield:
+                return GETFIELD;
+            case putfield:
+                return PUTFIELD;
+            case const_0:
+            case const_1:
+            case const_2:
+            case const_3:
+            case const_4:
+            case const_5:
+            case const_m1:
+            case const_:
+                return CONST;
+            case add:
+                return ADD;
+            case sub:
+                return SUB;
+            case mul:
+                return MUL;
+            case div:
+                return DIV;
+            case rem:
+                return REM;
+            case neg:
+                return NEG;
+            case shl:
+                return SHL;
+            case shr:
+                return SHR;
+            case inc:
+                return INC;
+            case new_:
+                return NEW;
+            case newarray:
+                return NEWARRAY;
+            case aload:
+                return ALOAD;
+            case astore:
+                return ASTORE;
+            case baload:
+                return BALOAD;
+            case bastore:
+                return BASTORE;
+            case arraylength:
+                return ARRAYLENGTH;
+            case pop:
+                return POP;
+            case dup:
+                return DUP;
+            case dup2:
+                return DUP2;
+            case jmp:
+                return JMP;
+            case jeq:
+                return JEQ;
+            case jne:
+                return JNE;
+            case jlt:
+                return JLT;
+            case jle:
+                return JLE;
+            case jgt:
+                return JGT;
+            case jge:
+                return JGE;
+            case call:
+                return CALL;
+            case return_:
+                return RETURN;
+            case enter:
+                return ENTER;
+            case exit:
+                return EXIT;
+            case read:
+                return READ;
+            case print:
+                return PRINT;
+            case bread:
+                return BREAD;
+            case bprint:
+                return BPRINT;
+            case trap:
+                return TRAP;
+            case nop:
+                return NOP;
+        }
+        throw new IllegalArgumentException("unexpected opcode " + op);
+    }
+
+    private static int get2(byte[] code, int pc) {
+        return (short) ((code[pc] << 8) + (code[pc + 1] & 0xff));
+    }
+
+    private static int get4(byte[] code, int pc) {
+        return (get2(code, pc) << 16) + (get2(code, pc + 2) & 0xffff);
+    }
+}
@@ -0,0 +1,21 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Observer of interpreted instructions
+// ===========================================================================
+package ssw.mj;
+
+/**
+ * Receives every instruction the interpreter executes, see
+ * {@link Interpreter#addListener}. While a listener is installed, the program
+ * is interpreted instruction by instruction on a traced copy of the stream
+ * ({@link DecodedCode#traced()}); runs without listeners use the fast loops
+ * and pay nothing for tracing.
+ */
+interface ExecutionListener {
+
+    /**
+     * Called before the instruction at index idx of the plain stream ops (see
+     * {@link DecodedCode#ops}) is executed.
+     */
+    void instruction(int[] ops, int idx);
+}
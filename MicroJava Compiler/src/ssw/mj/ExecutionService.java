@@ -0,0 +1,157 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Execution service for many runs in one JVM
+// ===========================================================================
+package ssw.mj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs MicroJava programs for many clients at once on a fixed pool of
+ * threads. Object files are loaded once: their images (see
+ * {@link ProgramImage}) are cached by the SHA-256 hash of the file content,
+ * so all runs of a program share its code, its verification and the code the
+ * engines make of it. The interpreters of an image are pooled as well: after
+ * a run, an interpreter is kept for the next run of the image, which reuses
+ * its heap and stacks after they have been cleared. An interpreter whose run
+ * failed is dropped.
+ */
+public class ExecutionService implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final Interpreter.Engine engine;
+    private final Interpreter.Limits limits;
+    private final Map<ByteBuffer, Loaded> images; // by content hash, least recently used first
+
+    /**
+     * A cached image with the interpreters that are not running.
+     */
+    private static final class Loaded {
+        final ProgramImage image;
+        final Queue<Interpreter> idle = new ConcurrentLinkedQueue<>(); // at most one per thread
+
+        Loaded(ProgramImage image) {
+            this.image = image;
+        }
+    }
+
+    /**
+     * Service with the given number of threads, which runs programs with
+     * engine and limits and keeps up to maxImages images.
+     */
+    public ExecutionService(int threads, Interpreter.Engine engine, Interpreter.Limits limits, int maxImages) {
+        if (threads <= 0 || maxImages <= 0) {
+            throw new IllegalArgumentException("threads and images must be positive");
+        }
+        this.engine = engine;
+        this.limits = limits;
+        images = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Loaded> eldest) {
+                return size() > maxImages;
+            }
+        };
+        AtomicInteger n = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "mj-run-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Image of the object file in file, loaded and verified on the first
+     * request with this content.
+     */
+    public ProgramImage load(byte[] file) throws IOException {
+        return loaded(file).image;
+    }
+
+    private Loaded loaded(byte[] file) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(hash(file));
+        synchronized (images) {
+            Loaded l = images.get(key);
+            if (l != null) {
+                return l;
+            }
+        }
+        Loaded l = new Loaded(ProgramImage.read(file, limits)); // outside the lock, loading takes time
+        synchronized (images) {
+            Loaded other = images.putIfAbsent(key, l);
+            return other != null ? other : l;
+        }
+    }
+
+    private static byte[] hash(byte[] file) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(file);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every JVM has SHA-256
+        }
+    }
+
+    /**
+     * Run the program in the object file with io. The object file is loaded
+     * right away, so errors in it are reported here. The future fails with
+     * the IllegalStateException of a trap.
+     */
+    public Future<Void> submit(byte[] file, Interpreter.IO io) throws IOException {
+        Loaded l = loaded(file);
+        return executor.submit(() -> {
+            run(l, io);
+            return null;
+        });
+    }
+
+    /**
+     * Run the program in the object file with the given input. The future
+     * returns the output.
+     */
+    public Future<String> submit(byte[] file, String input) throws IOException {
+        Loaded l = loaded(file);
+        return executor.submit(() -> {
+            Interpreter.BufferIO io = new Interpreter.BufferIO(input);
+            run(l, io);
+            return io.getOutput();
+        });
+    }
+
+    private void run(Loaded l, Interpreter.IO io) {
+        Interpreter vm = l.idle.poll();
+        if (vm == null) {
+            vm = new Interpreter(l.image, io, false);
+            vm.setEngine(engine);
+        } else {
+            vm.reset(io);
+        }
+        vm.run();
+        l.idle.add(vm); // not after a trap, which may have left it in any state
+    }
+
+    /**
+     * Finish the runs that have been submitted and stop the threads. If the
+     * calling thread is interrupted, it stops waiting for the runs and keeps
+     * its interrupt status.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Malformed object files and recordings
+// ===========================================================================
+package ssw.mj;
+
+import java.io.IOException;
+
+class FormatException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    FormatException(String s) {
+        super(s);
+    }
+}
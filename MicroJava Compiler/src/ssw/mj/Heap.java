@@ -0,0 +1,227 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Storage of the heap: Java int array or native memory
+// ===========================================================================
+package ssw.mj;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * The words of the heap of an interpreter. Heap addresses are word indices,
+ * address 0 is never a block. Char arrays hold 4 chars per word; they are
+ * accessed through {@link #getByte} and {@link #setByte} with the address of
+ * their first word, so that storage which is byte addressable can access a
+ * char directly. A heap grows in place, so users may keep a reference to it.
+ */
+abstract class Heap {
+
+    /**
+     * Number of words.
+     */
+    abstract int words();
+
+    /**
+     * Largest number of words this kind of storage can hold.
+     */
+    abstract int maxWords();
+
+    abstract int get(int adr);
+
+    abstract void set(int adr, int val);
+
+    /**
+     * Char idx of the char array whose chars start at word adr.
+     */
+    abstract byte getByte(int adr, int idx);
+
+    abstract void setByte(int adr, int idx, byte b);
+
+    /**
+     * Grow to n words, keeping the contents. The new words are 0.
+     */
+    abstract void grow(int n);
+
+    /**
+     * Move the len words at from to to, like System.arraycopy.
+     */
+    abstract void move(int from, int to, int len);
+
+    /**
+     * Set the words from from (inclusive) to to (exclusive) to 0.
+     */
+    abstract void clear(int from, int to);
+
+    /**
+     * Heap in a Java int array.
+     */
+    static final class Words extends Heap {
+
+        private int[] words;
+
+        Words(int n) {
+            words = new int[n];
+        }
+
+        @Override
+        int words() {
+            return words.length;
+        }
+
+        @Override
+        int maxWords() {
+            return Integer.MAX_VALUE - 8; // the JVM's limit for array sizes
+        }
+
+        @Override
+        int get(int adr) {
+            return words[adr];
+        }
+
+        @Override
+        void set(int adr, int val) {
+            words[adr] = val;
+        }
+
+        @Override
+        byte getByte(int adr, int idx) {
+            return Interpreter.getByte(words[adr + idx / 4], idx % 4);
+        }
+
+        @Override
+        void setByte(int adr, int idx, byte b) {
+            words[adr + idx / 4] = Interpreter.setByte(words[adr + idx / 4], idx % 4, b);
+        }
+
+        @Override
+        void grow(int n) {
+            words = Arrays.copyOf(words, n);
+        }
+
+        @Override
+        void move(int from, int to, int len) {
+            System.arraycopy(words, from, words, to, len);
+        }
+
+        @Override
+        void clear(int from, int to) {
+            Arrays.fill(words, from, to, 0);
+        }
+    }
+
+    /**
+     * Heap in native memory outside the Java heap, which the garbage collector
+     * of the JVM neither scans nor moves. Chars are single bytes in memory.
+     * Out of range addresses raise an IndexOutOfBoundsException, like array
+     * accesses. The words are kept in direct buffers of up to CHUNK words
+     * each, as a buffer holds at most 2 GB; all but the last chunk are full.
+     * The JVM limits direct buffers to -XX:MaxDirectMemorySize in total,
+     * which defaults to the maximum Java heap size (-Xmx).
+     */
+    static final class OffHeap extends Heap {
+
+        private static final int SHIFT = 24, CHUNK = 1 << SHIFT, MASK = CHUNK - 1; // 64 MB chunks
+
+        private ByteBuffer[] chunks;
+        private int words;
+
+        OffHeap(int n) {
+            chunks = new ByteBuffer[0];
+            grow(n);
+        }
+
+        private static ByteBuffer allocate(int n) {
+            return ByteBuffer.allocateDirect(4 * n).order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        int words() {
+            return words;
+        }
+
+        @Override
+        int maxWords() {
+            return Integer.MAX_VALUE - 8; // like the int array, heap addresses are ints
+        }
+
+        @Override
+        int get(int adr) {
+            return chunks[adr >>> SHIFT].getInt((adr & MASK) << 2);
+        }
+
+        @Override
+        void set(int adr, int val) {
+            chunks[adr >>> SHIFT].putInt((adr & MASK) << 2, val);
+        }
+
+        @Override
+        byte getByte(int adr, int idx) {
+            adr += idx >> 2; // an array may span chunks
+            return chunks[adr >>> SHIFT].get(((adr & MASK) << 2) + (idx & 3));
+        }
+
+        @Override
+        void setByte(int adr, int idx, byte b) {
+            adr += idx >> 2;
+            chunks[adr >>> SHIFT].put(((adr & MASK) << 2) + (idx & 3), b);
+        }
+
+        @Override
+        void grow(int n) {
+            int full = n >>> SHIFT, rest = n & MASK;
+            ByteBuffer[] c = Arrays.copyOf(chunks, rest > 0 ? full + 1 : full);
+            for (int i = Math.max(0, chunks.length - 1); i < c.length; i++) {
+                int size = i < full ? CHUNK : rest;
+                ByteBuffer old = c[i];
+                if (old == null || old.capacity() < 4 * size) {
+                    c[i] = allocate(size);
+                    if (old != null) {
+                        copy(old, 0, c[i], 0, old.capacity());
+                    }
+                }
+            }
+            chunks = c;
+            words = n;
+        }
+
+        @Override
+        void move(int from, int to, int len) {
+            if (to <= from) {
+                while (len > 0) {
+                    int n = Math.min(len, Math.min(CHUNK - (from & MASK), CHUNK - (to & MASK)));
+                    copy(chunks[from >>> SHIFT], (from & MASK) << 2, chunks[to >>> SHIFT], (to & MASK) << 2, n << 2);
+                    from += n;
+                    to += n;
+                    len -= n;
+                }
+            } else { // from the end, so that overlapping words are read before they are overwritten
+                while (len > 0) {
+                    int n = Math.min(len, Math.min(((from + len - 1) & MASK) + 1, ((to + len - 1) & MASK) + 1));
+                    len -= n;
+                    copy(chunks[(from + len) >>> SHIFT], ((from + len) & MASK) << 2,
+                            chunks[(to + len) >>> SHIFT], ((to + len) & MASK) << 2, n << 2);
+                }
+            }
+        }
+
+        /**
+         * Copy n bytes from src at from to dst at to, also if the ranges
+         * overlap. Positions and limits of the buffers stay as they are.
+         */
+        private static void copy(ByteBuffer src, int from, ByteBuffer dst, int to, int n) {
+            ByteBuffer s = src.duplicate();
+            s.limit(from + n).position(from);
+            ByteBuffer d = dst.duplicate();
+            d.position(to);
+            d.put(s);
+        }
+
+        @Override
+        void clear(int from, int to) {
+            for (int adr = from; adr < to; adr++) {
+                set(adr, 0);
+            }
+        }
+    }
+}
@@ -1,6 +1,10 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java ssw.mj.Run fileName [-debug]
+// Syntax: java ssw.mj.Run fileName [-debug] [-mine-pairs] [-profile] [-allocs] [-sample outFile]
+//                             [-trace outFile [-trace-heap]] [-coverage outFile] [-monitor]
+//                             [-input inFile] [-record outFile | -replay inFile]
+//                             [-jit | -tiered | -register]
+//                             [-heap words] [-mstack words] [-estack words] [-offheap]
 // ===========================================================================
 // by Hanspeter Moessenboeck, 2002-10-28
 // edited by Albrecht Woess, 2002-10-30
@@ -9,43 +13,147 @@ package ssw.mj;
 import ssw.mj.codegen.Code;
 import ssw.mj.codegen.Code.OpCode;
 
-import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static ssw.mj.DecodedCode.*;
 
 public class Interpreter {
 
     private boolean debug; // debug output on or off
-    private byte code[]; // code array
-    private int data[]; // global data
-    private int heap[]; // dynamic heap
-    private int stack[]; // expression stack
-    private int local[]; // method stack
+    final ProgramImage image; // the loaded program, shared with other interpreters
+    byte code[]; // code array
+    final DecodedCode decoded; // pre-decoded instruction stream
+    final CodeAnalysis analysis; // verifier result, null if the code did not verify
+    final Symbols symbols; // method names for reports
+    final Lines lines; // source lines for reports
+    int data[]; // global data
+    Heap heap; // dynamic heap
+    int stack[]; // expression stack
+    int local[]; // method stack
     private int startPC; // address of main() method
-    private int pc; // program counter
-    private int fp, sp; // frame pointer, stack pointer on method stack
-    private int esp; // expression stack pointer
+    private int pc; // program counter (index into the decoded stream)
+    int fp; // frame pointer on method stack
+    int sp; // stack pointer on method stack
+    int esp; // expression stack pointer
     private int free; // next free heap address
-    private static final int heapSize = 100000, // size of the heap in words
-            mStackSize = 4000, // size of the method stack in words
-            eStackSize = 30; // size of the expression stack in words
+    static final int heapSize = 100000, // default limit of the heap in words
+            mStackSize = 4000, // default limit of the method stack in words
+            eStackSize = 30; // default limit of the expression stack in words
+    private static final int initialHeap = 1024, // initial sizes in words, if below the limits
+            initialMStack = 256,
+            initialEStack = 32;
+    // largest method stack limit for compiled recursive code, whose calls
+    // nest on the JVM stack (2 words per call at least, a few thousand calls
+    // fit into the default thread stack)
+    static final int compiledMStack = 8000;
+    final Limits limits; // sizes up to which heap and stacks may grow
+
+    /**
+     * Sizes in words up to which the heap and the stacks of an interpreter may
+     * grow. They start small and are doubled whenever they run full.
+     */
+    public static final class Limits {
+
+        public static final Limits DEFAULT = new Limits(heapSize, mStackSize, eStackSize);
+
+        public final int heap, methodStack, exprStack;
+
+        public Limits(int heap, int methodStack, int exprStack) {
+            if (heap <= 0 || methodStack <= 0 || exprStack <= 0) {
+                throw new IllegalArgumentException("limits must be positive");
+            }
+            this.heap = heap;
+            this.methodStack = methodStack;
+            this.exprStack = exprStack;
+        }
+    }
+
+    /**
+     * Append n blanks to the output.
+     */
+    private void pad(int n) {
+        while (n > 0) {
+            if (outLen == out.length) {
+                flush();
+            }
+            int k = Math.min(n, out.length - outLen);
+            Arrays.fill(out, outLen, outLen + k, ' ');
+            outLen += k;
+            n -= k;
+        }
+    }
 
-    private void write(String s, int len) {
-        for (int i = 0; i < len; i++) {
-            io.write(' ');
+    /**
+     * Print val right-aligned in a field of the given width
+     */
+    void print(int val, int width) {
+        int n = val < 0 ? 2 : 1; // sign and digits
+        for (int v = val; v <= -10 || v >= 10; v /= 10) {
+            n++;
+        }
+        pad(width - n);
+        if (outLen + n > out.length) {
+            flush();
+        }
+        int i = outLen + n;
+        int v = val < 0 ? val : -val; // negative, so that Integer.MIN_VALUE fits
+        do {
+            out[--i] = (char) ('0' - v % 10);
+            v /= 10;
+        } while (v != 0);
+        if (val < 0) {
+            out[--i] = '-';
+        }
+        outLen += n;
+        if (debug) {
+            flush();
+        }
+    }
+
+    /**
+     * Print character val right-aligned in a field of the given width
+     */
+    void bprint(int val, int width) {
+        pad(width - 1);
+        if (outLen == out.length) {
+            flush();
         }
-        for (int i = 0; i < s.length(); i++) {
-            io.write(s.charAt(i));
+        out[outLen++] = (char) val;
+        if (debug) {
+            flush();
         }
     }
 
+    /**
+     * Pass the collected output to io. Called when the buffer is full, before
+     * every read, so that prompts appear, and at the end of a run.
+     */
+    void flush() {
+        if (outLen > 0) {
+            io.write(out, 0, outLen);
+            outLen = 0;
+        }
+    }
+
+    /**
+     * Read a char from the input stream
+     */
+    char read() {
+        flush();
+        return io.read();
+    }
+
     public static class BufferIO implements IO {
 
-        private StringBuffer output;
+        private final StringBuilder output;
         private String input;
 
         private int inputPos;
 
         public BufferIO(String input) {
-            output = new StringBuffer();
+            output = new StringBuilder();
             this.input = input;
         }
 
@@ -63,140 +171,621 @@ public class Interpreter {
             output.append(c);
         }
 
+        @Override
+        public void write(char[] buf, int off, int len) {
+            output.append(buf, off, len);
+        }
+
         public String getOutput() {
             return output.toString();
         }
     }
 
-    public static final IO ConsoleIO = new IO() {
+    /**
+     * Standard input and output.
+     */
+    public static final IO ConsoleIO = new ChannelIO(Channels.newChannel(System.in));
 
-        @Override
-        public char read() {
+    public interface IO {
+        char read();
+
+        void write(char c);
+
+        /**
+         * Read an int: skip to the next digit, read the digits and the char
+         * behind them, negate the number if a '-' preceded the digits.
+         */
+        default int readInt() {
+            int val = 0;
+            int prev = ' ';
+            int b = read();
+            while (b < '0' || b > '9') {
+                prev = b;
+                b = read();
+            }
+            while (b >= '0' && b <= '9') {
+                val = 10 * val + b - '0';
+                b = read();
+            }
+            if (prev == '-') {
+                val = -val;
+            }
+            return val;
+        }
+
+        /**
+         * True if a read, or a readInt if number is set, can return without
+         * waiting for input. Runs in slices ask before they read and stop
+         * instead of waiting, see {@link Interpreter#run(long)}.
+         */
+        default boolean ready(boolean number) {
+            return true;
+        }
+
+        /**
+         * Write len chars of buf starting at off. The interpreter collects
+         * the output of print and bprint and writes it in blocks.
+         */
+        default void write(char[] buf, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                write(buf[i]);
+            }
+        }
+    }
+
+    IO io;
+    private final char[] out = new char[8192]; // output not written to io yet, see flush
+    private int outLen;
+
+    private ExecutionListener[] listeners = {}; // see addListener
+    private Sampler sampler; // see setSampler
+    VmMonitor monitor; // see setMonitored
+    private Coverage coverage; // see setCoverage
+    private AllocationSites allocationSites; // see setAllocationSites
+    private boolean allocationEvents; // report allocations to the Flight Recorder
+
+    /**
+     * Ways of executing the loaded code.
+     */
+    public enum Engine {
+        /**
+         * Interpret the pre-decoded instruction stream.
+         */
+        INTERPRETER,
+        /**
+         * Translate all methods into JVM bytecode at load time and run that.
+         */
+        JIT,
+        /**
+         * Interpret, and compile methods and loops once they are hot.
+         */
+        TIERED,
+        /**
+         * Translate the stack code into register code at load time and
+         * interpret that.
+         */
+        REGISTER
+    }
+
+    private Engine engine = Engine.INTERPRETER;
+    private MethodHandle compiled; // bridge to main compiled by the JIT
+    private Tiering tiering; // counters and compiled code of the tiered engine
+    private RegisterCode registerCode; // code for the register engine
+    private Collector collector; // garbage collector, null if the heap is only bump allocated
+    private final int[] exprNeed; // per enter in the stream: expression stack words of the method, null if unverified
+
+    /**
+     * Outcome of a run in slices, see {@link #run(long)}.
+     */
+    public enum State {
+        /**
+         * The budget of the slice is used up.
+         */
+        SUSPENDED,
+        /**
+         * The program waits for input that is not there yet.
+         */
+        BLOCKED,
+        /**
+         * The program has returned from main.
+         */
+        FINISHED
+    }
+
+    private State state; // of the latest slice, null before the first and in plain runs
+    private int[] slicedOps; // sampled stream of runs in slices, null in plain runs
+    private int[] sliceWeights; // see ProgramImage.sliceWeights, null in plain runs
+    private long budget; // estimated instructions left of the current slice
+    private int tos; // top of the expression stack of a suspended or blocked run, see runCached
+
+    /**
+     * Select the execution engine and prepare the code for it. Debug output is
+     * only available in the interpreter, and code the other engines cannot
+     * translate is interpreted as well. So is recursive code under the JIT and
+     * tiered engines if the method stack limit allows deeper recursion than
+     * the JVM stack, see {@link #compiledMStack}. Every engine gives the same
+     * results, except that the JIT and tiered engines only bump allocate: the
+     * references in the frames of compiled code are unknown, so garbage is
+     * only collected by the interpreter and the register machine.
+     *
+     * @return the engine that will actually be used
+     */
+    public Engine setEngine(Engine engine) {
+        this.engine = Engine.INTERPRETER;
+        if (engine != Engine.INTERPRETER && !debug) {
             try {
-                int i = System.in.read();
-                if (i == -1) {
-                    return 0;
+                if (analysis == null) {
+                    throw new IllegalArgumentException("code did not verify");
                 }
-                return (char) i;
-            } catch (IOException ex) {
-                return 0;
+                if ((engine == Engine.JIT || engine == Engine.TIERED) && analysis.maxMethodStack < 0
+                        && limits.methodStack > compiledMStack) {
+                    throw new IllegalArgumentException("method stack limit too large for compiled code");
+                }
+                if (engine == Engine.JIT) {
+                    compiled = image.jitMain();
+                } else if (engine == Engine.REGISTER) {
+                    registerCode = image.registerCode();
+                } else {
+                    tiering = new Tiering(decoded, analysis);
+                }
+                this.engine = engine;
+                if (engine != Engine.REGISTER) {
+                    collector = null; // compiled code does not tag its blocks
+                }
+            } catch (IllegalArgumentException e) {
+                // not compilable, keep interpreting
             }
         }
+        return this.engine;
+    }
 
-        @Override
-        public void write(char c) {
-            System.out.print(c);
+    /**
+     * Let s take samples of the call stack. Samples are only taken in the
+     * fast interpreter loop, i.e. for verified code run by the interpreter
+     * engine without listeners.
+     */
+    void setSampler(Sampler s) {
+        sampler = s;
+    }
+
+    /**
+     * Record the blocks c executes. Coverage is only recorded in the fast
+     * interpreter loop, i.e. for verified code run by the interpreter engine
+     * without listeners.
+     */
+    void setCoverage(Coverage c) {
+        coverage = c;
+    }
+
+    /**
+     * Count the allocations of every allocation site in sites, and the live
+     * bytes after every garbage collection.
+     */
+    void setAllocationSites(AllocationSites sites) {
+        allocationSites = sites;
+        if (collector != null && sites != null) {
+            collector.trackSites();
         }
-    };
+    }
 
-    public interface IO {
-        char read();
+    /**
+     * Make the interpreter visible to JMX clients while it runs, see
+     * {@link InterpreterMXBean}. Calls and backward jumps are only counted in
+     * the fast interpreter loop, i.e. for verified code run by the interpreter
+     * engine without listeners. The register engine counts calls too.
+     */
+    public void setMonitored(boolean monitored) {
+        monitor = monitored ? new VmMonitor(this) : null;
+    }
 
-        void write(char c);
+    /**
+     * Keep the heap in native memory outside the Java heap, where every char
+     * of a char array is a single byte, or in a Java int array (the default).
+     * The two pack chars differently, so the storage can only be chosen
+     * while the heap is empty, i.e. before the program runs.
+     */
+    public void setOffHeap(boolean offHeap) throws IllegalStateException {
+        if (free > 1) {
+            throw new IllegalStateException("heap storage cannot change while the heap is in use");
+        }
+        heap = offHeap ? new Heap.OffHeap(heap.words()) : new Heap.Words(heap.words());
     }
 
-    private IO io;
+    /**
+     * Report every executed instruction to l. A program with listeners is
+     * interpreted on the traced stream whatever engine was selected.
+     */
+    void addListener(ExecutionListener l) {
+        listeners = Arrays.copyOf(listeners, listeners.length + 1);
+        listeners[listeners.length - 1] = l;
+    }
 
     public Interpreter(byte[] code, int startPC, int dataSize, IO io, boolean debug) {
-        this.code = code;
-        this.startPC = startPC;
+        this(code, startPC, dataSize, null, Limits.DEFAULT, io, debug);
+    }
+
+    /**
+     * Interpreter that collects garbage in the heap, given the reference maps
+     * the compiler writes behind the code (<code>Code.refMaps()</code>).
+     * Without valid maps the heap is only bump allocated.
+     */
+    public Interpreter(byte[] code, int startPC, int dataSize, byte[] refMaps, IO io, boolean debug) {
+        this(code, startPC, dataSize, refMaps, Limits.DEFAULT, io, debug);
+    }
+
+    /**
+     * Interpreter whose heap and stacks may grow up to the given limits.
+     */
+    public Interpreter(byte[] code, int startPC, int dataSize, byte[] refMaps, Limits limits, IO io,
+                       boolean debug) {
+        this(code, startPC, dataSize, io, debug, verify(code, startPC, dataSize, limits), refMaps, limits);
+    }
+
+    private Interpreter(byte[] code, int startPC, int dataSize, IO io, boolean debug, CodeAnalysis analysis,
+                        byte[] refMaps, Limits limits) {
+        this(code, startPC, dataSize, io, debug, analysis, readMaps(refMaps, analysis, dataSize), limits);
+    }
+
+    /**
+     * Interpreter for code that has already been verified, see
+     * {@link CodeAnalysis}. Unverified code (analysis == null) is run as well,
+     * but can fail at run time in any of the ways the verifier excludes. The
+     * heap is garbage collected if reference maps are given.
+     */
+    Interpreter(byte[] code, int startPC, int dataSize, IO io, boolean debug, CodeAnalysis analysis,
+                RefMaps maps, Limits limits) {
+        this(new ProgramImage(code, startPC, dataSize, limits, analysis, maps, Symbols.NONE, Lines.NONE), io, debug);
+    }
+
+    /**
+     * Interpreter for a loaded program. The image may be shared with other
+     * interpreters, the heap, the stacks and the global data are this
+     * interpreter's own.
+     */
+    public Interpreter(ProgramImage image, IO io, boolean debug) {
+        this.image = image;
+        this.code = image.code;
+        this.decoded = image.decoded;
+        this.analysis = image.analysis;
+        this.symbols = image.symbols;
+        this.lines = image.lines;
+        this.startPC = image.startPC;
+        this.exprNeed = image.exprNeed;
         this.io = io;
         this.debug = debug;
-        heap = new int[heapSize]; // fixed sized heap
-        data = new int[dataSize]; // global data as specified in
+        this.limits = image.limits;
+        if (debug) {
+            addListener(new Tracer());
+        }
+        heap = new Heap.Words(Math.min(limits.heap, initialHeap)); // grows up to the limit
+        data = new int[image.dataSize]; // global data as specified in
         // classfile
-        stack = new int[eStackSize]; // expression stack
-        local = new int[mStackSize]; // method stack
+        if (analysis != null && analysis.maxExprStack >= 0) {
+            // no recursion: the verifier knows the exact stack sizes
+            stack = new int[analysis.maxExprStack];
+            local = new int[analysis.maxMethodStack];
+        } else {
+            stack = new int[Math.min(limits.exprStack, initialEStack)]; // expression stack
+            local = new int[Math.min(limits.methodStack, initialMStack)]; // method stack
+        }
         fp = 0;
         sp = 0;
         esp = 0;
         free = 1; // no block should start at address 0
+        if (image.maps != null) {
+            collector = new Collector(this, decoded, image.maps);
+        }
+    }
+
+    /**
+     * Prepare the interpreter for another run of its program with io. The
+     * heap, the global data and the stacks are cleared but keep the size they
+     * have grown to, and methods the tiered engine compiled stay compiled.
+     */
+    void reset(IO io) {
+        heap.clear(1, free);
+        if (collector != null) {
+            collector.reset(free);
+        }
+        Arrays.fill(data, 0);
+        Arrays.fill(stack, 0);
+        Arrays.fill(local, 0);
+        fp = 0;
+        sp = 0;
+        esp = 0;
+        free = 1;
+        outLen = 0;
+        state = null;
+        slicedOps = null;
+        sliceWeights = null;
+        budget = 0;
+        this.io = io;
+    }
+
+    /**
+     * Verify the code, null if it does not pass.
+     */
+    private static CodeAnalysis verify(byte[] code, int startPC, int dataSize, Limits limits) {
+        try {
+            return CodeAnalysis.analyze(code, startPC, dataSize, limits);
+        } catch (FormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reference maps of verified code, null if there are none or they do not
+     * match the code.
+     */
+    private static RefMaps readMaps(byte[] refMaps, CodeAnalysis analysis, int dataSize) {
+        if (refMaps == null || analysis == null) {
+            return null;
+        }
+        try {
+            return RefMaps.read(refMaps, analysis, dataSize);
+        } catch (FormatException e) {
+            return null;
+        }
+    }
+
+    // Stack accesses are not checked explicitly: for verified code they
+    // cannot go wrong, and for other code the array bounds check of the JVM
+    // is turned into the interpreter's error. A stack that runs full is grown
+    // up to its limit.
+
+    /**
+     * Words grown to hold index i, doubled at least and at most limit.
+     */
+    private static int[] grow(int[] words, int i, int limit, String overflow) throws IllegalStateException {
+        if (i < 0 || i >= limit) {
+            throw new IllegalStateException(overflow);
+        }
+        return Arrays.copyOf(words, Math.min(limit, Math.max(i + 1, 2 * words.length)));
     }
 
     // ----- expression stack
     private void push(int val) throws IllegalStateException {
-        if (esp == eStackSize) {
+        try {
+            stack[esp] = val;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            stack = grow(stack, esp, limits.exprStack, "expression stack overflow");
+            stack[esp] = val;
+        }
+        esp++;
+    }
+
+    /**
+     * Check that n more values fit on the expression stack. Used by
+     * superinstructions that skip the intermediate pushes.
+     */
+    private void room(int esp, int n) throws IllegalStateException {
+        if (esp + n > stack.length) {
             throw new IllegalStateException("expression stack overflow");
         }
-        stack[esp++] = val;
     }
 
     private int pop() throws IllegalStateException {
-        if (esp == 0) {
+        int val;
+        try {
+            val = stack[esp - 1];
+        } catch (ArrayIndexOutOfBoundsException e) {
             throw new IllegalStateException("expression stack underflow");
         }
-        return stack[--esp];
+        esp--;
+        return val;
+    }
+
+    /**
+     * Value on top of the expression stack. Between the instructions of a
+     * run with listeners the stack is up to date.
+     */
+    int top() {
+        return stack[esp - 1];
+    }
+
+    /**
+     * Next free heap address.
+     */
+    int free() {
+        return free;
     }
 
     // ----- method stack
     private void PUSH(int val) throws IllegalStateException {
-        if (sp == mStackSize) {
-            throw new IllegalStateException("method stack overflow");
+        try {
+            local[sp] = val;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            local = grow(local, sp, limits.methodStack, "method stack overflow");
+            local[sp] = val;
         }
-        local[sp++] = val;
+        sp++;
     }
 
     private int POP() throws IllegalStateException {
-        if (sp == 0) {
+        int val;
+        try {
+            val = local[sp - 1];
+        } catch (ArrayIndexOutOfBoundsException e) {
             throw new IllegalStateException("method stack underflow");
         }
-        return local[--sp];
+        sp--;
+        return val;
+    }
+
+    // ----- debug output
+    private static int get2(byte[] code, int pc) {
+        return (short) ((code[pc] << 8) + (code[pc + 1] & 0xff));
+    }
+
+    /**
+     * Allocate heap block of size bytes
+     */
+    int alloc(int size) throws IllegalStateException {
+        int adr = bump(size);
+        allocated(-1, size); // compiled code has no code addresses
+        return adr;
+    }
+
+    private int bump(int size) throws IllegalStateException {
+        int adr = free;
+        free += ((size + 3) >> 2); // skip to next free adr
+        // (>> 2 to convert byte to word)
+        if (free > heap.words()) {
+            growHeap(free);
+        }
+        return adr;
     }
 
-    // ----- instruction fetch
-    private byte next(boolean dbgPrint) {
-        byte b = code[pc++];
-        if (debug && dbgPrint) {
-            System.out.print(b + " ");
+    /**
+     * Grow the heap to at least words words, doubling it up to the limit.
+     */
+    private void growHeap(int words) throws IllegalStateException {
+        int max = Math.min(limits.heap, heap.maxWords());
+        if (words > max) {
+            throw new IllegalStateException("heap overflow");
+        }
+        int n = (int) Math.min(max, Math.max(words, 2L * heap.words()));
+        if (n > heap.words()) {
+            heap.grow(n);
+            if (collector != null) {
+                collector.heapGrown();
+            }
         }
-        return b;
     }
 
-    private short next2(boolean dbgPrint) {
-        short s = (short) (((next(false) << 8)
-                + (next(false) & 0xff)) << 16 >> 16);
-        if (debug && dbgPrint) {
-            System.out.print(s + " ");
+    /**
+     * Allocate heap block of size bytes for the new or newarray at index idx
+     * of the stream ops, collecting garbage if it does not fit. The live part
+     * of the expression stack, without the operands of the instruction, must
+     * be in stack[bottom..top) and fp must be up to date.
+     */
+    private int alloc(int size, int[] ops, int idx, int[] stack, int bottom, int top) throws IllegalStateException {
+        int pc = decoded.pcAt(ops, idx);
+        allocated(pc, size);
+        if (collector == null) {
+            return bump(size);
         }
-        return s;
+        int words = Collector.words(size);
+        if (free + words > heap.words()) {
+            collecting();
+            free = collector.collect(ops, pc, stack, bottom, top, fp, free);
+            collected(words);
+        }
+        return tag(words, pc);
     }
 
-    private int next4() {
-        return next4(true);
+    /**
+     * Allocate heap block of size bytes for the new or newarray at code
+     * address pc in the register machine, collecting garbage if it does not
+     * fit. The frame of the allocating method starts at regs[fp], the ones of
+     * its callers are in calls[0..csp), see {@link RegisterMachine}.
+     */
+    int alloc(int size, int pc, int[] ops, int[] regs, int fp, int[] calls, int csp) throws IllegalStateException {
+        allocated(pc, size);
+        if (collector == null) {
+            return bump(size);
+        }
+        int words = Collector.words(size);
+        if (free + words > heap.words()) {
+            collecting();
+            free = collector.collect(ops, pc, regs, fp, calls, csp, free);
+            collected(words);
+        }
+        return tag(words, pc);
+    }
+
+    private void allocated(int pc, int size) {
+        if (monitor != null) {
+            monitor.allocated();
+        }
+        if (allocationEvents) {
+            VmEvents.allocation(this, pc, size);
+        }
+        if (allocationSites != null) {
+            allocationSites.record(pc, size);
+        }
     }
 
-    private int next4(boolean dbgPrint) {
-        int n = (next2(false) << 16) + (next2(false) & 0xffff);
-        if (debug && dbgPrint) {
-            System.out.print(n + " ");
+    private void collecting() {
+        if (monitor != null) {
+            monitor.collecting(free);
         }
-        return n;
     }
 
     /**
-     * Allocate heap block of size bytes
+     * Garbage has been collected before the allocation of words words.
      */
-    private int alloc(int size) throws IllegalStateException {
+    private void collected(int words) throws IllegalStateException {
+        if (allocationSites != null) {
+            allocationSites.collected(collector, free);
+        }
+        if (free + words > heap.words() || 2 * free > heap.words()) {
+            // mostly live: grow rather than collect again soon
+            growHeap(free + words);
+        }
+    }
+
+    private int tag(int words, int pc) {
         int adr = free;
-        free += ((size + 3) >> 2); // skip to next free adr
-        // (>> 2 to convert byte to word)
-        if (free > heapSize) {
-            throw new IllegalStateException("heap overflow");
+        free += words;
+        collector.tag(adr, pc);
+        return adr;
+    }
+
+    /**
+     * Allocate an array of len elements, chars if kind is 0 and words
+     * otherwise, for the newarray at index idx of ops, see alloc. Returns the
+     * reference to the array, which points behind its length word.
+     */
+    private int newArray(int kind, int len, int[] ops, int idx, int[] stack, int bottom, int top)
+            throws IllegalStateException {
+        int adr = alloc(kind == 0 ? len + 4 : len * 4 + 4, ops, idx, stack, bottom, top);
+        heap.set(adr, len);
+        return adr + 1; // skip length field of array
+    }
+
+    // ----- run-time checks, shared by the interpreter loops and the engines
+
+    /**
+     * The reference adr, which must not be null.
+     */
+    static int nonNull(int adr) throws IllegalStateException {
+        if (adr == 0) {
+            throw new IllegalStateException("null reference used");
         }
         return adr;
     }
 
+    /**
+     * The divisor val, which must not be 0.
+     */
+    static int divisor(int val) throws IllegalStateException {
+        if (val == 0) {
+            throw new IllegalStateException("division by zero");
+        }
+        return val;
+    }
+
+    /**
+     * Check that idx is an index of the array adr.
+     */
+    static void checkIndex(Heap heap, int adr, int idx) throws IllegalStateException {
+        if (idx < 0 || idx >= heap.get(nonNull(adr) - 1)) {
+            throw new IllegalStateException("index out of bounds");
+        }
+    }
+
     /**
      * Retrieve byte n from val. Byte 0 is MSB
      */
-    private static byte getByte(int val, int n) {
+    static byte getByte(int val, int n) {
         return (byte) (val << (8 * n) >>> 24);
     }
 
     /**
      * Replace byte n in val by b
      */
-    private static int setByte(int val, int n, byte b) {
+    static int setByte(int val, int n, byte b) {
         int delta = (3 - n) * 8;
         int mask = ~(255 << delta); // mask all 1 except on chosen byte
         int by = (b & 255) << delta;
@@ -206,29 +795,32 @@ public class Interpreter {
     /**
      * Read int from standard input stream
      */
-    private int readInt() {
-        int val = 0;
-        int prev = ' ';
-        int b = io.read();
-        while (b < '0' || b > '9') {
-            prev = b;
-            b = io.read();
-        }
-        while (b >= '0' && b <= '9') {
-            val = 10 * val + b - '0';
-            b = io.read();
-        }
-        if (prev == '-') {
-            val = -val;
-        }
-        return val;
+    int readInt() {
+        flush();
+        return io.readInt();
     }
 
-    private void printInstr() {
-        int op = code[pc - 1];
-        OpCode opCode = Code.OpCode.get(op);
+    /**
+     * Print the instruction starting at stream index idx together with its
+     * operands as they appear in the code array.
+     */
+    private void printInstr(int idx) {
+        int adr = decoded.pcOf[idx];
+        OpCode opCode = adr < code.length ? Code.OpCode.get(code[adr]) : null;
         String instr = (opCode != null) ? opCode.cleanName() : "???";
-        System.out.printf("%5d: %s ", pc - 1, instr);
+        System.out.printf("%5d: %s ", adr, instr);
+        if (opCode == null || adr + opCode.getOpsSize() >= code.length) {
+            return;
+        }
+        if (opCode.numOps() == 2) {
+            System.out.print(code[adr + 1] + " " + code[adr + 2] + " ");
+        } else if (opCode.getOpsSize() == 1) {
+            System.out.print(code[adr + 1] + " ");
+        } else if (opCode.getOpsSize() == 2) {
+            System.out.print(get2(code, adr + 1) + " ");
+        } else if (opCode.getOpsSize() == 4) {
+            System.out.print(((get2(code, adr + 1) << 16) + (get2(code, adr + 3) & 0xffff)) + " ");
+        }
     }
 
     private void printStack() {
@@ -238,227 +830,339 @@ public class Interpreter {
         System.out.println();
     }
 
+    /**
+     * Debug output: every instruction with its operands, followed by the
+     * expression stack after it.
+     */
+    private final class Tracer implements ExecutionListener {
+        private boolean started; // header printed
+
+        @Override
+        public void instruction(int[] ops, int idx) {
+            if (started) { // the stack after the previous instruction
+                System.out.println();
+                System.out.print("     | ");
+                printStack();
+            } else {
+                System.out.println();
+                System.out.println("  pos: instruction operands");
+                System.out.println("     | expressionstack");
+                System.out.println("-----------------------------");
+                started = true;
+            }
+            printInstr(idx);
+            if (ops[idx] == ASTORE && esp >= 3 && stack[esp - 3] != 0) {
+                int adr = stack[esp - 3];
+                System.out.println("\nArraylength = " + heap.get(adr - 1));
+                System.out.println("Address = " + adr);
+                System.out.println("Index = " + stack[esp - 2]);
+                System.out.println("Value = " + stack[esp - 1]);
+            }
+        }
+    }
+
+    /**
+     * Run main() compiled to JVM bytecode.
+     */
+    private void runCompiled() throws IllegalStateException {
+        sp = -1; // main is entered without a return address
+        try {
+            int unused = (int) compiled.invokeExact(this, 0);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        sp = 0;
+    }
+
+    /**
+     * Call the compiled method starting at stream index entry from the
+     * interpreter, with the arguments on the expression stack.
+     */
+    private void invokeCompiled(MethodHandle bridge, int entry) throws IllegalStateException {
+        CodeAnalysis.Method m = tiering.methodAt(entry);
+        esp -= m.psize; // the bridge takes the arguments from the stack
+        int result;
+        try {
+            result = (int) bridge.invokeExact(this, esp);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        if (m.returnsValue) {
+            push(result);
+        }
+    }
+
+    /**
+     * On-stack replacement: continue the current method in compiled code at
+     * the loop header at stream index target and return from it like exit and
+     * return do. Returns true if the method was main.
+     */
+    private boolean resumeCompiled(MethodHandle osr, int target) throws IllegalStateException {
+        CodeAnalysis.Method m = tiering.methodAt(target);
+        int result;
+        try {
+            // the compiled code takes over the frame, including sp
+            result = (int) osr.invokeExact(this, esp, decoded.pcOf[target]);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+        sp = fp;
+        fp = POP();
+        if (sp == 0) {
+            return true;
+        }
+        pc = POP();
+        if (m.returnsValue) {
+            push(result);
+        }
+        return false;
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof StackOverflowError) { // compiled calls nest deeper than the JVM stack of this thread allows
+            return new IllegalStateException("method stack overflow");
+        }
+        if (e instanceof RuntimeException) {
+            return (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        return new IllegalStateException(e);
+    }
+
     // ----- actual interpretation
+
+    /**
+     * Run the program with the selected engine. Flight Recorder events that
+     * are enabled when the run starts are reported, see {@link VmEvents}. A
+     * program that has run in slices cannot be run this way.
+     */
     public void run() throws IllegalStateException {
-        Code.OpCode op;
-        int adr, val, val2, off, idx, len, i;
-        pc = startPC;
+        if (state != null) {
+            throw new IllegalStateException("program runs in slices");
+        }
+        allocationEvents = VmEvents.allocationsEnabled();
+        VmEvents.BurstIO bursts = null;
+        if (VmEvents.ioBurstsEnabled()) {
+            bursts = new VmEvents.BurstIO(io);
+            io = bursts;
+        }
+        Sampler recorder = null;
+        if (sampler == null && VmEvents.methodSamplesEnabled()) {
+            recorder = new Sampler(this, 20000, false);
+            sampler = recorder;
+            recorder.start();
+        }
+        if (monitor != null) {
+            monitor.start(engine, analysis != null ? analysis.methodEntry(startPC) : null);
+        }
+        try {
+            execute();
+        } catch (RuntimeException e) {
+            VmEvents.error(e.getMessage(), engine);
+            throw e;
+        } finally {
+            flush();
+            if (bursts != null) {
+                bursts.close();
+                io = bursts.io;
+            }
+            if (recorder != null) {
+                recorder.stop();
+                sampler = null;
+            }
+            if (monitor != null) {
+                monitor.stop();
+            }
+        }
+    }
 
-        if (debug) { // header for debug output
-            System.out.println();
-            System.out.println("  pos: instruction operands");
-            System.out.println("     | expressionstack");
-            System.out.println("-----------------------------");
+    /**
+     * Run the program for a slice of about maxInstructions instructions, or
+     * until it would wait for input, and return why it stopped. The next call
+     * continues where the previous one stopped. The budget is checked at
+     * backward jumps and calls only, where the executed instructions are
+     * estimated by the length of the loop or of the called method (see
+     * {@link ProgramImage#sliceWeights}), so a slice may run a little over it.
+     * A read stops the slice if {@link IO#ready} says the input is not there
+     * yet and is executed again in the next slice. Runs in slices interpret
+     * the code whatever engine was selected, and need verified code without
+     * backward conditional jumps, listeners, samplers, monitors or coverage.
+     */
+    public State run(long maxInstructions) throws IllegalStateException {
+        if (analysis == null || image.backwardBranches || listeners.length > 0 || sampler != null
+                || monitor != null || coverage != null) {
+            throw new IllegalStateException("program cannot run in slices");
+        }
+        if (state == State.FINISHED) {
+            throw new IllegalStateException("program has finished");
+        }
+        if (slicedOps == null) {
+            slicedOps = image.sampled();
+            sliceWeights = image.sliceWeights();
         }
+        allocationEvents = VmEvents.allocationsEnabled();
+        budget = maxInstructions;
+        try {
+            state = runCached();
+        } catch (RuntimeException e) {
+            state = State.FINISHED;
+            VmEvents.error(e.getMessage(), engine);
+            throw e;
+        } finally {
+            flush();
+        }
+        return state;
+    }
 
-        for (; ; ) { // terminated by return instruction
-            op = Code.OpCode.get(next(false));
-            if (debug) {
-                printInstr();
+    /**
+     * Run the program with the selected engine. The loop below interprets
+     * the streams without superinstructions, i.e. code with listeners (the
+     * traced stream), code of the tiered engine before it is compiled (the
+     * counted stream) and code that did not verify (the plain stream), which
+     * is run with all checks. Plain runs of verified code go through the
+     * faster {@link #runCached}.
+     */
+    private void execute() throws IllegalStateException {
+        if (listeners.length == 0) {
+            if (engine == Engine.JIT) {
+                runCompiled();
+                return;
+            }
+            if (engine == Engine.REGISTER) {
+                new RegisterMachine(this, registerCode).run();
+                return;
             }
+            if (engine == Engine.INTERPRETER && analysis != null) {
+                if (runCached() != State.FINISHED) { // only runs in slices stop early
+                    throw new IllegalStateException("program stopped before the end");
+                }
+                return;
+            }
+        }
+        int op, adr, val, val2, target, idx, len, i;
+        MethodHandle h;
+        int[] ops = listeners.length > 0 ? decoded.traced() : engine == Engine.TIERED ? tiering.ops : decoded.ops;
+        pc = listeners.length > 0 ? decoded.tracedIndex(decoded.indexOf[startPC]) : decoded.indexOf[startPC];
+
+        for (; ; ) { // terminated by return instruction
+            op = ops[pc++];
 
             switch (op) {
 
                 // load/store local variables
-                case load:
-                    push(local[fp + next(true)]);
-                    break;
-                case load_0:
-                case load_1:
-                case load_2:
-                case load_3:
-                    push(local[fp + op.code() - Code.OpCode.load_0.code()]); // mapping
-                    // on
-                    // range
-                    // 0..3
-                    break;
-                case store:
-                    local[fp + next(true)] = pop();
-                    break;
-                case store_0:
-                case store_1:
-                case store_2:
-                case store_3:
-                    local[fp + op.code() - Code.OpCode.store_0.code()] = pop(); // mapping
-                    // on
-                    // range
-                    // 0..3
+                case LOAD:
+                    push(local[fp + ops[pc++]]);
+                    break;
+                case STORE:
+                    local[fp + ops[pc++]] = pop();
                     break;
 
                 // load/store global variables
-                case getstatic:
-                    push(data[next2(true)]);
+                case GETSTATIC:
+                    push(data[ops[pc++]]);
                     break;
-                case putstatic:
-                    data[next2(true)] = pop();
+                case PUTSTATIC:
+                    data[ops[pc++]] = pop();
                     break;
 
                 // load/store object fields
-                case getfield:
-                    adr = pop();
-                    if (adr == 0) {
-                        throw new IllegalStateException("null reference used");
-                    }
-                    push(heap[adr + next2(true)]);
+                case GETFIELD:
+                    adr = nonNull(pop());
+                    push(heap.get(adr + ops[pc++]));
                     break;
-                case putfield:
+                case PUTFIELD:
                     val = pop();
-                    adr = pop();
-                    if (adr == 0) {
-                        throw new IllegalStateException("null reference used");
-                    }
-                    heap[adr + next2(true)] = val;
+                    adr = nonNull(pop());
+                    heap.set(adr + ops[pc++], val);
                     break;
 
                 // load constants
-                case const_0:
-                case const_1:
-                case const_2:
-                case const_3:
-                case const_4:
-                case const_5:
-                    push(op.code() - Code.OpCode.const_0.code()); // map opcode to
-                    // 0..5
-                    break;
-                case const_m1:
-                    push(-1);
-                    break;
-                case const_:
-                    push(next4());
+                case CONST:
+                    push(ops[pc++]);
                     break;
 
                 // arithmetic operations
-                case add:
+                case ADD:
                     push(pop() + pop());
                     break;
-                case sub:
+                case SUB:
                     push(-pop() + pop());
                     break;
-                case mul:
+                case MUL:
                     push(pop() * pop());
                     break;
-                case div:
-                    val = pop();
-                    if (val == 0) {
-                        throw new IllegalStateException("division by zero");
-                    }
+                case DIV:
+                    val = divisor(pop());
                     push(pop() / val);
                     break;
-                case rem:
-                    val = pop();
-                    if (val == 0) {
-                        throw new IllegalStateException("division by zero");
-                    }
+                case REM:
+                    val = divisor(pop());
                     push(pop() % val);
                     break;
-                case neg:
+                case NEG:
                     push(-pop());
                     break;
-                case shl:
+                case SHL:
                     val = pop();
                     push(pop() << val);
                     break;
-                case shr:
+                case SHR:
                     val = pop();
                     push(pop() >> val);
                     break;
-                case inc:
-                    off = fp + next(true);
-                    local[off] += next(true);
+                case INC:
+                    local[fp + ops[pc]] += ops[pc + 1];
+                    pc += 2;
                     break;
 
                 // object creation
-                case new_:
-                    push(alloc(next2(true) * 4));
+                case NEW:
+                    push(alloc(ops[pc], ops, pc - 1, stack, 0, esp));
+                    pc++;
                     break;
-                case newarray:
-                    val = next(true);
+                case NEWARRAY:
+                    val = ops[pc++];
                     len = pop();
-                    if (val == 0) {
-                        adr = alloc(len + 4);
-                    } else {
-                        adr = alloc(len * 4 + 4);
-                    }
-                    heap[adr] = len;
-                    push(adr + 1); // skip length field of array
+                    push(newArray(val, len, ops, pc - 2, stack, 0, esp));
                     break;
 
                 // array access
-                case aload:
+                case ALOAD:
+                case BALOAD:
                     idx = pop();
                     adr = pop();
-                    if (adr == 0) {
-                        throw new IllegalStateException("null reference used");
-                    }
-                    len = heap[adr - 1];
-                    if (idx < 0 || idx >= len) {
-                        throw new IllegalStateException("index out of bounds");
-                    }
-                    push(heap[adr + idx]);
-                    break;
-                case astore:
-                    val = pop();
-                    idx = pop();
-                    adr = pop();
-                    if (adr == 0) {
-                        throw new IllegalStateException("null reference used");
-                    }
-                    len = heap[adr - 1];
-                    if (debug) {
-                        System.out.println("\nArraylength = " + len);
-                        System.out.println("Address = " + adr);
-                        System.out.println("Index = " + idx);
-                        System.out.println("Value = " + val);
-                    }
-                    if (idx < 0 || idx >= len) {
-                        throw new IllegalStateException("index out of bounds");
-                    }
-                    heap[adr + idx] = val;
-                    break;
-                case baload:
-                    idx = pop();
-                    adr = pop();
-                    if (adr == 0) {
-                        throw new IllegalStateException("null reference used");
-                    }
-                    len = heap[adr - 1];
-                    if (idx < 0 || idx >= len) {
-                        throw new IllegalStateException("index out of bounds");
-                    }
-                    push(getByte(heap[adr + idx / 4], idx % 4));
+                    checkIndex(heap, adr, idx);
+                    push(op == ALOAD ? heap.get(adr + idx) : heap.getByte(adr, idx));
                     break;
-                case bastore:
+                case ASTORE:
+                case BASTORE:
                     val = pop();
                     idx = pop();
                     adr = pop();
-                    if (adr == 0) {
-                        throw new IllegalStateException("null reference used");
-                    }
-                    len = heap[adr - 1];
-                    if (idx < 0 || idx >= len) {
-                        throw new IllegalStateException("index out of bounds");
+                    checkIndex(heap, adr, idx);
+                    if (op == ASTORE) {
+                        heap.set(adr + idx, val);
+                    } else {
+                        heap.setByte(adr, idx, (byte) val);
                     }
-                    heap[adr + idx / 4] = setByte(heap[adr + idx / 4], idx % 4,
-                            (byte) val);
                     break;
-                case arraylength:
-                    adr = pop();
-                    if (adr == 0) {
-                        throw new IllegalStateException("null reference used");
-                    }
-                    push(heap[adr - 1]);
+                case ARRAYLENGTH:
+                    adr = nonNull(pop());
+                    push(heap.get(adr - 1));
                     break;
 
                 // stack manipulation
-                case pop:
+                case POP:
                     pop();
                     break;
-                case dup:
+                case DUP:
                     val = pop();
                     push(val);
                     push(val);
                     break;
-                case dup2:
+                case DUP2:
                     val = pop();
                     val2 = pop();
                     push(val2);
@@ -467,65 +1171,69 @@ public class Interpreter {
                     push(val);
                     break;
 
-                // jumps
-                case jmp:
-                    off = next2(true);
-                    pc += off - 3;
+                // jumps (operand is the absolute target index)
+                case JMP:
+                    pc = ops[pc];
                     break;
-
-                case jeq:
-                case jne:
-                case jlt:
-                case jle:
-                case jgt:
-                case jge:
-                    off = next2(true);
+                case JEQ:
+                    target = ops[pc++];
                     val2 = pop();
-                    val = pop();
-                    boolean cond = false;
-                    switch (op) {
-                        case jeq:
-                            cond = val == val2;
-                            break;
-                        case jne:
-                            cond = val != val2;
-                            break;
-                        case jlt:
-                            cond = val < val2;
-                            break;
-                        case jle:
-                            cond = val <= val2;
-                            break;
-                        case jgt:
-                            cond = val > val2;
-                            break;
-                        case jge:
-                            cond = val >= val2;
-                            break;
-                        default:
-                            assert false;
+                    if (pop() == val2) {
+                        pc = target;
                     }
-                    if (cond) {
-                        pc += off - 3;
+                    break;
+                case JNE:
+                    target = ops[pc++];
+                    val2 = pop();
+                    if (pop() != val2) {
+                        pc = target;
+                    }
+                    break;
+                case JLT:
+                    target = ops[pc++];
+                    val2 = pop();
+                    if (pop() < val2) {
+                        pc = target;
+                    }
+                    break;
+                case JLE:
+                    target = ops[pc++];
+                    val2 = pop();
+                    if (pop() <= val2) {
+                        pc = target;
+                    }
+                    break;
+                case JGT:
+                    target = ops[pc++];
+                    val2 = pop();
+                    if (pop() > val2) {
+                        pc = target;
+                    }
+                    break;
+                case JGE:
+                    target = ops[pc++];
+                    val2 = pop();
+                    if (pop() >= val2) {
+                        pc = target;
                     }
                     break;
 
                 // method calls
-                case call:
-                    off = next2(true);
+                case CALL:
+                    target = ops[pc++];
                     PUSH(pc);
-                    pc += off - 3;
+                    pc = target;
                     break;
 
-                case return_:
+                case RETURN:
                     if (sp == 0) {
                         return;
                     }
                     pc = POP();
                     break;
-                case enter:
-                    int psize = next(true);
-                    int lsize = next(true);
+                case ENTER:
+                    int psize = ops[pc++];
+                    int lsize = ops[pc++];
                     PUSH(fp);
                     fp = sp;
                     for (i = 0; i < lsize; i++) {
@@ -536,44 +1244,529 @@ public class Interpreter {
                         local[fp + i] = pop();
                     }
                     break;
-                case exit:
+                case EXIT:
                     sp = fp;
                     fp = POP();
                     break;
 
                 // I/O
-                case read:
+                case READ:
                     push(readInt());
                     break;
 
-                case print:
+                case PRINT:
                     len = pop();
-                    val = pop();
-                    String s = new Integer(val).toString();
-                    len = len - s.length();
-                    write(s, len);
+                    print(pop(), len);
                     break;
-                case bread:
-                    push(io.read());
+                case BREAD:
+                    push(read());
                     break;
-                case bprint:
-                    len = pop() - 1;
-                    val = pop();
-                    write(Character.toString((char) val), len);
+                case BPRINT:
+                    len = pop();
+                    bprint(pop(), len);
                     break;
-                case nop:
+                case NOP:
                     // nothing to do
                     break;
-                case trap:
-                    throw new IllegalStateException("trap(" + next(true) + ")");
+                case TRAP:
+                    throw new IllegalStateException("trap(" + ops[pc] + ")");
+                case ILLEGAL:
+                    throw new IllegalStateException("wrong opcode " + ops[pc]);
+                case BAD_TARGET:
+                    throw new IllegalStateException("jump to invalid address " + ops[pc]);
+                case END:
+                    throw new IllegalStateException("pc outside of code area");
+
+                // tiered execution (counted stream only)
+                case LOOP:
+                    target = ops[pc];
+                    h = tiering.loop(pc - 1, target);
+                    if (h == null) {
+                        pc = target;
+                    } else if (resumeCompiled(h, target)) {
+                        return;
+                    }
+                    break;
+                case INVOKE:
+                    target = ops[pc++];
+                    h = tiering.call(target);
+                    if (h == null) {
+                        PUSH(pc);
+                        pc = target;
+                    } else {
+                        invokeCompiled(h, target);
+                    }
+                    break;
+                // instrumented execution (traced stream only)
+                case TRACE:
+                    for (ExecutionListener l : listeners) {
+                        l.instruction(decoded.ops, ops[pc]);
+                    }
+                    pc++;
+                    break;
                 default:
-                    throw new IllegalStateException("wrong opcode " + op);
+                    throw new IllegalStateException("wrong handler " + op);
             }
-            if (debug) {
-                System.out.println();
-                System.out.print("     | ");
-                printStack();
+        }
+    }
+
+    /**
+     * Store the cached top of stack at stack[idx] when a value is pushed on
+     * top of it.
+     */
+    private static void spill(int[] stack, int idx, int tos) throws IllegalStateException {
+        try {
+            stack[idx] = tos;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException("expression stack overflow");
+        }
+    }
+
+    /**
+     * The interpreter loop for plain runs of verified code (no tracing,
+     * mining or tiering). The registers used by almost every instruction, pc
+     * and fp, live in local variables of the loop and are stored into their
+     * fields only before I/O and when the program fails, see {@link #sync};
+     * sp and the memory arrays stay in fields, as more loop-carried locals
+     * only make the JIT spill them. The top of the expression stack is
+     * cached as well: tos is the top value if esp &gt; 0 and stack[i + 1]
+     * holds the value at depth i below it, so stack[0] only receives the
+     * meaningless tos of an empty stack. Operations on the two top values
+     * read one of them from the array, and pushes and pops move only one
+     * value between the local and the array. Verified code cannot underflow
+     * a stack, so pops need no check. Runs in slices return from the loop
+     * before they are done, see {@link #run(long)}.
+     */
+    private State runCached() throws IllegalStateException {
+        Sampler sampler = this.sampler;
+        VmMonitor monitor = this.monitor;
+        int[] ops = sampler != null ? sampler.ops : monitor != null ? monitor.ops
+                : slicedOps != null ? slicedOps : decoded.fused;
+        Coverage coverage = this.coverage;
+        if (coverage != null) {
+            ops = coverage.probe(ops);
+        }
+        int[] stack = this.stack;
+        boolean resumed = state == State.SUSPENDED || state == State.BLOCKED;
+        int pc = resumed ? this.pc : decoded.indexOf[startPC];
+        int fp = this.fp;
+        int esp = resumed ? this.esp : 0; // number of values on the stack, including tos
+        int tos = resumed ? this.tos : 0;
+        int op, adr, val, val2, target, idx, i;
+
+        try {
+            for (; ; ) { // terminated by return instruction
+                op = ops[pc++];
+
+                switch (op) {
+
+                    // load/store local variables
+                    case LOAD:
+                        spill(stack, esp++, tos);
+                        tos = local[fp + ops[pc++]];
+                        break;
+                    case STORE:
+                        local[fp + ops[pc++]] = tos;
+                        tos = stack[--esp];
+                        break;
+
+                    // load/store global variables
+                    case GETSTATIC:
+                        spill(stack, esp++, tos);
+                        tos = data[ops[pc++]];
+                        break;
+                    case PUTSTATIC:
+                        data[ops[pc++]] = tos;
+                        tos = stack[--esp];
+                        break;
+
+                    // load/store object fields
+                    case GETFIELD:
+                        tos = heap.get(nonNull(tos) + ops[pc++]);
+                        break;
+                    case PUTFIELD:
+                        adr = nonNull(stack[--esp]);
+                        heap.set(adr + ops[pc++], tos);
+                        tos = stack[--esp];
+                        break;
+
+                    // load constants
+                    case CONST:
+                        spill(stack, esp++, tos);
+                        tos = ops[pc++];
+                        break;
+
+                    // arithmetic operations
+                    case ADD:
+                        tos = stack[--esp] + tos;
+                        break;
+                    case SUB:
+                        tos = stack[--esp] - tos;
+                        break;
+                    case MUL:
+                        tos = stack[--esp] * tos;
+                        break;
+                    case DIV:
+                        tos = stack[--esp] / divisor(tos);
+                        break;
+                    case REM:
+                        tos = stack[--esp] % divisor(tos);
+                        break;
+                    case NEG:
+                        tos = -tos;
+                        break;
+                    case SHL:
+                        tos = stack[--esp] << tos;
+                        break;
+                    case SHR:
+                        tos = stack[--esp] >> tos;
+                        break;
+                    case INC:
+                        local[fp + ops[pc]] += ops[pc + 1];
+                        pc += 2;
+                        break;
+
+                    // object creation
+                    case NEW:
+                        if (collector == null) {
+                            val = alloc(ops[pc], ops, pc - 1, stack, 1, esp);
+                        } else { // the collector has to see and update tos
+                            spill(stack, esp, tos);
+                            sync(pc, fp);
+                            val = alloc(ops[pc], ops, pc - 1, stack, 1, esp + 1);
+                            tos = stack[esp];
+                        }
+                        pc++;
+                        spill(stack, esp++, tos);
+                        tos = val;
+                        break;
+                    case NEWARRAY:
+                        val = ops[pc++];
+                        sync(pc, fp);
+                        tos = newArray(val, tos, ops, pc - 2, stack, 1, esp);
+                        break;
+
+                    // array access
+                    case ALOAD:
+                    case BALOAD:
+                        idx = tos;
+                        adr = stack[--esp];
+                        checkIndex(heap, adr, idx);
+                        tos = op == ALOAD ? heap.get(adr + idx) : heap.getByte(adr, idx);
+                        break;
+                    case ASTORE:
+                    case BASTORE:
+                        val = tos;
+                        idx = stack[--esp];
+                        adr = stack[--esp];
+                        checkIndex(heap, adr, idx);
+                        if (op == ASTORE) {
+                            heap.set(adr + idx, val);
+                        } else {
+                            heap.setByte(adr, idx, (byte) val);
+                        }
+                        tos = stack[--esp];
+                        break;
+                    case ARRAYLENGTH:
+                        tos = heap.get(nonNull(tos) - 1);
+                        break;
+
+                    // stack manipulation
+                    case POP:
+                        tos = stack[--esp];
+                        break;
+                    case DUP:
+                        spill(stack, esp++, tos);
+                        break;
+                    case DUP2:
+                        val2 = stack[esp - 1];
+                        spill(stack, esp++, tos);
+                        spill(stack, esp++, val2);
+                        break;
+
+                    // jumps (operand is the absolute target index)
+                    case JMP:
+                        pc = ops[pc];
+                        break;
+                    case JEQ:
+                        val2 = tos;
+                        val = stack[--esp];
+                        tos = stack[--esp];
+                        pc = val == val2 ? ops[pc] : pc + 1;
+                        break;
+                    case JNE:
+                        val2 = tos;
+                        val = stack[--esp];
+                        tos = stack[--esp];
+                        pc = val != val2 ? ops[pc] : pc + 1;
+                        break;
+                    case JLT:
+                        val2 = tos;
+                        val = stack[--esp];
+                        tos = stack[--esp];
+                        pc = val < val2 ? ops[pc] : pc + 1;
+                        break;
+                    case JLE:
+                        val2 = tos;
+                        val = stack[--esp];
+                        tos = stack[--esp];
+                        pc = val <= val2 ? ops[pc] : pc + 1;
+                        break;
+                    case JGT:
+                        val2 = tos;
+                        val = stack[--esp];
+                        tos = stack[--esp];
+                        pc = val > val2 ? ops[pc] : pc + 1;
+                        break;
+                    case JGE:
+                        val2 = tos;
+                        val = stack[--esp];
+                        tos = stack[--esp];
+                        pc = val >= val2 ? ops[pc] : pc + 1;
+                        break;
+
+                    // method calls
+                    case CALL:
+                        target = ops[pc++];
+                        PUSH(pc);
+                        pc = target;
+                        break;
+
+                    case RETURN:
+                        if (sp == 0) {
+                            sync(pc, fp);
+                            return State.FINISHED;
+                        }
+                        pc = POP();
+                        break;
+                    case ENTER:
+                        int psize = ops[pc++];
+                        int lsize = ops[pc++];
+                        PUSH(fp);
+                        fp = sp;
+                        for (i = 0; i < lsize; i++) {
+                            PUSH(0);
+                        }
+                        for (i = psize - 1; i >= 0; i--) {
+                            local[fp + i] = tos;
+                            tos = stack[--esp];
+                        }
+                        val = esp + exprNeed[pc - 3];
+                        if (val >= stack.length && stack.length < limits.exprStack) {
+                            stack = this.stack = grow(stack, Math.min(val, limits.exprStack - 1), limits.exprStack,
+                                    "expression stack overflow");
+                        }
+                        break;
+                    case EXIT:
+                        sp = fp;
+                        fp = POP();
+                        break;
+
+                    // I/O
+                    case READ:
+                        if (sliceWeights != null && !io.ready(true)) {
+                            return suspend(pc - 1, fp, esp, tos, State.BLOCKED); // read again when resumed
+                        }
+                        sync(pc, fp);
+                        val = readInt();
+                        spill(stack, esp++, tos);
+                        tos = val;
+                        break;
+                    case PRINT:
+                        sync(pc, fp);
+                        val = stack[--esp];
+                        print(val, tos);
+                        tos = stack[--esp];
+                        break;
+                    case BREAD:
+                        if (sliceWeights != null && !io.ready(false)) {
+                            return suspend(pc - 1, fp, esp, tos, State.BLOCKED);
+                        }
+                        sync(pc, fp);
+                        val = read();
+                        spill(stack, esp++, tos);
+                        tos = val;
+                        break;
+                    case BPRINT:
+                        sync(pc, fp);
+                        val = stack[--esp];
+                        bprint(val, tos);
+                        tos = stack[--esp];
+                        break;
+                    case NOP:
+                        // nothing to do
+                        break;
+                    case TRAP:
+                        throw new IllegalStateException("trap(" + ops[pc] + ")");
+
+                    // superinstructions
+                    case LOAD_LOAD_ADD:
+                        room(esp, 2);
+                        stack[esp++] = tos;
+                        tos = local[fp + ops[pc]] + local[fp + ops[pc + 2]];
+                        pc += 4;
+                        break;
+                    case LOAD_CONST_ADD:
+                        room(esp, 2);
+                        stack[esp++] = tos;
+                        tos = local[fp + ops[pc]] + ops[pc + 2];
+                        pc += 4;
+                        break;
+                    case LOAD_CONST_SUB:
+                        room(esp, 2);
+                        stack[esp++] = tos;
+                        tos = local[fp + ops[pc]] - ops[pc + 2];
+                        pc += 4;
+                        break;
+                    case LOAD_LOAD_ALOAD:
+                    case GETSTATIC_LOAD_ALOAD:
+                        room(esp, 2);
+                        adr = op == LOAD_LOAD_ALOAD ? local[fp + ops[pc]] : data[ops[pc]];
+                        idx = local[fp + ops[pc + 2]];
+                        checkIndex(heap, adr, idx);
+                        stack[esp++] = tos;
+                        tos = heap.get(adr + idx);
+                        pc += 4;
+                        break;
+                    case LOAD_LOAD_JEQ:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] == local[fp + ops[pc + 2]] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_LOAD_JNE:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] != local[fp + ops[pc + 2]] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_LOAD_JLT:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] < local[fp + ops[pc + 2]] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_LOAD_JLE:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] <= local[fp + ops[pc + 2]] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_LOAD_JGT:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] > local[fp + ops[pc + 2]] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_LOAD_JGE:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] >= local[fp + ops[pc + 2]] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_CONST_JEQ:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] == ops[pc + 2] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_CONST_JNE:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] != ops[pc + 2] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_CONST_JLT:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] < ops[pc + 2] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_CONST_JLE:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] <= ops[pc + 2] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_CONST_JGT:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] > ops[pc + 2] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_CONST_JGE:
+                        room(esp, 2);
+                        pc = local[fp + ops[pc]] >= ops[pc + 2] ? ops[pc + 4] : pc + 5;
+                        break;
+                    case LOAD_LOAD:
+                        spill(stack, esp++, tos);
+                        spill(stack, esp++, local[fp + ops[pc]]);
+                        tos = local[fp + ops[pc + 2]];
+                        pc += 3;
+                        break;
+                    case LOAD_CONST:
+                        spill(stack, esp++, tos);
+                        spill(stack, esp++, local[fp + ops[pc]]);
+                        tos = ops[pc + 2];
+                        pc += 3;
+                        break;
+                    case ADD_STORE:
+                        local[fp + ops[pc + 1]] = stack[--esp] + tos;
+                        tos = stack[--esp];
+                        pc += 2;
+                        break;
+                    case INC_JMP:
+                        local[fp + ops[pc]] += ops[pc + 1];
+                        pc = ops[pc + 3];
+                        break;
+                    case EXIT_RETURN:
+                        sp = fp;
+                        fp = POP();
+                        if (sp == 0) {
+                            sync(pc, fp);
+                            return State.FINISHED;
+                        }
+                        pc = POP();
+                        break;
+
+                    // sampled, monitored or sliced execution (sampled stream only)
+                    case SAMPLE_JMP:
+                        if (monitor != null) {
+                            monitor.jump(pc - 1);
+                        }
+                        if (sampler != null && sampler.due) {
+                            sampler.sample(pc - 1, fp);
+                        }
+                        if (sliceWeights != null && (budget -= sliceWeights[pc - 1]) <= 0) {
+                            return suspend(ops[pc], fp, esp, tos, State.SUSPENDED);
+                        }
+                        pc = ops[pc];
+                        break;
+                    case SAMPLE_CALL:
+                        target = ops[pc++];
+                        if (monitor != null) {
+                            // frame of the callee: return address, saved fp and locals
+                            monitor.call(pc - 2, sp + 2 + ops[target + 2], esp - ops[target + 1] + exprNeed[target]);
+                        }
+                        if (sampler != null && sampler.due) {
+                            sampler.sample(pc - 2, fp);
+                        }
+                        PUSH(pc);
+                        if (sliceWeights != null && (budget -= sliceWeights[pc - 2]) <= 0) {
+                            return suspend(target, fp, esp, tos, State.SUSPENDED);
+                        }
+                        pc = target;
+                        break;
+
+                    // covered execution: first instruction of a block not visited yet
+                    case COVER:
+                        coverage.visit(--pc); // then execute the original handler
+                        break;
+                    default:
+                        throw new IllegalStateException("wrong handler " + op);
+                }
             }
+        } catch (RuntimeException e) {
+            sync(pc, fp);
+            throw e;
         }
     }
+
+    /**
+     * Store the registers that {@link #runCached} keeps in local variables
+     * into their fields.
+     */
+    private void sync(int pc, int fp) {
+        this.pc = pc;
+        this.fp = fp;
+    }
+
+    /**
+     * Store the registers of {@link #runCached}, which continues at pc when
+     * the program is resumed, and return s.
+     */
+    private State suspend(int pc, int fp, int esp, int tos, State s) {
+        sync(pc, fp);
+        this.esp = esp;
+        this.tos = tos;
+        return s;
+    }
 }
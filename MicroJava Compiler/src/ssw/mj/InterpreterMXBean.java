@@ -0,0 +1,73 @@
+// MicroJava Virtual Machine
+// -------------------------
+// JMX view of a running interpreter
+// ===========================================================================
+package ssw.mj;
+
+/**
+ * Live metrics of an interpreter, see {@link Interpreter#setMonitored}. Sizes
+ * are in words. Counts and high-water marks are published by the running
+ * program every few thousand counted steps, so they may lag slightly behind.
+ * The interpreter engine counts calls and backward jumps, the register engine
+ * counts calls. Code compiled by the JIT and tiered engines counts nothing
+ * and only publishes the heap values every few thousand allocations; the
+ * other values stay at their start until the run ends.
+ */
+public interface InterpreterMXBean {
+
+    /**
+     * Engine that runs the program.
+     */
+    String getEngine();
+
+    /**
+     * Milliseconds since the program was started.
+     */
+    long getElapsedMillis();
+
+    /**
+     * Backward jumps taken, i.e. loop iterations. Counted in the interpreter
+     * engine only.
+     */
+    long getBackwardJumps();
+
+    /**
+     * Methods called. Counted in the interpreter and register engines.
+     */
+    long getCalls();
+
+    /**
+     * Estimated instructions executed: the length of the loop at every
+     * backward jump and the length of the called method at every call, see
+     * {@link ProgramImage#sliceWeights}. Counted in the interpreter engine
+     * only.
+     */
+    long getInstructions();
+
+    /**
+     * Next free heap address.
+     */
+    int getHeapFree();
+
+    /**
+     * Highest free heap address so far, including garbage that was collected
+     * since.
+     */
+    int getHeapHighWater();
+
+    /**
+     * Current size of the heap.
+     */
+    int getHeapSize();
+
+    /**
+     * Most method stack words used by frames at the same time.
+     */
+    int getMethodStackHighWater();
+
+    /**
+     * Most expression stack words the active methods could use at the same
+     * time, according to the verifier.
+     */
+    int getExprStackHighWater();
+}
@@ -0,0 +1,721 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Translation of MicroJava methods into JVM bytecode
+// ===========================================================================
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates a MicroJava method and all methods it may call into a JVM class
+ * that is loaded as a hidden class next to the interpreter. Every MicroJava
+ * method becomes a static method <code>m&lt;entry&gt;</code> whose JVM
+ * operand stack plays the role of the expression stack and whose JVM locals
+ * hold the MicroJava locals. Arguments are passed on the JVM stack in
+ * MicroJava order, followed by the interpreter instance and the expression
+ * stack base of the callee:
+ *
+ * <pre>
+ *   static int|void m&lt;entry&gt;(int a0, ..., int a(psize-1), Interpreter vm, int base)
+ * </pre>
+ *
+ * Two kinds of entries are added for the interpreter, which both return 0 for
+ * void methods:
+ *
+ * <pre>
+ *   static int b&lt;entry&gt;(Interpreter vm, int base)
+ *   static int o&lt;entry&gt;(Interpreter vm, int base, int target)
+ * </pre>
+ *
+ * The bridge <code>b</code> takes the arguments from the interpreter's
+ * expression stack at base. The on-stack replacement entry <code>o</code>
+ * (only for the root method, if it has loops) takes over the interpreted
+ * frame of the method, which must be the current one, and continues at the
+ * loop header with address target. Loop headers qualify if the expression
+ * stack is empty there, which holds for all loops of the MicroJava compiler.
+ *
+ * Memory accesses, allocation and I/O go through {@link JitRuntime}, so that
+ * heap layout, traps and output are the same as in the interpreter. The
+ * interpreter's stack limits are emulated: every method reserves its frame on
+ * the method stack and checks its expression stack depth (known statically
+ * from {@link CodeAnalysis}) against the depth left by its callers. Programs
+ * without recursion are known not to overflow and skip these checks.
+ * <p>
+ * The class file uses version 49, so no stack map frames are needed.
+ */
+final class JitCompiler {
+
+    private static final String CLASS = "ssw/mj/JitCode";
+    private static final String RUNTIME = "ssw/mj/JitRuntime";
+    private static final String VM = "Lssw/mj/Interpreter;";
+
+    // ----- JVM opcodes
+    private static final int ACONST_NULL = 0x01, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13,
+            ILOAD = 0x15, ALOAD = 0x19, ISTORE = 0x36, ASTORE = 0x3a, POP = 0x57, DUP = 0x59, DUP2 = 0x5c,
+            IADD = 0x60, ISUB = 0x64, IMUL = 0x68, INEG = 0x74, ISHL = 0x78, ISHR = 0x7a, IINC = 0x84,
+            IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3,
+            IF_ICMPLE = 0xa4, GOTO = 0xa7, LOOKUPSWITCH = 0xab, IRETURN = 0xac, RETURN = 0xb1, INVOKESTATIC = 0xb8,
+            ATHROW = 0xbf;
+
+    private final CodeAnalysis analysis;
+    private final byte[] code;
+
+    // constant pool
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolSize = 1;
+
+    // code of the method being translated
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private int[] label; // JVM offset of every MicroJava instruction, -1 if not emitted
+    private int[] fixups = new int[32]; // (offset field, branch offset, MicroJava target, size)
+    private int nFixups;
+
+    private final CodeAnalysis.Method root;
+    private final boolean checked; // emulate the stack limits
+    private final List<CodeAnalysis.Method> methods = new ArrayList<>();
+    private final int[] loopHeaders; // OSR targets of root, ascending
+
+    /**
+     * A compiled root method together with its callees.
+     */
+    static final class Unit {
+        private final MethodHandles.Lookup lookup;
+        private final List<CodeAnalysis.Method> methods;
+        private final CodeAnalysis.Method root;
+        private final int[] loopHeaders;
+
+        private Unit(MethodHandles.Lookup lookup, JitCompiler c) {
+            this.lookup = lookup;
+            this.methods = c.methods;
+            this.root = c.root;
+            this.loopHeaders = c.loopHeaders;
+        }
+
+        /**
+         * Methods compiled into this unit, starting with the root.
+         */
+        List<CodeAnalysis.Method> methods() {
+            return methods;
+        }
+
+        /**
+         * Bridge for calling a compiled method from the interpreter.
+         */
+        MethodHandle bridge(CodeAnalysis.Method m) {
+            return find("b" + m.entry, MethodType.methodType(int.class, Interpreter.class, int.class));
+        }
+
+        /**
+         * True if the root method can be entered at the loop header at pc.
+         */
+        boolean isLoopHeader(int pc) {
+            return Arrays.binarySearch(loopHeaders, pc) >= 0;
+        }
+
+        /**
+         * On-stack replacement entry of the root method, null if it has no
+         * loops.
+         */
+        MethodHandle osr() {
+            if (loopHeaders.length == 0) {
+                return null;
+            }
+            return find("o" + root.entry, MethodType.methodType(int.class, Interpreter.class, int.class, int.class));
+        }
+
+        private MethodHandle find(String name, MethodType type) {
+            try {
+                return lookup.findStatic(lookup.lookupClass(), name, type);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private JitCompiler(CodeAnalysis analysis, CodeAnalysis.Method root) {
+        this.analysis = analysis;
+        this.code = analysis.code;
+        this.root = root;
+        this.checked = analysis.maxExprStack < 0;
+        // root and its callees, transitively
+        methods.add(root);
+        for (int i = 0; i < methods.size(); i++) {
+            CodeAnalysis.Method m = methods.get(i);
+            for (int pc = m.entry; pc < m.end; pc++) {
+                if (m.depthAt(pc) >= 0 && code[pc] == OpCode.call.code()) {
+                    CodeAnalysis.Method callee = analysis.methodEntry(pc + get2(pc + 1));
+                    if (!methods.contains(callee)) {
+                        methods.add(callee);
+                    }
+                }
+            }
+        }
+        // targets of backward jumps with an empty expression stack
+        int[] headers = new int[0];
+        for (int pc = root.entry; pc < root.end; pc++) {
+            if (root.depthAt(pc) >= 0 && code[pc] == OpCode.jmp.code()) {
+                int target = pc + get2(pc + 1);
+                if (target <= pc && root.depthAt(target) == 0
+                        && Arrays.binarySearch(headers, target) < 0) {
+                    headers = Arrays.copyOf(headers, headers.length + 1);
+                    headers[headers.length - 1] = target;
+                    Arrays.sort(headers);
+                }
+            }
+        }
+        loopHeaders = headers;
+    }
+
+    /**
+     * Compile root and all methods it may call.
+     *
+     * @throws IllegalArgumentException if the code uses constructs the
+     *                                  compiler cannot translate
+     */
+    static Unit compile(CodeAnalysis analysis, CodeAnalysis.Method root) {
+        JitCompiler c = new JitCompiler(analysis, root);
+        byte[] cls = c.classFile();
+        try {
+            return new Unit(MethodHandles.lookup().defineHiddenClass(cls, true), c);
+        } catch (IllegalAccessException | LinkageError e) {
+            throw new IllegalArgumentException("generated class rejected: " + e, e);
+        }
+    }
+
+    static String descriptor(CodeAnalysis.Method m) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < m.psize; i++) {
+            sb.append('I');
+        }
+        return sb.append(VM).append("I)").append(m.returnsValue ? 'I' : 'V').toString();
+    }
+
+    // ----- class file
+
+    private byte[] classFile() {
+        int thisClass = classRef(CLASS);
+        int superClass = classRef("java/lang/Object");
+        int codeAttr = utf8("Code");
+        ByteArrayOutputStream ms = new ByteArrayOutputStream();
+        int count = 0;
+        for (CodeAnalysis.Method m : methods) {
+            // helper arguments come on top of the expression stack
+            methodInfo(ms, codeAttr, "m" + m.entry, descriptor(m), method(m, false), m.maxStack + 4, m.lsize + 3);
+            methodInfo(ms, codeAttr, "b" + m.entry, "(" + VM + "I)I", bridge(m), m.psize + 3, 2);
+            count += 2;
+        }
+        if (loopHeaders.length > 0) {
+            methodInfo(ms, codeAttr, "o" + root.entry, "(" + VM + "II)I", method(root, true),
+                    root.maxStack + 4, root.lsize + 4);
+            count++;
+        }
+        ByteArrayOutputStream cls = new ByteArrayOutputStream();
+        u4(cls, 0xcafebabe);
+        u2(cls, 0); // minor version
+        u2(cls, 49); // major version: Java 5, verified by type inference
+        u2(cls, poolSize);
+        byte[] p = pool.toByteArray();
+        cls.write(p, 0, p.length);
+        u2(cls, 0x0030); // ACC_FINAL | ACC_SUPER
+        u2(cls, thisClass);
+        u2(cls, superClass);
+        u2(cls, 0); // interfaces
+        u2(cls, 0); // fields
+        u2(cls, count);
+        byte[] m = ms.toByteArray();
+        cls.write(m, 0, m.length);
+        u2(cls, 0); // attributes
+        return cls.toByteArray();
+    }
+
+    private void methodInfo(ByteArrayOutputStream s, int codeAttr, String name, String desc, byte[] body,
+                            int maxStack, int maxLocals) {
+        u2(s, 0x0008); // ACC_STATIC
+        u2(s, utf8(name));
+        u2(s, utf8(desc));
+        u2(s, 1); // attributes
+        u2(s, codeAttr);
+        u4(s, 12 + body.length);
+        u2(s, maxStack);
+        u2(s, maxLocals);
+        u4(s, body.length);
+        s.write(body, 0, body.length);
+        u2(s, 0); // exception table
+        u2(s, 0); // attributes
+    }
+
+    private int utf8(String s) {
+        Integer idx = poolIndex.get("U" + s);
+        if (idx == null) {
+            idx = poolSize++;
+            pool.write(1);
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            u2(pool, b.length);
+            pool.write(b, 0, b.length);
+            poolIndex.put("U" + s, idx);
+        }
+        return idx;
+    }
+
+    private int integer(int val) {
+        Integer idx = poolIndex.get("I" + val);
+        if (idx == null) {
+            idx = poolSize++;
+            pool.write(3);
+            u4(pool, val);
+            poolIndex.put("I" + val, idx);
+        }
+        return idx;
+    }
+
+    private int classRef(String name) {
+        Integer idx = poolIndex.get("C" + name);
+        if (idx == null) {
+            int n = utf8(name);
+            idx = poolSize++;
+            pool.write(7);
+            u2(pool, n);
+            poolIndex.put("C" + name, idx);
+        }
+        return idx;
+    }
+
+    private int methodRef(String owner, String name, String desc) {
+        String key = "M" + owner + "." + name + desc;
+        Integer idx = poolIndex.get(key);
+        if (idx == null) {
+            int c = classRef(owner);
+            int n = utf8(name);
+            int d = utf8(desc);
+            int nt = poolSize++;
+            pool.write(12);
+            u2(pool, n);
+            u2(pool, d);
+            idx = poolSize++;
+            pool.write(10);
+            u2(pool, c);
+            u2(pool, nt);
+            poolIndex.put(key, idx);
+        }
+        return idx;
+    }
+
+    private static void u2(ByteArrayOutputStream s, int v) {
+        s.write(v >> 8);
+        s.write(v);
+    }
+
+    private static void u4(ByteArrayOutputStream s, int v) {
+        u2(s, v >> 16);
+        u2(s, v);
+    }
+
+    // ----- method bodies
+
+    /**
+     * JVM local of MicroJava local n. The parameters come first, followed by
+     * the interpreter and the stack base, followed by the other locals.
+     */
+    private static int slot(CodeAnalysis.Method m, int n) {
+        return n < m.psize ? n : n + 2;
+    }
+
+    /**
+     * Bridge b&lt;entry&gt;: load the arguments from the interpreter's
+     * expression stack and call m&lt;entry&gt;.
+     */
+    private byte[] bridge(CodeAnalysis.Method m) {
+        out.reset();
+        for (int i = 0; i < m.psize; i++) {
+            op(ALOAD, 0);
+            op(ILOAD, 1);
+            iconst(i);
+            op(IADD);
+            invoke("stackAt", "(" + VM + "I)I");
+        }
+        op(ALOAD, 0);
+        op(ILOAD, 1);
+        op(INVOKESTATIC);
+        u2(out, methodRef(CLASS, "m" + m.entry, descriptor(m)));
+        if (!m.returnsValue) {
+            iconst(0);
+        }
+        op(IRETURN);
+        return out.toByteArray();
+    }
+
+    /**
+     * Method m&lt;entry&gt;, or with osr the entry o&lt;entry&gt; that
+     * continues an interpreted frame at one of the loop headers.
+     */
+    private byte[] method(CodeAnalysis.Method m, boolean osr) {
+        out.reset();
+        nFixups = 0;
+        label = new int[m.end - m.entry];
+        int vm = m.psize, base = m.psize + 1, limit = m.lsize + 2;
+
+        if (osr) {
+            // move the parameters (vm, base, target) to their usual slots,
+            // load the locals from the frame and jump to the loop header
+            int target = m.lsize + 3;
+            op(ALOAD, 0);
+            op(ILOAD, 1);
+            op(ILOAD, 2);
+            op(ISTORE, target);
+            op(ISTORE, base);
+            op(ASTORE, vm);
+            for (int i = 0; i < m.lsize; i++) {
+                op(ALOAD, vm);
+                iconst(i);
+                invoke("local", "(" + VM + "I)I");
+                op(ISTORE, slot(m, i));
+            }
+            op(ALOAD, vm);
+            op(ILOAD, base);
+            invoke("limit", "(" + VM + "I)I");
+            op(ISTORE, limit);
+            op(ILOAD, target);
+            int at = out.size();
+            op(LOOKUPSWITCH);
+            while (out.size() % 4 != 0) {
+                out.write(0);
+            }
+            u4(out, out.size() + 8 + 8 * loopHeaders.length - at); // default: behind the table
+            u4(out, loopHeaders.length);
+            for (int header : loopHeaders) {
+                u4(out, header);
+                fixup(out.size(), at, header, 4);
+                u4(out, 0);
+            }
+            op(ACONST_NULL); // not a loop header
+            op(ATHROW);
+        } else {
+            // clear the locals, reserve the frame, compute the limit
+            for (int i = m.psize; i < m.lsize; i++) {
+                op(ICONST_0);
+                op(ISTORE, slot(m, i));
+            }
+            if (checked) {
+                op(ALOAD, vm);
+                iconst(m.lsize);
+                op(ILOAD, base);
+                invoke("enter", "(" + VM + "II)I");
+                op(ISTORE, limit);
+            }
+        }
+
+        for (int pc = m.entry + 3; pc < m.end; ) {
+            int d = m.depthAt(pc);
+            if (d < 0) { // unreachable or no instruction start
+                label[pc - m.entry] = -1;
+                pc++;
+                continue;
+            }
+            label[pc - m.entry] = out.size();
+            OpCode opCode = OpCode.get(code[pc]);
+            int next = pc + 1 + opCode.getOpsSize();
+            switch (opCode) {
+                case load:
+                    op(ILOAD, local(m, code[pc + 1], pc));
+                    break;
+                case load_0:
+                case load_1:
+                case load_2:
+                case load_3:
+                    op(ILOAD, local(m, opCode.code() - OpCode.load_0.code(), pc));
+                    break;
+                case store:
+                    op(ISTORE, local(m, code[pc + 1], pc));
+                    break;
+                case store_0:
+                case store_1:
+                case store_2:
+                case store_3:
+                    op(ISTORE, local(m, opCode.code() - OpCode.store_0.code(), pc));
+                    break;
+                case getstatic:
+                    op(ALOAD, vm);
+                    iconst(get2(pc + 1));
+                    invoke("getstatic", "(" + VM + "I)I");
+                    break;
+                case putstatic:
+                    op(ALOAD, vm);
+                    iconst(get2(pc + 1));
+                    invoke("putstatic", "(I" + VM + "I)V");
+                    break;
+                case getfield:
+                    op(ALOAD, vm);
+                    iconst(get2(pc + 1));
+                    invoke("getfield", "(I" + VM + "I)I");
+                    break;
+                case putfield:
+                    op(ALOAD, vm);
+                    iconst(get2(pc + 1));
+                    invoke("putfield", "(II" + VM + "I)V");
+                    break;
+                case const_0:
+                case const_1:
+                case const_2:
+                case const_3:
+                case const_4:
+                case const_5:
+                    iconst(opCode.code() - OpCode.const_0.code());
+                    break;
+                case const_m1:
+                    iconst(-1);
+                    break;
+                case const_:
+                    iconst((get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff));
+                    break;
+                case add:
+                    op(IADD);
+                    break;
+                case sub:
+                    op(ISUB);
+                    break;
+                case mul:
+                    op(IMUL);
+                    break;
+                case div:
+                    invoke("div", "(II)I");
+                    break;
+                case rem:
+                    invoke("rem", "(II)I");
+                    break;
+                case neg:
+                    op(INEG);
+                    break;
+                case shl:
+                    op(ISHL);
+                    break;
+                case shr:
+                    op(ISHR);
+                    break;
+                case inc:
+                    op(IINC, local(m, code[pc + 1], pc));
+                    out.write(code[pc + 2]);
+                    break;
+                case new_:
+                    op(ALOAD, vm);
+                    iconst(get2(pc + 1) * 4);
+                    invoke("alloc", "(" + VM + "I)I");
+                    break;
+                case newarray:
+                    op(ALOAD, vm);
+                    iconst(code[pc + 1]);
+                    invoke("newarray", "(I" + VM + "I)I");
+                    break;
+                case aload:
+                    op(ALOAD, vm);
+                    invoke("aload", "(II" + VM + ")I");
+                    break;
+                case astore:
+                    op(ALOAD, vm);
+                    invoke("astore", "(III" + VM + ")V");
+                    break;
+                case baload:
+                    op(ALOAD, vm);
+                    invoke("baload", "(II" + VM + ")I");
+                    break;
+                case bastore:
+                    op(ALOAD, vm);
+                    invoke("bastore", "(III" + VM + ")V");
+                    break;
+                case arraylength:
+                    op(ALOAD, vm);
+                    invoke("arraylength", "(I" + VM + ")I");
+                    break;
+                case pop:
+                    op(POP);
+                    break;
+                case dup:
+                    op(DUP);
+                    break;
+                case dup2:
+                    op(DUP2);
+                    break;
+                case jmp:
+                    branch(GOTO, pc + get2(pc + 1));
+                    break;
+                case jeq:
+                    branch(IF_ICMPEQ, pc + get2(pc + 1));
+                    break;
+                case jne:
+                    branch(IF_ICMPNE, pc + get2(pc + 1));
+                    break;
+                case jlt:
+                    branch(IF_ICMPLT, pc + get2(pc + 1));
+                    break;
+                case jle:
+                    branch(IF_ICMPLE, pc + get2(pc + 1));
+                    break;
+                case jgt:
+                    branch(IF_ICMPGT, pc + get2(pc + 1));
+                    break;
+                case jge:
+                    branch(IF_ICMPGE, pc + get2(pc + 1));
+                    break;
+                case call:
+                    CodeAnalysis.Method callee = analysis.methodEntry(pc + get2(pc + 1));
+                    // the callee's stack starts where its arguments are
+                    op(ALOAD, vm);
+                    op(ILOAD, base);
+                    iconst(d - callee.psize);
+                    op(IADD);
+                    op(INVOKESTATIC);
+                    u2(out, methodRef(CLASS, "m" + callee.entry, descriptor(callee)));
+                    if (!callee.kindKnown) { // never returns
+                        op(ACONST_NULL);
+                        op(ATHROW);
+                    }
+                    break;
+                case return_:
+                    if (osr && !m.returnsValue) {
+                        iconst(0);
+                    }
+                    op(m.returnsValue || osr ? IRETURN : RETURN);
+                    break;
+                case exit:
+                    if (checked) {
+                        op(ALOAD, vm);
+                        iconst(m.lsize);
+                        invoke("exit", "(" + VM + "I)V");
+                    }
+                    break;
+                case read:
+                    op(ALOAD, vm);
+                    invoke("read", "(" + VM + ")I");
+                    break;
+                case print:
+                    op(ALOAD, vm);
+                    invoke("print", "(II" + VM + ")V");
+                    break;
+                case bread:
+                    op(ALOAD, vm);
+                    invoke("bread", "(" + VM + ")I");
+                    break;
+                case bprint:
+                    op(ALOAD, vm);
+                    invoke("bprint", "(II" + VM + ")V");
+                    break;
+                case trap:
+                    iconst(code[pc + 1]);
+                    invoke("trap", "(I)Ljava/lang/IllegalStateException;");
+                    op(ATHROW);
+                    break;
+                case nop:
+                    break;
+                default:
+                    throw new IllegalArgumentException("cannot compile " + opCode + " at " + pc);
+            }
+            if (checked && opCode != OpCode.call && next < m.end && m.depthAt(next) > d) {
+                // the instruction grew the expression stack: emulate overflow
+                // (values pushed by a callee are checked in the callee)
+                checkDepth(m.depthAt(next), limit);
+            }
+            pc = next;
+        }
+
+        if (out.size() > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("method at " + m.entry + " too large to compile");
+        }
+        byte[] body = out.toByteArray();
+        for (int i = 0; i < nFixups; i += 4) {
+            int at = fixups[i];
+            int offset = label[fixups[i + 2] - m.entry] - fixups[i + 1];
+            for (int k = fixups[i + 3] - 1; k >= 0; k--) {
+                body[at + k] = (byte) offset;
+                offset >>= 8;
+            }
+        }
+        return body;
+    }
+
+    /**
+     * Throw an expression stack overflow unless depth values fit on the stack.
+     */
+    private void checkDepth(int depth, int limit) {
+        op(ILOAD, limit);
+        iconst(depth);
+        op(IF_ICMPGE);
+        u2(out, 3 + 3 + 1); // behind the throw
+        invoke("overflow", "()Ljava/lang/IllegalStateException;");
+        op(ATHROW);
+    }
+
+    private int local(CodeAnalysis.Method m, int n, int pc) {
+        if (n < 0 || n >= m.lsize) {
+            throw new IllegalArgumentException("local " + n + " outside of frame at " + pc);
+        }
+        return slot(m, n);
+    }
+
+    private void branch(int opcode, int target) {
+        fixup(out.size() + 1, out.size(), target, 2);
+        op(opcode);
+        u2(out, 0);
+    }
+
+    /**
+     * Remember to patch the size bytes at offset at with the distance from the
+     * instruction at from to the MicroJava instruction target.
+     */
+    private void fixup(int at, int from, int target, int size) {
+        if (nFixups == fixups.length) {
+            fixups = Arrays.copyOf(fixups, 2 * nFixups);
+        }
+        fixups[nFixups++] = at;
+        fixups[nFixups++] = from;
+        fixups[nFixups++] = target;
+        fixups[nFixups++] = size;
+    }
+
+    private void invoke(String name, String desc) {
+        op(INVOKESTATIC);
+        u2(out, methodRef(RUNTIME, name, desc));
+    }
+
+    private void iconst(int val) {
+        if (val >= -1 && val <= 5) {
+            op(ICONST_0 + val);
+        } else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+            op(BIPUSH, val);
+        } else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+            op(SIPUSH);
+            u2(out, val);
+        } else {
+            int idx = integer(val);
+            if (idx < 256) {
+                op(LDC, idx);
+            } else {
+                op(LDC_W);
+                u2(out, idx);
+            }
+        }
+    }
+
+    private void op(int opcode) {
+        out.write(opcode);
+    }
+
+    private void op(int opcode, int operand) {
+        out.write(opcode);
+        out.write(operand);
+    }
+
+    private int get2(int pc) {
+        return (short) ((code[pc] << 8) + (code[pc + 1] & 0xff));
+    }
+}
@@ -0,0 +1,156 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Runtime support for compiled MicroJava methods
+// ===========================================================================
+package ssw.mj;
+
+/**
+ * Static helpers called from the code generated by {@link JitCompiler}. They
+ * work on the heap, global data and I/O of the interpreter instance that is
+ * passed in, so that compiled and interpreted programs observe exactly the
+ * same memory layout and raise the same errors. Helpers that can fail return
+ * an exception for the generated code to throw, which keeps the JVM verifier
+ * informed that control does not continue.
+ */
+final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    // ----- frames
+
+    /**
+     * Reserve the frame of a method on the method stack (return address,
+     * dynamic link and lsize locals) and return the number of values the
+     * method may push onto the expression stack, which starts at base.
+     */
+    static int enter(Interpreter vm, int lsize, int base) {
+        if (vm.sp + 2 + lsize > vm.limits.methodStack) {
+            throw new IllegalStateException("method stack overflow");
+        }
+        vm.sp += 2 + lsize;
+        return limit(vm, base);
+    }
+
+    /**
+     * Number of values that fit onto the expression stack above base.
+     */
+    static int limit(Interpreter vm, int base) {
+        return vm.limits.exprStack - base;
+    }
+
+    static void exit(Interpreter vm, int lsize) {
+        vm.sp -= 2 + lsize;
+    }
+
+    // ----- interpreter state
+
+    /**
+     * Value at index idx of the interpreter's expression stack.
+     */
+    static int stackAt(Interpreter vm, int idx) {
+        return vm.stack[idx];
+    }
+
+    /**
+     * Local n of the interpreter's current frame.
+     */
+    static int local(Interpreter vm, int n) {
+        return vm.local[vm.fp + n];
+    }
+
+    static IllegalStateException overflow() {
+        return new IllegalStateException("expression stack overflow");
+    }
+
+    static IllegalStateException trap(int n) {
+        return new IllegalStateException("trap(" + n + ")");
+    }
+
+    // ----- global data and objects
+
+    static int getstatic(Interpreter vm, int adr) {
+        return vm.data[adr];
+    }
+
+    static void putstatic(int val, Interpreter vm, int adr) {
+        vm.data[adr] = val;
+    }
+
+    static int getfield(int adr, Interpreter vm, int off) {
+        return vm.heap.get(Interpreter.nonNull(adr) + off);
+    }
+
+    static void putfield(int adr, int val, Interpreter vm, int off) {
+        vm.heap.set(Interpreter.nonNull(adr) + off, val);
+    }
+
+    // ----- arithmetic
+
+    static int div(int x, int y) {
+        return x / Interpreter.divisor(y);
+    }
+
+    static int rem(int x, int y) {
+        return x % Interpreter.divisor(y);
+    }
+
+    // ----- object creation
+
+    static int alloc(Interpreter vm, int size) {
+        return vm.alloc(size);
+    }
+
+    static int newarray(int len, Interpreter vm, int kind) {
+        int adr = vm.alloc(kind == 0 ? len + 4 : len * 4 + 4);
+        vm.heap.set(adr, len);
+        return adr + 1; // skip length field of array
+    }
+
+    // ----- arrays
+
+    private static int index(Interpreter vm, int adr, int idx) {
+        Interpreter.checkIndex(vm.heap, adr, idx);
+        return idx;
+    }
+
+    static int aload(int adr, int idx, Interpreter vm) {
+        return vm.heap.get(adr + index(vm, adr, idx));
+    }
+
+    static void astore(int adr, int idx, int val, Interpreter vm) {
+        vm.heap.set(adr + index(vm, adr, idx), val);
+    }
+
+    static int baload(int adr, int idx, Interpreter vm) {
+        index(vm, adr, idx);
+        return vm.heap.getByte(adr, idx);
+    }
+
+    static void bastore(int adr, int idx, int val, Interpreter vm) {
+        index(vm, adr, idx);
+        vm.heap.setByte(adr, idx, (byte) val);
+    }
+
+    static int arraylength(int adr, Interpreter vm) {
+        return vm.heap.get(Interpreter.nonNull(adr) - 1);
+    }
+
+    // ----- I/O
+
+    static int read(Interpreter vm) {
+        return vm.readInt();
+    }
+
+    static int bread(Interpreter vm) {
+        return vm.read();
+    }
+
+    static void print(int val, int width, Interpreter vm) {
+        vm.print(val, width);
+    }
+
+    static void bprint(int val, int width, Interpreter vm) {
+        vm.bprint(val, width);
+    }
+}
@@ -0,0 +1,57 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Source lines for coverage reports
+// ===========================================================================
+package ssw.mj;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The source lines the compiler writes behind the symbols (see
+ * <code>Code.lines()</code>). Files of older compilers have none.
+ */
+final class Lines {
+
+    static final Lines NONE = new Lines(new int[0], new int[0]);
+
+    private final int[] pcs; // ascending addresses at which a line starts
+    private final int[] lines; // per entry: its line
+
+    private Lines(int[] pcs, int[] lines) {
+        this.pcs = pcs;
+        this.lines = lines;
+    }
+
+    static Lines read(DataInputStream in) throws IOException {
+        if (in.readByte() != 'L' || in.readByte() != 'N') {
+            throw new FormatException("wrong line table marker");
+        }
+        int n = in.readInt();
+        int[] pcs = new int[n], lines = new int[n];
+        for (int i = 0; i < n; i++) {
+            pcs[i] = in.readInt();
+            lines[i] = in.readInt();
+            if (i > 0 && pcs[i] <= pcs[i - 1]) {
+                throw new FormatException("line table not sorted");
+            }
+        }
+        return new Lines(pcs, lines);
+    }
+
+    boolean isEmpty() {
+        return pcs.length == 0;
+    }
+
+    /**
+     * Line of the instruction at pc, 0 if unknown.
+     */
+    int lineAt(int pc) {
+        int i = Arrays.binarySearch(pcs, pc);
+        if (i < 0) {
+            i = -i - 2; // entry below the insertion point
+        }
+        return i >= 0 ? lines[i] : 0;
+    }
+}
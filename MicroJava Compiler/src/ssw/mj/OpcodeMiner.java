@@ -0,0 +1,79 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Opcode n-gram statistics (java ssw.mj.Run fileName -mine-pairs)
+// ===========================================================================
+package ssw.mj;
+
+import java.io.PrintStream;
+
+/**
+ * Counts how often pairs and triples of handlers are executed back to back.
+ * Only sequences that fall through in code order are counted, i.e. the kind
+ * of sequences that can be fused into a superinstruction. The statistics are
+ * the input for choosing the superinstructions in {@link DecodedCode}.
+ */
+final class OpcodeMiner implements ExecutionListener {
+
+    private static final int N = DecodedCode.numHandlers;
+
+    private final long[] pairs = new long[N * N];
+    private final long[] triples = new long[N * N * N];
+    private long executed;
+
+    private int prev = -1, prev2 = -1; // previous handlers, -1 after a jump
+    private int next = -1; // stream index following the previous instruction
+
+    /**
+     * Record the instruction at stream index idx of the given stream.
+     */
+    @Override
+    public void instruction(int[] ops, int idx) {
+        int h = ops[idx];
+        executed++;
+        if (idx != next) { // jump, call or return: sequence is broken
+            prev = -1;
+            prev2 = -1;
+        }
+        if (prev >= 0) {
+            pairs[prev * N + h]++;
+            if (prev2 >= 0) {
+                triples[(prev2 * N + prev) * N + h]++;
+            }
+        }
+        prev2 = prev;
+        prev = h;
+        next = idx + DecodedCode.size(h);
+    }
+
+    void print(PrintStream out, int top) {
+        out.println();
+        out.println("-- " + executed + " instructions executed");
+        out.println("-- most frequent pairs:");
+        print(out, pairs, 2, top);
+        out.println("-- most frequent triples:");
+        print(out, triples, 3, top);
+    }
+
+    private void print(PrintStream out, long[] counts, int n, int top) {
+        boolean[] done = new boolean[counts.length];
+        for (int rank = 0; rank < top; rank++) {
+            int best = -1;
+            for (int i = 0; i < counts.length; i++) {
+                if (!done[i] && counts[i] > 0 && (best < 0 || counts[i] > counts[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                return;
+            }
+            done[best] = true;
+            StringBuilder sb = new StringBuilder();
+            int key = best;
+            for (int i = 0; i < n; i++) {
+                sb.insert(0, DecodedCode.name(key % N) + " ");
+                key /= N;
+            }
+            out.printf("%12d %6.2f%%  %s%n", counts[best], 100.0 * counts[best] / executed, sb.toString().trim());
+        }
+    }
+}
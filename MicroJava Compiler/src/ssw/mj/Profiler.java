@@ -0,0 +1,151 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Execution profile (java ssw.mj.Run fileName -profile)
+// ===========================================================================
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Counts executed instructions per code address and per method. For every
+ * method it records the calls, the instructions executed in the method
+ * itself (self), the instructions executed until it returns, including its
+ * callees (total), and the heap bytes it allocates. The report ranks methods
+ * by self instructions and lists the hottest instructions, named after the
+ * {@link Symbols} of the program.
+ */
+final class Profiler implements ExecutionListener {
+
+    private final Interpreter vm;
+    private final CodeAnalysis.Method[] methods;
+    private final int[] owner; // per code address: index of its method
+    private final long[] counts; // per code address: executions
+    private final long[] calls, total, allocated; // per method
+    private final int[] active; // per method: activations on the call stack
+    private long executed;
+
+    // call stack: method and instruction count at its entry
+    private int[] frames = new int[64];
+    private long[] starts = new long[64];
+    private int depth;
+
+    Profiler(Interpreter vm) {
+        this.vm = vm;
+        this.methods = vm.analysis.methods;
+        int codeSize = vm.analysis.code.length;
+        owner = new int[codeSize];
+        Arrays.fill(owner, -1);
+        for (int i = 0; i < methods.length; i++) {
+            Arrays.fill(owner, methods[i].entry, methods[i].end, i);
+        }
+        counts = new long[codeSize];
+        calls = new long[methods.length];
+        total = new long[methods.length];
+        allocated = new long[methods.length];
+        active = new int[methods.length];
+    }
+
+    @Override
+    public void instruction(int[] ops, int idx) {
+        int pc = vm.decoded.pcOf[idx];
+        executed++;
+        counts[pc]++;
+        switch (ops[idx]) {
+            case ENTER:
+                enter(owner[pc]);
+                break;
+            case RETURN:
+                if (depth > 0) {
+                    leave();
+                }
+                break;
+            case NEW:
+                allocated[owner[pc]] += Collector.words(ops[idx + 1]) * 4L;
+                break;
+            case NEWARRAY:
+                int len = vm.top();
+                allocated[owner[pc]] += Collector.words(ops[idx + 1] == 0 ? len + 4 : len * 4 + 4) * 4L;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void enter(int m) {
+        if (depth == frames.length) {
+            frames = Arrays.copyOf(frames, 2 * depth);
+            starts = Arrays.copyOf(starts, 2 * depth);
+        }
+        frames[depth] = m;
+        starts[depth] = executed - 1; // the enter belongs to the method
+        depth++;
+        calls[m]++;
+        active[m]++;
+    }
+
+    private void leave() {
+        depth--;
+        int m = frames[depth];
+        if (--active[m] == 0) { // recursive activations are part of the outermost one
+            total[m] += executed - starts[depth];
+        }
+    }
+
+    void print(PrintStream out, int top) {
+        while (depth > 0) { // stopped by a trap
+            leave();
+        }
+        long[] self = new long[methods.length];
+        long bytes = 0;
+        for (int pc = 0; pc < counts.length; pc++) {
+            if (owner[pc] >= 0) {
+                self[owner[pc]] += counts[pc];
+            }
+        }
+        for (long b : allocated) {
+            bytes += b;
+        }
+        out.println();
+        out.println("-- " + executed + " instructions executed, " + bytes + " bytes allocated");
+        out.println("-- methods by self instructions:");
+        out.printf("%12s %7s %12s %7s %10s %12s  %s%n", "self", "", "total", "", "calls", "bytes", "method");
+        for (int m : ranked(self, top)) {
+            out.printf("%12d %6.2f%% %12d %6.2f%% %10d %12d  %s%n", self[m], percent(self[m]), total[m],
+                    percent(total[m]), calls[m], allocated[m], vm.symbols.name(methods[m].entry));
+        }
+        out.println("-- hottest instructions:");
+        for (int pc : ranked(counts, top)) {
+            CodeAnalysis.Method m = methods[owner[pc]];
+            out.printf("%12d %6.2f%%  %5d %-12s %s+%d%n", counts[pc], percent(counts[pc]), pc,
+                    OpCode.get(vm.analysis.code[pc]).name(), vm.symbols.name(m.entry), pc - m.entry);
+        }
+    }
+
+    private double percent(long n) {
+        return executed == 0 ? 0 : 100.0 * n / executed;
+    }
+
+    /**
+     * Indices of the top largest non-zero counts, largest first.
+     */
+    private static int[] ranked(long[] counts, int top) {
+        Integer[] indices = new Integer[counts.length];
+        int n = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                indices[n++] = i;
+            }
+        }
+        Arrays.sort(indices, 0, n, (a, b) -> Long.compare(counts[b], counts[a]));
+        int[] result = new int[Math.min(n, top)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = indices[i];
+        }
+        return result;
+    }
+}
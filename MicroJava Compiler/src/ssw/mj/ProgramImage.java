@@ -0,0 +1,186 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Loaded program, shared by all interpreters that run it
+// ===========================================================================
+package ssw.mj;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * The parts of a loaded program that do not change while it runs: the code,
+ * the size of its global data, the address of main and what is derived from
+ * them at load time, i.e. the decoded stream, the verifier result, the
+ * reference maps, the names and lines for reports, and the code of the JIT
+ * and register engines and the weights of runs in slices, which are built
+ * when an interpreter first asks for them. An image can be shared by any
+ * number of interpreters, also in different threads, see
+ * {@link ExecutionService} and {@link Scheduler}. The heap, the stacks and
+ * the global data belong to the interpreters.
+ */
+public final class ProgramImage {
+
+    final byte[] code;
+    final int startPC; // address of main()
+    final int dataSize; // global data words
+    final Interpreter.Limits limits; // limits the code was verified with
+    final DecodedCode decoded;
+    final CodeAnalysis analysis; // null if the code did not verify
+    final RefMaps maps; // null if the heap is only bump allocated
+    final Symbols symbols;
+    final Lines lines;
+    final int[] exprNeed; // per enter in the stream: expression stack words of the method, null if unverified
+    final boolean backwardBranches; // has conditional jumps to lower addresses, see sliceWeights
+
+    private MethodHandle jitMain; // bridge to main compiled by the JIT, see jitMain
+    private RegisterCode registerCode; // see registerCode
+    private int[] sampled; // see sampled
+    private int[] sliceWeights; // see sliceWeights
+
+    ProgramImage(byte[] code, int startPC, int dataSize, Interpreter.Limits limits, CodeAnalysis analysis,
+                 RefMaps maps, Symbols symbols, Lines lines) {
+        this.code = code;
+        this.startPC = startPC;
+        this.dataSize = dataSize;
+        this.limits = limits;
+        this.decoded = new DecodedCode(code);
+        this.analysis = analysis;
+        this.maps = maps;
+        this.symbols = symbols;
+        this.lines = lines;
+        if (analysis != null) {
+            exprNeed = new int[decoded.ops.length];
+            for (CodeAnalysis.Method m : analysis.methods) {
+                exprNeed[decoded.indexOf[m.entry]] = m.maxStack;
+            }
+        } else {
+            exprNeed = null;
+        }
+        boolean backward = false;
+        int[] ops = decoded.ops;
+        int end = decoded.indexOf[decoded.indexOf.length - 1];
+        for (int idx = 0; idx < end; idx += size(ops[idx])) {
+            backward |= ops[idx] >= JEQ && ops[idx] <= JGE && ops[idx + 1] <= idx;
+        }
+        backwardBranches = backward;
+    }
+
+    /**
+     * Load the object file in file, verifying its code with the given
+     * limits. Reference maps, symbols and lines are read if the compiler
+     * wrote them.
+     */
+    public static ProgramImage read(byte[] file, Interpreter.Limits limits) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(file));
+        if (in.readByte() != 'M' || in.readByte() != 'J') {
+            throw new FormatException("wrong marker");
+        }
+        int codeSize = in.readInt();
+        if (codeSize <= 0) {
+            throw new FormatException("codeSize <= 0");
+        }
+        int dataSize = in.readInt();
+        if (dataSize < 0) {
+            throw new FormatException("dataSize < 0");
+        }
+        int startPC = in.readInt();
+        if (startPC < 0 || startPC >= codeSize) {
+            throw new FormatException("startPC not in code area");
+        }
+        byte[] code = new byte[codeSize];
+        in.readFully(code, 0, codeSize);
+
+        // reference maps, symbols and lines, absent in files of older compilers
+        CodeAnalysis analysis = CodeAnalysis.analyze(code, startPC, dataSize, limits); // reject invalid code up front
+        RefMaps maps = in.available() > 0 ? RefMaps.read(in, analysis, dataSize) : null;
+        Symbols symbols = in.available() > 0 ? Symbols.read(in) : Symbols.NONE;
+        Lines lines = in.available() > 0 ? Lines.read(in) : Lines.NONE;
+        return new ProgramImage(code, startPC, dataSize, limits, analysis, maps, symbols, lines);
+    }
+
+    /**
+     * Bridge to main compiled by the JIT, compiled on the first call.
+     *
+     * @throws IllegalArgumentException if the code cannot be compiled
+     */
+    synchronized MethodHandle jitMain() {
+        if (jitMain == null) {
+            if (analysis == null) {
+                throw new IllegalArgumentException("code did not verify");
+            }
+            CodeAnalysis.Method main = analysis.methodEntry(startPC);
+            jitMain = JitCompiler.compile(analysis, main).bridge(main);
+        }
+        return jitMain;
+    }
+
+    /**
+     * Code for the register engine, translated on the first call.
+     *
+     * @throws IllegalArgumentException if the code cannot be translated
+     */
+    synchronized RegisterCode registerCode() {
+        if (registerCode == null) {
+            if (analysis == null) {
+                throw new IllegalArgumentException("code did not verify");
+            }
+            registerCode = new RegisterCode(analysis);
+        }
+        return registerCode;
+    }
+
+    /**
+     * The sampled stream (see {@link DecodedCode#sampled()}), built on the
+     * first call and shared by the samplers, monitors and runs in slices of
+     * all interpreters of the image.
+     */
+    synchronized int[] sampled() {
+        if (sampled == null) {
+            sampled = decoded.sampled();
+        }
+        return sampled;
+    }
+
+    /**
+     * Instructions a run in slices (see {@link Interpreter#run(long)})
+     * charges to its budget, per stream index of the sampled stream: at a
+     * backward jump the length of the loop, at a call the length of the
+     * called method. These estimate the instructions executed since the
+     * previous check without counting every instruction. A monitor estimates
+     * the instructions of a run the same way, see {@link VmMonitor}. Backward
+     * conditional jumps are not charged, the compiler does not emit them.
+     */
+    synchronized int[] sliceWeights() {
+        if (sliceWeights == null) {
+            int[] ops = decoded.ops;
+            int[] sampled = sampled();
+            int[] w = new int[ops.length];
+            int end = decoded.indexOf[decoded.indexOf.length - 1];
+            for (int idx = 0; idx < end; idx += size(ops[idx])) {
+                if (sampled[idx] == SAMPLE_JMP) {
+                    w[idx] = instructions(ops[idx + 1], idx + size(ops[idx]));
+                } else if (sampled[idx] == SAMPLE_CALL) {
+                    CodeAnalysis.Method m = analysis.methodAt(decoded.pcOf[ops[idx + 1]]);
+                    w[idx] = instructions(decoded.indexOf[m.entry], decoded.indexOf[m.end]);
+                }
+            }
+            sliceWeights = w;
+        }
+        return sliceWeights;
+    }
+
+    /**
+     * Instructions between the stream indices from and to.
+     */
+    private int instructions(int from, int to) {
+        int n = 0;
+        for (int idx = from; idx < to; idx += size(decoded.ops[idx])) {
+            n++;
+        }
+        return Math.max(n, 1);
+    }
+}
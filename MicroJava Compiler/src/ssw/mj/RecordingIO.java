@@ -0,0 +1,123 @@
+// MicroJava Virtual Machine
+// -------------------------
+// I/O recording (java ssw.mj.Run fileName -record outFile)
+// ===========================================================================
+package ssw.mj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Passes the I/O of a program to another I/O object and records it, so that
+ * {@link ReplayIO} can run the program again without real I/O: every char
+ * and number read and every block of output.
+ * <p>
+ * The recording starts with the marker "MR" and the format version. All
+ * numbers are variable-length: 7 bits per byte, low bits first, the top bit
+ * set in all but the last byte. Numbers read are zigzag-encoded, so that
+ * small negative numbers are short as well. Each record starts with its
+ * tag:
+ * <pre>
+ *   CHAR    c                  result of read
+ *   INT     val                result of readInt
+ *   OUTPUT  n c ...            n chars written
+ * </pre>
+ */
+public class RecordingIO implements Interpreter.IO, Closeable {
+
+    static final byte VERSION = 1;
+    static final byte CHAR = 0, INT = 1, OUTPUT = 2;
+    private static final int maxRecord = 11;
+    private static final int blockSize = 1 << 16;
+
+    private final Interpreter.IO io; // the recorded I/O
+    private final FileChannel out;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(blockSize);
+
+    public RecordingIO(Interpreter.IO io, Path file) throws IOException {
+        this.io = io;
+        out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buf.put((byte) 'M').put((byte) 'R').put(VERSION);
+    }
+
+    @Override
+    public char read() {
+        char c = io.read();
+        reserve(maxRecord);
+        buf.put(CHAR);
+        put(c);
+        return c;
+    }
+
+    @Override
+    public int readInt() {
+        int val = io.readInt();
+        reserve(maxRecord);
+        buf.put(INT);
+        put(val << 1 ^ val >> 31);
+        return val;
+    }
+
+    @Override
+    public void write(char c) {
+        write(new char[]{c}, 0, 1);
+    }
+
+    @Override
+    public void write(char[] chars, int off, int len) {
+        io.write(chars, off, len);
+        reserve(maxRecord);
+        buf.put(OUTPUT);
+        put(len);
+        for (int i = off; i < off + len; i++) {
+            reserve(3);
+            put(chars[i]);
+        }
+    }
+
+    private void put(int val) {
+        while ((val & ~0x7f) != 0) {
+            buf.put((byte) (val | 0x80));
+            val >>>= 7;
+        }
+        buf.put((byte) val);
+    }
+
+    private void reserve(int bytes) {
+        if (buf.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Write the rest of the recording and close the file, also after a trap.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,417 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Reference maps: which words of data, frames, stack and heap are references
+// ===========================================================================
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The reference maps the compiler writes behind the code (see
+ * <code>Code.refMaps()</code>), checked against the code and completed by a
+ * data flow analysis of the expression stack. Maps are kept as pairs
+ * <code>(slot, type reference)</code> of the reference slots only, where a
+ * type reference is 1 + the index into the type table.
+ * <p>
+ * The collector only runs at allocations, so stack maps are only computed for
+ * <code>new</code> and <code>newarray</code>, where the stack of the
+ * allocating method is live, and for calls, where the stack of a caller is
+ * live below the arguments.
+ */
+final class RefMaps {
+
+    /**
+     * Heap block tag of char arrays, which never hold references. Other
+     * blocks are tagged with FIRST_TYPE + their index in the type table.
+     */
+    static final int CHARS = 1, FIRST_TYPE = 2;
+
+    private static final int NULL = -1; // const_0: null or int, see merge
+
+    /**
+     * Per type: array (referenced behind its length word) or class.
+     */
+    final boolean[] isArray;
+    /**
+     * Per class type: number of fields and its reference fields.
+     */
+    final int[] nFields;
+    final int[][] fieldRefs;
+    /**
+     * Per array type: type reference of the elements, 0 for int and char.
+     */
+    final int[] elemRef;
+    /**
+     * Reference slots of the global data.
+     */
+    final int[] globalRefs;
+
+    /**
+     * Per code address of an allocation or call: number of values of the
+     * method's expression stack that stay live during the instruction, their
+     * reference slots and the reference slots of the method's frame. The
+     * tag for the allocated block at allocations, 0 elsewhere.
+     */
+    final int[] live, tags;
+    final int[][] stackRefs, frameRefs;
+
+    private final CodeAnalysis analysis;
+    private final byte[] code;
+    private final Map<Integer, int[]> locals = new HashMap<>(); // per method entry: type refs of the locals
+    private final Map<Integer, Integer> results = new HashMap<>(); // per method entry: type ref of the result
+    private final Map<Integer, Integer> sites = new HashMap<>(); // per allocation: type index
+
+    /**
+     * Read the maps from the bytes behind the code of a verified program.
+     */
+    static RefMaps read(byte[] maps, CodeAnalysis analysis, int dataSize) throws FormatException {
+        return read(new DataInputStream(new ByteArrayInputStream(maps)), analysis, dataSize);
+    }
+
+    /**
+     * Read the maps from in, which is left behind them.
+     */
+    static RefMaps read(DataInputStream in, CodeAnalysis analysis, int dataSize) throws FormatException {
+        try {
+            return new RefMaps(in, analysis, dataSize);
+        } catch (FormatException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new FormatException("truncated reference maps");
+        }
+    }
+
+    private RefMaps(DataInputStream in, CodeAnalysis analysis, int dataSize) throws IOException {
+        this.analysis = analysis;
+        this.code = analysis.code;
+        if (in.readByte() != 'R' || in.readByte() != 'M') {
+            throw new FormatException("wrong reference map marker");
+        }
+        int nTypes = count(in);
+        isArray = new boolean[nTypes];
+        nFields = new int[nTypes];
+        fieldRefs = new int[nTypes][];
+        elemRef = new int[nTypes];
+        for (int t = 0; t < nTypes; t++) {
+            int kind = in.readInt();
+            if (kind == 0) {
+                nFields[t] = count(in);
+                fieldRefs[t] = refs(in, nFields[t], nTypes);
+            } else if (kind == 1) {
+                isArray[t] = true;
+                elemRef[t] = typeRef(in, nTypes);
+            } else {
+                throw new FormatException("wrong kind of type " + t);
+            }
+        }
+        if (in.readInt() != dataSize) {
+            throw new FormatException("reference map does not match data size");
+        }
+        globalRefs = refs(in, dataSize, nTypes);
+        int nMethods = count(in);
+        for (int i = 0; i < nMethods; i++) {
+            int entry = in.readInt();
+            results.put(entry, typeRef(in, nTypes));
+            int[] types = new int[count(in)];
+            for (int k = 0; k < types.length; k++) {
+                types[k] = typeRef(in, nTypes);
+            }
+            locals.put(entry, types);
+        }
+        int nSites = count(in);
+        for (int i = 0; i < nSites; i++) {
+            int pc = in.readInt();
+            int type = in.readInt();
+            if (type < 0 || type >= nTypes) {
+                throw new FormatException("wrong type " + type + " of allocation at " + pc);
+            }
+            sites.put(pc, type);
+        }
+
+        live = new int[code.length];
+        tags = new int[code.length];
+        stackRefs = new int[code.length][];
+        frameRefs = new int[code.length][];
+        for (CodeAnalysis.Method m : analysis.methods) {
+            analyze(m);
+        }
+    }
+
+    private static int count(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        if (n < 0) {
+            throw new FormatException("negative count in reference map");
+        }
+        return n;
+    }
+
+    private static int typeRef(DataInputStream in, int nTypes) throws IOException {
+        int t = in.readInt();
+        if (t < 0 || t > nTypes) {
+            throw new FormatException("wrong type reference " + t);
+        }
+        return t;
+    }
+
+    /**
+     * Read n type references and keep the reference slots among them.
+     */
+    private static int[] refs(DataInputStream in, int n, int nTypes) throws IOException {
+        int[] types = new int[n];
+        for (int i = 0; i < n; i++) {
+            types[i] = typeRef(in, nTypes);
+        }
+        return refs(types, n);
+    }
+
+    /**
+     * Reference slots among the first n of types.
+     */
+    private static int[] refs(int[] types, int n) {
+        int k = 0;
+        for (int i = 0; i < n; i++) {
+            if (types[i] > 0) {
+                k++;
+            }
+        }
+        int[] pairs = new int[2 * k];
+        k = 0;
+        for (int i = 0; i < n; i++) {
+            if (types[i] > 0) {
+                pairs[k++] = i;
+                pairs[k++] = types[i];
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Data flow analysis of the types on the expression stack of m, like the
+     * depth analysis of {@link CodeAnalysis}. Stack slots hold a type
+     * reference, 0 for int and char, or NULL for const_0, which is merged
+     * into whatever it meets.
+     */
+    private void analyze(CodeAnalysis.Method m) throws FormatException {
+        int[] localTypes = locals.get(m.entry);
+        if (localTypes == null || localTypes.length > m.lsize) {
+            throw new FormatException("no reference map for method at " + m.entry);
+        }
+        int[] frame = refs(localTypes, localTypes.length);
+        int[][] state = new int[m.end - m.entry][];
+        boolean[] queued = new boolean[state.length];
+        int[] work = new int[state.length];
+        int top = 0;
+        int first = m.entry + 3;
+        state[first - m.entry] = new int[0];
+        work[top++] = first;
+        while (top > 0) {
+            int pc = work[--top];
+            queued[pc - m.entry] = false;
+            int[] in = state[pc - m.entry];
+            int[] s = Arrays.copyOf(in, in.length + 4);
+            int d = in.length;
+            OpCode op = OpCode.get(code[pc]);
+            int next = pc + 1 + op.getOpsSize();
+            int target = -1;
+            boolean fallThrough = true;
+            switch (op) {
+                case load:
+                    s[d++] = localTypes(localTypes, code[pc + 1]);
+                    break;
+                case load_0:
+                case load_1:
+                case load_2:
+                case load_3:
+                    s[d++] = localTypes(localTypes, op.code() - OpCode.load_0.code());
+                    break;
+                case getstatic:
+                    s[d++] = find(globalRefs, get2(pc + 1));
+                    break;
+                case getfield:
+                    s[d - 1] = field(s[d - 1], get2(pc + 1));
+                    break;
+                case const_0:
+                    s[d++] = NULL;
+                    break;
+                case const_1:
+                case const_2:
+                case const_3:
+                case const_4:
+                case const_5:
+                case const_m1:
+                case const_:
+                case read:
+                case bread:
+                    s[d++] = 0;
+                    break;
+                case new_:
+                case newarray:
+                    Integer type = sites.get(pc);
+                    if (type == null || isArray[type] != (op == OpCode.newarray)
+                            || (op == OpCode.new_ && nFields[type] != get2(pc + 1))) {
+                        throw new FormatException("no reference map for allocation at " + pc);
+                    }
+                    site(pc, op == OpCode.new_ ? d : d - 1, s, frame);
+                    tags[pc] = op == OpCode.newarray && code[pc + 1] == 0 ? CHARS : FIRST_TYPE + type;
+                    if (op == OpCode.newarray) {
+                        d--;
+                    }
+                    s[d++] = 1 + type;
+                    break;
+                case store:
+                case store_0:
+                case store_1:
+                case store_2:
+                case store_3:
+                case putstatic:
+                case pop:
+                    d--;
+                    break;
+                case putfield:
+                case print:
+                case bprint:
+                    d -= 2;
+                    break;
+                case add:
+                case sub:
+                case mul:
+                case div:
+                case rem:
+                case shl:
+                case shr:
+                case baload:
+                    s[--d - 1] = 0;
+                    break;
+                case aload:
+                    d--;
+                    s[d - 1] = s[d - 1] > 0 && isArray[s[d - 1] - 1] ? elemRef[s[d - 1] - 1] : 0;
+                    break;
+                case neg:
+                case arraylength:
+                    s[d - 1] = 0;
+                    break;
+                case astore:
+                case bastore:
+                    d -= 3;
+                    break;
+                case dup:
+                    s[d] = s[d - 1];
+                    d++;
+                    break;
+                case dup2:
+                    s[d] = s[d - 2];
+                    s[d + 1] = s[d - 1];
+                    d += 2;
+                    break;
+                case jmp:
+                    target = pc + get2(pc + 1);
+                    fallThrough = false;
+                    break;
+                case jeq:
+                case jne:
+                case jlt:
+                case jle:
+                case jgt:
+                case jge:
+                    d -= 2;
+                    target = pc + get2(pc + 1);
+                    break;
+                case call:
+                    CodeAnalysis.Method callee = analysis.methodEntry(pc + get2(pc + 1));
+                    Integer result = results.get(callee.entry);
+                    if (result == null) {
+                        throw new FormatException("no reference map for method at " + callee.entry);
+                    }
+                    site(pc, d - callee.psize, s, frame);
+                    d -= callee.psize;
+                    if (callee.returnsValue) {
+                        s[d++] = result;
+                    }
+                    fallThrough = callee.kindKnown;
+                    break;
+                case return_:
+                case trap:
+                    fallThrough = false;
+                    break;
+                default: // inc, exit, nop
+                    break;
+            }
+            if (fallThrough) {
+                top = merge(m, state, queued, work, top, next, s, d);
+            }
+            if (target >= 0) {
+                top = merge(m, state, queued, work, top, target, s, d);
+            }
+        }
+    }
+
+    private static int localTypes(int[] types, int n) {
+        return n < types.length ? types[n] : 0;
+    }
+
+    /**
+     * Type reference of field off of an object of type ref.
+     */
+    private int field(int ref, int off) {
+        return ref > 0 && !isArray[ref - 1] ? find(fieldRefs[ref - 1], off) : 0;
+    }
+
+    /**
+     * Type reference of slot in a map, 0 if it is no reference slot.
+     */
+    private static int find(int[] refs, int slot) {
+        for (int k = 0; k < refs.length; k += 2) {
+            if (refs[k] == slot) {
+                return refs[k + 1];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Record the maps of the allocation or call at pc. The stack types only
+     * grow from NULL to a reference, so the entry of the last visit holds.
+     */
+    private void site(int pc, int n, int[] s, int[] frame) {
+        live[pc] = n;
+        stackRefs[pc] = refs(s, n);
+        frameRefs[pc] = frame;
+    }
+
+    private static int merge(CodeAnalysis.Method m, int[][] state, boolean[] queued, int[] work, int top,
+                             int pc, int[] s, int d) throws FormatException {
+        int[] old = state[pc - m.entry];
+        if (old == null) {
+            state[pc - m.entry] = Arrays.copyOf(s, d);
+            queued[pc - m.entry] = true;
+            work[top++] = pc;
+            return top;
+        }
+        boolean changed = false;
+        for (int i = 0; i < d; i++) {
+            if (old[i] != s[i] && s[i] != NULL) {
+                if (old[i] != NULL) {
+                    throw new FormatException("inconsistent reference types at " + pc);
+                }
+                old[i] = s[i];
+                changed = true;
+            }
+        }
+        if (changed && !queued[pc - m.entry]) {
+            queued[pc - m.entry] = true;
+            work[top++] = pc;
+        }
+        return top;
+    }
+
+    private int get2(int pc) {
+        return (short) ((code[pc] << 8) + (code[pc + 1] & 0xff));
+    }
+}
@@ -0,0 +1,558 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Translation of stack code into register code
+// ===========================================================================
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.util.Arrays;
+
+/**
+ * Load-time translation of verified MicroJava code into three-address code
+ * over frame registers, executed by {@link RegisterMachine}. Register i of a
+ * frame is local i for i &lt; lsize; register lsize + k holds the expression
+ * stack value at depth k. Loads of locals and constants do not produce code:
+ * the translator keeps a virtual expression stack and lets the consuming
+ * instruction read the local or the constant directly, and a value that is
+ * stored right after it was computed is written to the local in the first
+ * place. So <code>load a; load b; add; store c</code> becomes a single
+ * <code>ADD c, a, b</code>.
+ * <p>
+ * At jump targets, calls and allocations, every stack value is in its own
+ * register. A callee's frame starts at the register of its first argument,
+ * so arguments are never copied. The return value is written to the same
+ * register. Calls and allocations keep the address of their instruction in
+ * the stack code, so that the collector finds the references of every frame
+ * in the {@link RefMaps} of the stack code.
+ * <p>
+ * For recursive programs, every method gets a second, checked translation
+ * with <code>CHECK</code> instructions wherever the interpreter could
+ * overflow its expression stack. A method uses it for calls that start
+ * close enough to the stack limit.
+ */
+final class RegisterCode {
+
+    // ----- instructions; d = destination register, a, b, s, v = source
+    // registers, k = constant, t = stream index
+    static final int MOV = 0, // d, s
+            CONST = 1, // d, k
+            ADD = 2, // d, a, b
+            ADDC = 3, // d, a, k
+            SUB = 4, // d, a, b
+            MUL = 5, // d, a, b
+            MULC = 6, // d, a, k
+            DIV = 7, // d, a, b
+            REM = 8, // d, a, b
+            NEG = 9, // d, a
+            SHL = 10, // d, a, b
+            SHR = 11, // d, a, b
+            INC = 12, // local, k
+            GETSTATIC = 13, // d, adr
+            PUTSTATIC = 14, // adr, s
+            GETFIELD = 15, // d, a, off
+            PUTFIELD = 16, // a, off, s
+            NEW = 17, // d, size in bytes, code address
+            NEWARRAY = 18, // d, a, 0 = char, 1 = word, code address
+            ALOAD = 19, // d, a, b
+            ASTORE = 20, // a, b, v
+            BALOAD = 21, // d, a, b
+            BASTORE = 22, // a, b, v
+            ARRAYLENGTH = 23, // d, a
+            JMP = 24, // t
+            JEQ = 25, // a, b, t
+            JNE = 26,
+            JLT = 27,
+            JLE = 28,
+            JGT = 29,
+            JGE = 30,
+            JEQC = 31, // a, k, t
+            JNEC = 32,
+            JLTC = 33,
+            JLEC = 34,
+            JGTC = 35,
+            JGEC = 36,
+            CALL = 37, // t, register of first argument, its stack depth, code address
+            ENTER = 38, // lsize, psize, frame size, max stack, checked entry (-1 if none)
+            RET = 39, // s
+            RETV = 40,
+            READ = 41, // d
+            BREAD = 42, // d
+            PRINT = 43, // v, width
+            BPRINT = 44, // v, width
+            TRAP = 45, // n
+            CHECK = 46; // depth
+
+    /**
+     * Instruction stream.
+     */
+    int[] ops = new int[256];
+    private int n;
+
+    /**
+     * Stream index of the <code>ENTER</code> of main.
+     */
+    final int mainEntry;
+
+    private final CodeAnalysis analysis;
+    private final byte[] code;
+    private final int[] entryOf; // stream index of ENTER per method index
+    private int[] callFixups = new int[16]; // pairs (operand index, method entry address)
+    private int nCallFixups;
+
+    // ----- translation state of the current method
+    private static final int LOCAL = 0, CONSTANT = 1, TEMP = 2; // kinds of stack values
+    private CodeAnalysis.Method m;
+    private int[] kind, val; // virtual expression stack
+    private int top;
+    private int lastDest = -1; // operand index of the destination of the last instruction, -1 if none
+    private int[] jumpFixups = new int[16]; // pairs (operand index, jump target address)
+    private int nJumpFixups;
+
+    /**
+     * Translate all methods of the analysed code. Throws
+     * IllegalArgumentException for code that the interpreter runs but that
+     * has no register form, i.e. code accessing locals outside of its frame.
+     */
+    RegisterCode(CodeAnalysis analysis) {
+        this.analysis = analysis;
+        this.code = analysis.code;
+        CodeAnalysis.Method[] methods = analysis.methods;
+        entryOf = new int[methods.length];
+        for (int i = 0; i < methods.length; i++) {
+            entryOf[i] = n;
+            translate(methods[i], false);
+            if (analysis.maxExprStack < 0) { // recursive: overflow possible
+                ops[entryOf[i] + 5] = n;
+                translate(methods[i], true);
+            }
+        }
+        for (int i = 0; i < nCallFixups; i += 2) {
+            ops[callFixups[i]] = streamEntry(callFixups[i + 1]);
+        }
+        mainEntry = streamEntry(analysis.startPC);
+        ops = Arrays.copyOf(ops, n);
+    }
+
+    /**
+     * Stream index of the <code>ENTER</code> of the method at address adr.
+     */
+    private int streamEntry(int adr) {
+        CodeAnalysis.Method[] methods = analysis.methods;
+        int i = 0;
+        while (methods[i].entry != adr) {
+            i++;
+        }
+        return entryOf[i];
+    }
+
+    private void translate(CodeAnalysis.Method m, boolean checked) {
+        this.m = m;
+        kind = new int[m.maxStack + 1];
+        val = new int[m.maxStack + 1];
+        top = 0;
+        nJumpFixups = 0;
+        boolean[] isTarget = new boolean[m.end - m.entry];
+        for (int pc = m.entry; pc < m.end; pc++) {
+            OpCode op = m.depthAt(pc) >= 0 ? OpCode.get(code[pc]) : null;
+            if (op != null && op.ordinal() >= OpCode.jmp.ordinal() && op.ordinal() <= OpCode.jge.ordinal()) {
+                isTarget[pc + get2(pc + 1) - m.entry] = true;
+            }
+        }
+        int[] label = new int[m.end - m.entry];
+
+        if (!checked) {
+            emit(ENTER, m.lsize, m.psize, m.lsize + m.maxStack, m.maxStack, -1);
+        }
+        lastDest = -1;
+        boolean fallsThrough = true;
+        for (int pc = m.entry + 3; pc < m.end; ) {
+            int d = m.depthAt(pc);
+            if (d < 0) {
+                pc++;
+                continue;
+            }
+            if (isTarget[pc - m.entry] || !fallsThrough) {
+                if (fallsThrough) {
+                    flush(0);
+                }
+                for (top = 0; top < d; top++) { // values are in their registers
+                    kind[top] = TEMP;
+                    val[top] = top;
+                }
+                lastDest = -1;
+            }
+            label[pc - m.entry] = n;
+            OpCode op = OpCode.get(code[pc]);
+            int next = pc + 1 + op.getOpsSize();
+            fallsThrough = true;
+            switch (op) {
+                case load:
+                    push(LOCAL, local(code[pc + 1]));
+                    break;
+                case load_0:
+                case load_1:
+                case load_2:
+                case load_3:
+                    push(LOCAL, local(op.code() - OpCode.load_0.code()));
+                    break;
+                case store:
+                    store(local(code[pc + 1]));
+                    break;
+                case store_0:
+                case store_1:
+                case store_2:
+                case store_3:
+                    store(local(op.code() - OpCode.store_0.code()));
+                    break;
+                case getstatic:
+                    result(GETSTATIC, get2(pc + 1));
+                    break;
+                case putstatic:
+                    emit(PUTSTATIC, get2(pc + 1), pop());
+                    break;
+                case getfield:
+                    result(GETFIELD, pop(), get2(pc + 1));
+                    break;
+                case putfield: {
+                    int v = pop();
+                    emit(PUTFIELD, pop(), get2(pc + 1), v);
+                    break;
+                }
+                case const_0:
+                case const_1:
+                case const_2:
+                case const_3:
+                case const_4:
+                case const_5:
+                    push(CONSTANT, op.code() - OpCode.const_0.code());
+                    break;
+                case const_m1:
+                    push(CONSTANT, -1);
+                    break;
+                case const_:
+                    push(CONSTANT, (get2(pc + 1) << 16) + (get2(pc + 3) & 0xffff));
+                    break;
+                case add:
+                    arith(ADD, ADDC, true);
+                    break;
+                case sub:
+                    if (kind[top - 1] == CONSTANT) {
+                        int k = val[--top];
+                        result(ADDC, pop(), -k);
+                    } else {
+                        arith(SUB, -1, false);
+                    }
+                    break;
+                case mul:
+                    arith(MUL, MULC, true);
+                    break;
+                case div:
+                    arith(DIV, -1, false);
+                    break;
+                case rem:
+                    arith(REM, -1, false);
+                    break;
+                case neg:
+                    result(NEG, pop());
+                    break;
+                case shl:
+                    arith(SHL, -1, false);
+                    break;
+                case shr:
+                    arith(SHR, -1, false);
+                    break;
+                case inc:
+                    saveLocal(local(code[pc + 1]));
+                    emit(INC, code[pc + 1], code[pc + 2]);
+                    break;
+                case new_:
+                    flush(0);
+                    result(NEW, get2(pc + 1) * 4, pc);
+                    break;
+                case newarray: {
+                    int len = pop();
+                    flush(0);
+                    result(NEWARRAY, len, code[pc + 1], pc);
+                    break;
+                }
+                case aload:
+                case baload: {
+                    int b = pop();
+                    result(op == OpCode.aload ? ALOAD : BALOAD, pop(), b);
+                    break;
+                }
+                case astore:
+                case bastore: {
+                    int v = pop();
+                    int b = pop();
+                    emit(op == OpCode.astore ? ASTORE : BASTORE, pop(), b, v);
+                    break;
+                }
+                case arraylength:
+                    result(ARRAYLENGTH, pop());
+                    break;
+                case pop:
+                    top--;
+                    break;
+                case dup:
+                    push(kind[top - 1], val[top - 1]);
+                    break;
+                case dup2:
+                    push(kind[top - 2], val[top - 2]);
+                    push(kind[top - 2], val[top - 2]);
+                    break;
+                case jmp:
+                    flush(0);
+                    emit(JMP, 0);
+                    jumpFixup(pc + get2(pc + 1));
+                    fallsThrough = false;
+                    break;
+                case jeq:
+                case jne:
+                case jlt:
+                case jle:
+                case jgt:
+                case jge:
+                    branch(op.ordinal() - OpCode.jeq.ordinal(), pc + get2(pc + 1));
+                    break;
+                case call: {
+                    CodeAnalysis.Method callee = analysis.methodEntry(pc + get2(pc + 1));
+                    int args = top - callee.psize;
+                    flush(0);
+                    emit(CALL, 0, m.lsize + args, args, pc);
+                    callFixup(callee.entry);
+                    top = args;
+                    if (callee.returnsValue) {
+                        push(TEMP, args);
+                    }
+                    fallsThrough = callee.kindKnown;
+                    break;
+                }
+                case return_:
+                    if (top > 0) {
+                        emit(RET, pop());
+                    } else {
+                        emit(RETV);
+                    }
+                    fallsThrough = false;
+                    break;
+                case read:
+                    result(READ);
+                    break;
+                case bread:
+                    result(BREAD);
+                    break;
+                case print:
+                case bprint: {
+                    int w = pop();
+                    emit(op == OpCode.print ? PRINT : BPRINT, pop(), w);
+                    break;
+                }
+                case trap:
+                    emit(TRAP, code[pc + 1]);
+                    fallsThrough = false;
+                    break;
+                case exit: // part of return
+                case nop:
+                    break;
+                default:
+                    throw new IllegalStateException("unexpected " + op + " at " + pc);
+            }
+            if (checked && op != OpCode.call && fallsThrough && m.depthAt(next) > d) {
+                // the interpreter checks for overflow here
+                emit(CHECK, m.depthAt(next));
+            }
+            pc = next;
+        }
+        for (int i = 0; i < nJumpFixups; i += 2) {
+            ops[jumpFixups[i]] = label[jumpFixups[i + 1] - m.entry];
+        }
+    }
+
+    private int local(int x) {
+        if (x < 0 || x >= m.lsize) {
+            throw new IllegalArgumentException("local " + x + " outside of frame in method at " + m.entry);
+        }
+        return x;
+    }
+
+    // ----- virtual expression stack
+
+    private void push(int k, int v) {
+        kind[top] = k;
+        val[top] = v;
+        top++;
+    }
+
+    /**
+     * Pop the top value and return the register holding it. Constants are
+     * loaded into the value's own register first.
+     */
+    private int pop() {
+        top--;
+        return reg(top);
+    }
+
+    private int reg(int depth) {
+        switch (kind[depth]) {
+            case LOCAL:
+                return val[depth];
+            case TEMP:
+                return m.lsize + val[depth];
+            default:
+                emit(CONST, m.lsize + depth, val[depth]);
+                return m.lsize + depth;
+        }
+    }
+
+    /**
+     * Move the values from depth from up into their own registers.
+     */
+    private void flush(int from) {
+        for (int i = from; i < top; i++) {
+            if (kind[i] != TEMP || val[i] != i) {
+                int r = reg(i);
+                if (r != m.lsize + i) {
+                    emit(MOV, m.lsize + i, r);
+                }
+                kind[i] = TEMP;
+                val[i] = i;
+            }
+        }
+    }
+
+    /**
+     * Local x is about to change: stack values that are still read from it
+     * move to their own registers.
+     */
+    private void saveLocal(int x) {
+        for (int i = 0; i < top; i++) {
+            if (kind[i] == LOCAL && val[i] == x) {
+                emit(MOV, m.lsize + i, x);
+                kind[i] = TEMP;
+                val[i] = i;
+            }
+        }
+    }
+
+    private void store(int x) {
+        int k = kind[top - 1], v = val[top - 1];
+        top--;
+        boolean read = false;
+        for (int i = 0; i < top; i++) {
+            read |= kind[i] == LOCAL && val[i] == x;
+        }
+        if (!read && k == TEMP && v == top && lastDest >= 0 && ops[lastDest] == m.lsize + v) {
+            ops[lastDest] = x; // compute the value into the local directly
+            lastDest = -1;
+            return;
+        }
+        saveLocal(x);
+        if (k == CONSTANT) {
+            emit(CONST, x, v);
+        } else if (k != LOCAL || v != x) {
+            emit(MOV, x, k == LOCAL ? v : m.lsize + v);
+        }
+    }
+
+    /**
+     * Binary operation on the two top values; constants are folded into the
+     * constant form if there is one.
+     */
+    private void arith(int regForm, int constForm, boolean commutative) {
+        if (constForm >= 0 && kind[top - 1] == CONSTANT) {
+            int k = val[--top];
+            result(constForm, pop(), k);
+        } else if (constForm >= 0 && commutative && kind[top - 2] == CONSTANT) {
+            int k = val[top - 2];
+            int a = reg(top - 1);
+            top -= 2;
+            result(constForm, a, k);
+        } else {
+            int b = pop();
+            result(regForm, pop(), b);
+        }
+    }
+
+    private static final int[] swapped = {0, 1, 4, 5, 2, 3}; // condition with swapped operands
+
+    private void branch(int cond, int target) {
+        int bk = kind[top - 1], bv = val[top - 1];
+        int ak = kind[top - 2], av = val[top - 2];
+        top -= 2;
+        flush(0);
+        if (bk == CONSTANT || ak == CONSTANT) {
+            if (bk != CONSTANT) { // constant on the left: swap
+                cond = swapped[cond];
+                int t = ak;
+                ak = bk;
+                bk = t;
+                t = av;
+                av = bv;
+                bv = t;
+            }
+            int a = ak == CONSTANT ? loadConst(top, av) : register(ak, av);
+            emit(JEQC + cond, a, bv, 0);
+        } else {
+            emit(JEQ + cond, register(ak, av), register(bk, bv), 0);
+        }
+        jumpFixup(target);
+    }
+
+    private int register(int k, int v) {
+        return k == LOCAL ? v : m.lsize + v;
+    }
+
+    private int loadConst(int depth, int v) {
+        emit(CONST, m.lsize + depth, v);
+        return m.lsize + depth;
+    }
+
+    // ----- emission
+
+    /**
+     * Emit an instruction whose first operand is the destination register,
+     * which is the register of the result's stack depth.
+     */
+    private void result(int op, int... operands) {
+        int d = m.lsize + top;
+        int[] all = new int[operands.length + 1];
+        all[0] = d;
+        System.arraycopy(operands, 0, all, 1, operands.length);
+        emit(op, all);
+        lastDest = n - all.length;
+        push(TEMP, top);
+    }
+
+    private void emit(int op, int... operands) {
+        if (n + operands.length + 1 > ops.length) {
+            ops = Arrays.copyOf(ops, 2 * ops.length + operands.length);
+        }
+        ops[n++] = op;
+        for (int o : operands) {
+            ops[n++] = o;
+        }
+        lastDest = -1;
+    }
+
+    private void jumpFixup(int target) {
+        if (nJumpFixups == jumpFixups.length) {
+            jumpFixups = Arrays.copyOf(jumpFixups, 2 * nJumpFixups);
+        }
+        jumpFixups[nJumpFixups++] = n - 1;
+        jumpFixups[nJumpFixups++] = target;
+    }
+
+    private void callFixup(int entry) {
+        if (nCallFixups == callFixups.length) {
+            callFixups = Arrays.copyOf(callFixups, 2 * nCallFixups);
+        }
+        callFixups[nCallFixups++] = n - 4;
+        callFixups[nCallFixups++] = entry;
+    }
+
+    private int get2(int pc) {
+        return (short) ((code[pc] << 8) + (code[pc + 1] & 0xff));
+    }
+}
@@ -0,0 +1,291 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Execution of register code
+// ===========================================================================
+package ssw.mj;
+
+import java.util.Arrays;
+
+import static ssw.mj.RegisterCode.*;
+
+/**
+ * Runs the register form of a program (see {@link RegisterCode}) on the heap,
+ * global data and I/O of an interpreter. Frames live in a register array that
+ * grows as needed; return information is kept on a separate call stack. The
+ * interpreter's method stack is not used, but its usage is counted so that a
+ * program overflows it at the same call as in the interpreter. Allocations
+ * pass the frames to the collector of the interpreter, if it has one.
+ */
+final class RegisterMachine {
+
+    private final Interpreter vm;
+    private final int[] ops;
+    private final int mainEntry;
+
+    RegisterMachine(Interpreter vm, RegisterCode code) {
+        this.vm = vm;
+        this.ops = code.ops;
+        this.mainEntry = code.mainEntry;
+    }
+
+    void run() throws IllegalStateException {
+        int[] ops = this.ops;
+        int[] regs = new int[256]; // frames
+        int[] calls = new int[64]; // per active call: return index, fp, base, sp of the caller
+        int csp = 0; // call stack pointer
+        int fp = 0; // first register of the current frame
+        int base = 0; // expression stack depth of the interpreter at the frame's start
+        int sp = -1; // method stack words the interpreter would use; main has no return address
+        int[] data = vm.data;
+        Heap heap = vm.heap; // grows in place
+        VmMonitor monitor = vm.monitor;
+        int pc = mainEntry;
+        int adr, idx, val, lsize;
+
+        for (; ; ) {
+            switch (ops[pc]) {
+                case MOV:
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]];
+                    pc += 3;
+                    break;
+                case CONST:
+                    regs[fp + ops[pc + 1]] = ops[pc + 2];
+                    pc += 3;
+                    break;
+
+                // arithmetic
+                case ADD:
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]] + regs[fp + ops[pc + 3]];
+                    pc += 4;
+                    break;
+                case ADDC:
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]] + ops[pc + 3];
+                    pc += 4;
+                    break;
+                case SUB:
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]] - regs[fp + ops[pc + 3]];
+                    pc += 4;
+                    break;
+                case MUL:
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]] * regs[fp + ops[pc + 3]];
+                    pc += 4;
+                    break;
+                case MULC:
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]] * ops[pc + 3];
+                    pc += 4;
+                    break;
+                case DIV:
+                    val = Interpreter.divisor(regs[fp + ops[pc + 3]]);
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]] / val;
+                    pc += 4;
+                    break;
+                case REM:
+                    val = Interpreter.divisor(regs[fp + ops[pc + 3]]);
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]] % val;
+                    pc += 4;
+                    break;
+                case NEG:
+                    regs[fp + ops[pc + 1]] = -regs[fp + ops[pc + 2]];
+                    pc += 3;
+                    break;
+                case SHL:
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]] << regs[fp + ops[pc + 3]];
+                    pc += 4;
+                    break;
+                case SHR:
+                    regs[fp + ops[pc + 1]] = regs[fp + ops[pc + 2]] >> regs[fp + ops[pc + 3]];
+                    pc += 4;
+                    break;
+                case INC:
+                    regs[fp + ops[pc + 1]] += ops[pc + 2];
+                    pc += 3;
+                    break;
+
+                // global data and objects
+                case GETSTATIC:
+                    regs[fp + ops[pc + 1]] = data[ops[pc + 2]];
+                    pc += 3;
+                    break;
+                case PUTSTATIC:
+                    data[ops[pc + 1]] = regs[fp + ops[pc + 2]];
+                    pc += 3;
+                    break;
+                case GETFIELD:
+                    adr = Interpreter.nonNull(regs[fp + ops[pc + 2]]);
+                    regs[fp + ops[pc + 1]] = heap.get(adr + ops[pc + 3]);
+                    pc += 4;
+                    break;
+                case PUTFIELD:
+                    adr = Interpreter.nonNull(regs[fp + ops[pc + 1]]);
+                    heap.set(adr + ops[pc + 2], regs[fp + ops[pc + 3]]);
+                    pc += 4;
+                    break;
+                case NEW:
+                    regs[fp + ops[pc + 1]] = vm.alloc(ops[pc + 2], ops[pc + 3], ops, regs, fp, calls, csp);
+                    pc += 4;
+                    break;
+                case NEWARRAY:
+                    val = regs[fp + ops[pc + 2]];
+                    adr = vm.alloc(ops[pc + 3] == 0 ? val + 4 : val * 4 + 4, ops[pc + 4], ops, regs, fp, calls, csp);
+                    heap.set(adr, val);
+                    regs[fp + ops[pc + 1]] = adr + 1; // skip length field of array
+                    pc += 5;
+                    break;
+
+                // arrays
+                case ALOAD:
+                    adr = regs[fp + ops[pc + 2]];
+                    idx = regs[fp + ops[pc + 3]];
+                    Interpreter.checkIndex(heap, adr, idx);
+                    regs[fp + ops[pc + 1]] = heap.get(adr + idx);
+                    pc += 4;
+                    break;
+                case ASTORE:
+                    adr = regs[fp + ops[pc + 1]];
+                    idx = regs[fp + ops[pc + 2]];
+                    Interpreter.checkIndex(heap, adr, idx);
+                    heap.set(adr + idx, regs[fp + ops[pc + 3]]);
+                    pc += 4;
+                    break;
+                case BALOAD:
+                    adr = regs[fp + ops[pc + 2]];
+                    idx = regs[fp + ops[pc + 3]];
+                    Interpreter.checkIndex(heap, adr, idx);
+                    regs[fp + ops[pc + 1]] = heap.getByte(adr, idx);
+                    pc += 4;
+                    break;
+                case BASTORE:
+                    adr = regs[fp + ops[pc + 1]];
+                    idx = regs[fp + ops[pc + 2]];
+                    Interpreter.checkIndex(heap, adr, idx);
+                    heap.setByte(adr, idx, (byte) regs[fp + ops[pc + 3]]);
+                    pc += 4;
+                    break;
+                case ARRAYLENGTH:
+                    adr = Interpreter.nonNull(regs[fp + ops[pc + 2]]);
+                    regs[fp + ops[pc + 1]] = heap.get(adr - 1);
+                    pc += 3;
+                    break;
+
+                // jumps
+                case JMP:
+                    pc = ops[pc + 1];
+                    break;
+                case JEQ:
+                    pc = regs[fp + ops[pc + 1]] == regs[fp + ops[pc + 2]] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JNE:
+                    pc = regs[fp + ops[pc + 1]] != regs[fp + ops[pc + 2]] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JLT:
+                    pc = regs[fp + ops[pc + 1]] < regs[fp + ops[pc + 2]] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JLE:
+                    pc = regs[fp + ops[pc + 1]] <= regs[fp + ops[pc + 2]] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JGT:
+                    pc = regs[fp + ops[pc + 1]] > regs[fp + ops[pc + 2]] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JGE:
+                    pc = regs[fp + ops[pc + 1]] >= regs[fp + ops[pc + 2]] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JEQC:
+                    pc = regs[fp + ops[pc + 1]] == ops[pc + 2] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JNEC:
+                    pc = regs[fp + ops[pc + 1]] != ops[pc + 2] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JLTC:
+                    pc = regs[fp + ops[pc + 1]] < ops[pc + 2] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JLEC:
+                    pc = regs[fp + ops[pc + 1]] <= ops[pc + 2] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JGTC:
+                    pc = regs[fp + ops[pc + 1]] > ops[pc + 2] ? ops[pc + 3] : pc + 4;
+                    break;
+                case JGEC:
+                    pc = regs[fp + ops[pc + 1]] >= ops[pc + 2] ? ops[pc + 3] : pc + 4;
+                    break;
+
+                // method calls
+                case CALL:
+                    if (csp + 4 > calls.length) {
+                        calls = Arrays.copyOf(calls, 2 * calls.length);
+                    }
+                    calls[csp] = pc + 5;
+                    calls[csp + 1] = fp;
+                    calls[csp + 2] = base;
+                    calls[csp + 3] = sp;
+                    csp += 4;
+                    fp += ops[pc + 2];
+                    base += ops[pc + 3];
+                    pc = ops[pc + 1];
+                    if (monitor != null) {
+                        // like the interpreter: the callee's frame and expression stack, loops are not counted
+                        monitor.call(sp + 2 + ops[pc + 1], base + ops[pc + 4]);
+                    }
+                    break;
+                case ENTER:
+                    lsize = ops[pc + 1];
+                    if (sp + 2 + lsize > vm.limits.methodStack) {
+                        throw new IllegalStateException("method stack overflow");
+                    }
+                    sp += 2 + lsize;
+                    if (fp + ops[pc + 3] > regs.length) {
+                        regs = Arrays.copyOf(regs, Math.max(2 * regs.length, fp + ops[pc + 3]));
+                    }
+                    Arrays.fill(regs, fp + ops[pc + 2], fp + lsize, 0);
+                    if (ops[pc + 5] >= 0 && vm.limits.exprStack - base < ops[pc + 4]) {
+                        pc = ops[pc + 5]; // the expression stack may overflow in this call
+                    } else {
+                        pc += 6;
+                    }
+                    break;
+                case RET:
+                case RETV:
+                    if (csp == 0) {
+                        return;
+                    }
+                    if (ops[pc] == RET) {
+                        regs[fp] = regs[fp + ops[pc + 1]]; // where the caller expects the result
+                    }
+                    csp -= 4;
+                    pc = calls[csp];
+                    fp = calls[csp + 1];
+                    base = calls[csp + 2];
+                    sp = calls[csp + 3];
+                    break;
+                case CHECK:
+                    if (base + ops[pc + 1] > vm.limits.exprStack) {
+                        throw new IllegalStateException("expression stack overflow");
+                    }
+                    pc += 2;
+                    break;
+
+                // I/O
+                case READ:
+                    regs[fp + ops[pc + 1]] = vm.readInt();
+                    pc += 2;
+                    break;
+                case BREAD:
+                    regs[fp + ops[pc + 1]] = vm.read();
+                    pc += 2;
+                    break;
+                case PRINT:
+                    vm.print(regs[fp + ops[pc + 1]], regs[fp + ops[pc + 2]]);
+                    pc += 3;
+                    break;
+                case BPRINT:
+                    vm.bprint(regs[fp + ops[pc + 1]], regs[fp + ops[pc + 2]]);
+                    pc += 3;
+                    break;
+                case TRAP:
+                    throw new IllegalStateException("trap(" + ops[pc + 1] + ")");
+
+                default:
+                    throw new IllegalStateException("wrong opcode " + ops[pc]);
+            }
+        }
+    }
+}
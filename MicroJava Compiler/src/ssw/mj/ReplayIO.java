@@ -0,0 +1,183 @@
+// MicroJava Virtual Machine
+// -------------------------
+// I/O replay (java ssw.mj.Run fileName -replay inFile)
+// ===========================================================================
+package ssw.mj;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import static ssw.mj.RecordingIO.*;
+
+/**
+ * Runs a program on the I/O recorded by {@link RecordingIO}: reads return
+ * the recorded input and the output is compared with the recorded output
+ * instead of being written anywhere, so a replayed run does no real I/O.
+ * Output is compared as a sequence of chars, regardless of how it was split
+ * into blocks. If the program reads or writes something else than the
+ * recorded run, the replay stops with an IllegalStateException.
+ */
+public class ReplayIO implements Interpreter.IO, Closeable {
+
+    private static final int blockSize = 1 << 16;
+
+    private final FileChannel in;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(blockSize);
+    private int tag; // tag of the next record, -1 at the end of the recording
+    private int expected; // chars left of the current OUTPUT record
+    private long written; // chars of output compared so far
+
+    public ReplayIO(Path file) throws IOException {
+        in = FileChannel.open(file);
+        buf.limit(0);
+        try {
+            if (get() != 'M' || get() != 'R') {
+                throw new FormatException("wrong marker");
+            }
+            if (get() != VERSION) {
+                throw new FormatException("unknown version");
+            }
+            next();
+        } catch (UncheckedIOException e) {
+            in.close();
+            throw e.getCause();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Next byte of the recording, -1 at its end.
+     */
+    private int get() {
+        if (!buf.hasRemaining()) {
+            buf.clear();
+            try {
+                int n;
+                do {
+                    n = in.read(buf);
+                } while (n == 0);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            buf.flip();
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+        }
+        return buf.get() & 0xff;
+    }
+
+    /**
+     * Next number of the recording.
+     */
+    private int number() {
+        int val = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = get();
+            if (b < 0) {
+                throw new UncheckedIOException(new FormatException("recording is cut off"));
+            }
+            val |= (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return val;
+            }
+        }
+    }
+
+    /**
+     * Read the tag of the next record.
+     */
+    private void next() {
+        tag = get();
+        if (tag > OUTPUT) {
+            throw new UncheckedIOException(new FormatException("unknown record " + tag));
+        }
+    }
+
+    private IllegalStateException mismatch(String what) {
+        return new IllegalStateException("replay: " + what + " after " + written + " chars of output");
+    }
+
+    /**
+     * Check that the next record has the given tag. If not, the program
+     * differs from the recorded one in what it does.
+     */
+    private void expect(int expectedTag, String action) {
+        if (tag == expectedTag) {
+            return;
+        }
+        if (tag < 0) {
+            throw mismatch("program " + action + " behind the end of the recording");
+        }
+        throw mismatch("program " + action + " where the recording " + (tag == OUTPUT ? "writes"
+                : tag == INT ? "reads a number" : "reads a char"));
+    }
+
+    @Override
+    public char read() {
+        expect(CHAR, "reads a char");
+        char c = (char) number();
+        next();
+        return c;
+    }
+
+    @Override
+    public int readInt() {
+        expect(INT, "reads a number");
+        int val = number();
+        next();
+        return val >>> 1 ^ -(val & 1);
+    }
+
+    @Override
+    public void write(char c) {
+        while (expected == 0) {
+            expect(OUTPUT, "writes");
+            expected = number();
+            if (expected == 0) {
+                next();
+            }
+        }
+        if (number() != c) {
+            throw mismatch("output differs from the recording");
+        }
+        written++;
+        if (--expected == 0) {
+            next();
+        }
+    }
+
+    @Override
+    public void write(char[] chars, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            write(chars[i]);
+        }
+    }
+
+    /**
+     * Check that the program has done all the recorded I/O, after it ended.
+     */
+    public void finish() {
+        if (expected > 0 || tag >= 0) {
+            throw mismatch("program ended before the end of the recording");
+        }
+    }
+
+    /**
+     * Chars of output that matched the recording.
+     */
+    public long written() {
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,71 +1,230 @@
 // MicroJava Virtual Machine
 // -------------------------
-// Syntax: java ssw.mj.Run fileName [-debug]
+// Syntax: java ssw.mj.Run fileName [-debug] [-mine-pairs] [-profile] [-allocs] [-sample outFile]
+//                             [-trace outFile [-trace-heap]] [-coverage outFile] [-monitor]
+//                             [-input inFile] [-record outFile | -replay inFile]
+//                             [-jit | -tiered | -register]
+//                             [-heap words] [-mstack words] [-estack words] [-offheap]
 // ===========================================================================
 // by Hanspeter Moessenboeck, 2002-10-28
 // edited by Albrecht Woess, 2002-10-30
 package ssw.mj;
 
-import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 
 public class Run {
 
     // ----- VM internals
-    static Interpreter load(String name, boolean debug) throws IOException {
-        int codeSize;
-        byte[] sig = new byte[2];
-        DataInputStream in = new DataInputStream(new FileInputStream(name));
-        in.read(sig, 0, 2);
-        if (sig[0] != 'M' || sig[1] != 'J') {
-            in.close();
-            throw new FormatException("wrong marker");
+    static Interpreter load(String name, boolean debug, Interpreter.Limits limits) throws IOException {
+        try (FileInputStream in = new FileInputStream(name)) {
+            return new Interpreter(ProgramImage.read(in.readAllBytes(), limits), Interpreter.ConsoleIO, debug);
         }
-        codeSize = in.readInt();
-        if (codeSize <= 0) {
-            in.close();
-            throw new FormatException("codeSize <= 0");
-        }
-        int dataSize = in.readInt();
-        if (dataSize < 0) {
-            in.close();
-            throw new FormatException("dataSize < 0");
-        }
-        int startPC = in.readInt();
-        if (startPC < 0 || startPC >= codeSize) {
-            in.close();
-            throw new FormatException("startPC not in code area");
-        }
-        byte[] code = new byte[codeSize];
-        in.read(code, 0, codeSize);
-        in.close();
-
-        return new Interpreter(code, startPC, dataSize, Interpreter.ConsoleIO, debug);
     }
 
     public static void main(String[] arg) {
         String fileName = null;
         boolean debug = false;
+        boolean mine = false;
+        boolean profile = false;
+        boolean allocs = false;
+        String sampleFile = null;
+        String traceFile = null;
+        boolean traceHeap = false;
+        String coverageFile = null;
+        String inputFile = null;
+        String recordFile = null;
+        String replayFile = null;
+        boolean offHeap = false;
+        boolean monitored = false;
+        Interpreter.Engine engine = Interpreter.Engine.INTERPRETER;
+        int heap = Interpreter.heapSize, mStack = Interpreter.mStackSize, eStack = Interpreter.eStackSize;
         for (int i = 0; i < arg.length; i++) {
             if (arg[i].equals("-debug")) {
                 debug = true;
+            } else if (arg[i].equals("-mine-pairs")) {
+                mine = true;
+            } else if (arg[i].equals("-profile")) {
+                profile = true;
+            } else if (arg[i].equals("-allocs")) {
+                allocs = true;
+            } else if (arg[i].equals("-sample") && i + 1 < arg.length) {
+                sampleFile = arg[++i];
+            } else if (arg[i].equals("-trace") && i + 1 < arg.length) {
+                traceFile = arg[++i];
+            } else if (arg[i].equals("-trace-heap")) {
+                traceHeap = true;
+            } else if (arg[i].equals("-coverage") && i + 1 < arg.length) {
+                coverageFile = arg[++i];
+            } else if (arg[i].equals("-input") && i + 1 < arg.length) {
+                inputFile = arg[++i];
+            } else if (arg[i].equals("-record") && i + 1 < arg.length) {
+                recordFile = arg[++i];
+            } else if (arg[i].equals("-replay") && i + 1 < arg.length) {
+                replayFile = arg[++i];
+            } else if (arg[i].equals("-monitor")) {
+                monitored = true;
+            } else if (arg[i].equals("-jit")) {
+                engine = Interpreter.Engine.JIT;
+            } else if (arg[i].equals("-tiered")) {
+                engine = Interpreter.Engine.TIERED;
+            } else if (arg[i].equals("-register")) {
+                engine = Interpreter.Engine.REGISTER;
+            } else if (arg[i].equals("-offheap")) {
+                offHeap = true;
+            } else if (arg[i].equals("-heap") && i + 1 < arg.length) {
+                heap = words(arg[++i]);
+            } else if (arg[i].equals("-mstack") && i + 1 < arg.length) {
+                mStack = words(arg[++i]);
+            } else if (arg[i].equals("-estack") && i + 1 < arg.length) {
+                eStack = words(arg[++i]);
             } else {
                 fileName = arg[i];
             }
         }
-        if (fileName == null) {
-            System.out.println("Syntax: java ssw.mj.Run filename [-debug]");
+        if (fileName == null || recordFile != null && replayFile != null || heap <= 0 || mStack <= 0 || eStack <= 0) {
+            System.out.println("Syntax: java ssw.mj.Run filename [-debug] [-mine-pairs] [-profile] [-allocs] [-sample outFile]");
+            System.out.println("                               [-trace outFile [-trace-heap]] [-coverage outFile] [-monitor]");
+            System.out.println("                               [-input inFile] [-record outFile | -replay inFile]");
+            System.out.println("                               [-jit | -tiered | -register]");
+            System.out.println("                               [-heap words] [-mstack words] [-estack words] [-offheap]");
             return;
         }
         try {
-            Interpreter r = load(fileName, debug);
+            Interpreter r = load(fileName, debug, new Interpreter.Limits(heap, mStack, eStack));
+            if (offHeap) {
+                r.setOffHeap(true);
+            }
+            r.setMonitored(monitored);
+            ChannelIO input = null;
+            if (inputFile != null) {
+                try {
+                    input = ChannelIO.open(Paths.get(inputFile));
+                } catch (IOException e) {
+                    System.out.println("-- error reading file " + inputFile);
+                    return;
+                }
+                r.io = input;
+            }
+            RecordingIO recording = null;
+            if (recordFile != null) {
+                try {
+                    recording = new RecordingIO(r.io, Paths.get(recordFile));
+                } catch (IOException e) {
+                    System.out.println("-- error writing file " + recordFile);
+                    return;
+                }
+                r.io = recording;
+            }
+            ReplayIO replay = null;
+            if (replayFile != null) {
+                try {
+                    replay = new ReplayIO(Paths.get(replayFile));
+                } catch (FormatException e) {
+                    System.out.println("-- corrupted recording " + replayFile + ": " + e.getMessage());
+                    return;
+                } catch (IOException e) {
+                    System.out.println("-- error reading file " + replayFile);
+                    return;
+                }
+                r.io = replay;
+            }
+            OpcodeMiner miner = null;
+            if (mine) {
+                miner = new OpcodeMiner();
+                r.addListener(miner);
+            }
+            Profiler profiler = null;
+            if (profile) {
+                profiler = new Profiler(r);
+                r.addListener(profiler);
+            }
+            AllocationSites sites = null;
+            if (allocs) {
+                sites = new AllocationSites(r);
+                r.setAllocationSites(sites);
+            }
+            TraceRecorder recorder = null;
+            if (traceFile != null) {
+                try {
+                    recorder = new TraceRecorder(r, Paths.get(traceFile), traceHeap);
+                } catch (IOException e) {
+                    System.out.println("-- error writing file " + traceFile);
+                    return;
+                }
+                r.addListener(recorder);
+            }
+            if (engine != Interpreter.Engine.INTERPRETER && (mine || profile || allocs || sampleFile != null
+                    || traceFile != null || coverageFile != null || r.setEngine(engine) != engine)) {
+                System.out.println("-- " + engine.name().toLowerCase() + " engine not available for this run, interpreting");
+            }
+            Sampler sampler = null;
+            if (sampleFile != null) {
+                if (debug || mine || profile || traceFile != null) {
+                    System.out.println("-- sampling not available for this run");
+                } else {
+                    sampler = new Sampler(r, 1000, true);
+                    r.setSampler(sampler);
+                    sampler.start();
+                }
+            }
+            Coverage coverage = null;
+            if (coverageFile != null) {
+                if (debug || mine || profile || traceFile != null) {
+                    System.out.println("-- coverage not available for this run");
+                } else {
+                    coverage = new Coverage(r);
+                    r.setCoverage(coverage);
+                }
+            }
 
             long startTime = System.currentTimeMillis();
-            r.run();
+            try {
+                r.run();
 
-            System.out.print("\nCompletion took " + (System.currentTimeMillis() - startTime) + " ms");
+                System.out.print("\nCompletion took " + (System.currentTimeMillis() - startTime) + " ms");
+                if (replay != null) {
+                    replay.finish();
+                    System.out.print("\n-- " + replay.written() + " chars of output match the recording");
+                }
+                if (miner != null) {
+                    miner.print(System.out, 25);
+                }
+            } finally {
+                if (profiler != null) { // also the profile up to a trap
+                    profiler.print(System.out, 25);
+                }
+                if (sites != null) { // above all after a heap overflow
+                    sites.print(System.out, 10);
+                }
+                if (sampler != null) {
+                    sampler.stop();
+                    writeSamples(sampler, sampleFile);
+                }
+                if (recorder != null) { // also the trace up to a trap
+                    closeTrace(recorder, traceFile);
+                }
+                if (coverage != null) {
+                    writeCoverage(coverage, coverageFile, fileName);
+                }
+                if (recording != null) { // also the I/O up to a trap
+                    closeRecording(recording, recordFile);
+                }
+                if (replay != null) {
+                    replay.close();
+                }
+                if (input != null) {
+                    input.close();
+                }
+            }
         } catch (FileNotFoundException e) {
             System.out.println("-- file " + fileName + " not found");
         } catch (FormatException e) {
@@ -74,13 +233,65 @@ public class Run {
             System.out.println("-- error reading file " + fileName);
         }
     }
-}
 
-class FormatException extends IOException {
+    private static void writeSamples(Sampler sampler, String fileName) {
+        try (PrintStream out = new PrintStream(new FileOutputStream(fileName))) {
+            sampler.print(out);
+            System.out.println("\n-- " + sampler.samples() + " samples written to " + fileName);
+        } catch (IOException e) {
+            System.out.println("\n-- error writing file " + fileName);
+        }
+    }
+
+    /**
+     * Write the coverage report, listing the source next to the object file
+     * if there is one.
+     */
+    private static void writeCoverage(Coverage coverage, String fileName, String objFileName) {
+        List<String> source = null;
+        int i = objFileName.lastIndexOf('.');
+        Path sourceFile = Paths.get((i < 0 ? objFileName : objFileName.substring(0, i)) + ".mj");
+        if (Files.isReadable(sourceFile)) {
+            try {
+                source = Files.readAllLines(sourceFile, Charset.defaultCharset());
+            } catch (IOException e) {
+                // report without the source
+            }
+        }
+        try (PrintStream out = new PrintStream(new FileOutputStream(fileName))) {
+            coverage.print(out, source);
+            System.out.println("\n-- coverage written to " + fileName);
+        } catch (IOException e) {
+            System.out.println("\n-- error writing file " + fileName);
+        }
+    }
 
-    private static final long serialVersionUID = 1L;
+    private static void closeTrace(TraceRecorder recorder, String fileName) {
+        try {
+            recorder.close();
+            System.out.println("\n-- " + recorder.records() + " trace records written to " + fileName);
+        } catch (IOException e) {
+            System.out.println("\n-- error writing file " + fileName);
+        }
+    }
 
-    FormatException(String s) {
-        super(s);
+    private static void closeRecording(RecordingIO recording, String fileName) {
+        try {
+            recording.close();
+            System.out.println("\n-- I/O recorded in " + fileName);
+        } catch (IOException e) {
+            System.out.println("\n-- error writing file " + fileName);
+        }
     }
-}
\ No newline at end of file
+
+    /**
+     * Positive number of words given as option value, 0 if it is none.
+     */
+    private static int words(String s) {
+        try {
+            return Math.max(0, Integer.parseInt(s));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Sampling profiler (java ssw.mj.Run fileName -sample outFile)
+// ===========================================================================
+package ssw.mj;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Samples the MicroJava call stack of an interpreter at a fixed interval. A
+ * timer thread only raises a volatile flag; the interpreter looks at the flag
+ * at calls and backward jumps, which it executes on a copy of the stream
+ * ({@link DecodedCode#sampled()}), and then walks the frames on the method
+ * stack. Runs without a sampler do not pay for these checks.
+ * <p>
+ * Samples are collected as collapsed stacks, one line per call path from main
+ * to the sampled method with its number of samples, the input format of
+ * flame graph tools. Every sample is also a {@link VmEvents.MethodSample}
+ * for the Flight Recorder.
+ */
+final class Sampler {
+
+    final int[] ops; // stream with sample points
+    volatile boolean due; // set by the timer, cleared by the next sample
+
+    private final Interpreter vm;
+    private final long interval; // in nanoseconds
+    private final boolean collect; // keep the collapsed stacks, not only the events
+    private final Map<String, Long> stacks = new TreeMap<>();
+    private Thread timer;
+    private long samples;
+
+    Sampler(Interpreter vm, long intervalMicros, boolean collect) {
+        this.vm = vm;
+        this.ops = vm.image.sampled();
+        this.interval = intervalMicros * 1000;
+        this.collect = collect;
+    }
+
+    void start() {
+        timer = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(interval);
+                due = true;
+            }
+        }, "MicroJava sampler");
+        timer.setDaemon(true);
+        timer.start();
+    }
+
+    void stop() {
+        if (timer != null) {
+            timer.interrupt();
+        }
+    }
+
+    /**
+     * Take a sample at the instruction at stream index idx in the frame fp.
+     * Return addresses on the method stack are indices into ops.
+     */
+    void sample(int idx, int fp) {
+        due = false;
+        samples++;
+        int[] local = vm.local;
+        List<String> path = new ArrayList<>();
+        int pc = vm.decoded.pcOf[idx];
+        for (; ; ) {
+            path.add(vm.symbols.name(vm.analysis.methodAt(pc).entry));
+            if (local[fp - 1] == 0) { // main
+                break;
+            }
+            pc = vm.decoded.pcOf[local[fp - 2]] - 3; // call of the current method
+            fp = local[fp - 1];
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = path.size() - 1; i >= 0; i--) {
+            sb.append(path.get(i));
+            if (i > 0) {
+                sb.append(';');
+            }
+        }
+        String stack = sb.toString();
+        if (collect) {
+            stacks.merge(stack, 1L, Long::sum);
+        }
+        VmEvents.methodSample(path.get(0), stack, path.size());
+    }
+
+    long samples() {
+        return samples;
+    }
+
+    void print(PrintStream out) {
+        for (Map.Entry<String, Long> e : stacks.entrySet()) {
+            out.println(e.getKey() + " " + e.getValue());
+        }
+    }
+}
@@ -0,0 +1,254 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Green threads: many programs run in slices on a few threads
+// ===========================================================================
+package ssw.mj;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many programs on a few carrier threads. Every program is a green
+ * thread, a {@link Task}, which runs in slices of a fixed budget of
+ * instructions (see {@link Interpreter#run(long)}). A program whose slice
+ * is used up goes to the end of the run queue, so all runnable programs take
+ * turns. A program that waits for input is parked without holding a thread,
+ * and queued again when its input arrives.
+ */
+public class Scheduler implements AutoCloseable {
+
+    private final ExecutorService carriers; // its queue is the run queue
+    private final long slice;
+
+    /**
+     * Scheduler with the given number of carrier threads, which runs every
+     * program for slice instructions at a time.
+     */
+    public Scheduler(int carriers, long slice) {
+        if (carriers <= 0 || slice <= 0) {
+            throw new IllegalArgumentException("carriers and slice must be positive");
+        }
+        this.slice = slice;
+        AtomicInteger n = new AtomicInteger();
+        this.carriers = Executors.newFixedThreadPool(carriers, r -> {
+            Thread t = new Thread(r, "mj-carrier-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Start the program of image as a new green thread.
+     */
+    public Task start(ProgramImage image) {
+        Task t = new Task(image);
+        schedule(t);
+        return t;
+    }
+
+    private void schedule(Task t) {
+        try {
+            carriers.execute(t::slice);
+        } catch (RejectedExecutionException e) {
+            t.done.completeExceptionally(new IllegalStateException("scheduler closed"));
+        }
+    }
+
+    /**
+     * Stop the carrier threads. Programs that have not finished stay so.
+     */
+    @Override
+    public void close() {
+        carriers.shutdownNow();
+    }
+
+    /**
+     * A program run by the scheduler, with its input and output. Input is
+     * passed with {@link #feed} and the output collected until it is taken.
+     * At the end of the input, which {@link #closeInput} marks, a read of a
+     * char returns 0 and a read of a number the digits found so far.
+     */
+    public final class Task {
+
+        private final Interpreter vm;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final StringBuilder input = new StringBuilder();
+        private int inputPos; // next char of input to read
+        private boolean closed; // no more input will come
+        private final StringBuilder output = new StringBuilder();
+        private boolean parked; // waiting for input, not in the run queue
+        private boolean waitsForNumber; // kind of read the program is waiting for
+
+        private Task(ProgramImage image) {
+            vm = new Interpreter(image, new Interpreter.IO() {
+                @Override
+                public boolean ready(boolean number) {
+                    synchronized (Task.this) {
+                        waitsForNumber = number;
+                        return available(number);
+                    }
+                }
+
+                @Override
+                public char read() {
+                    synchronized (Task.this) {
+                        return inputPos < input.length() ? input.charAt(inputPos++) : 0;
+                    }
+                }
+
+                @Override
+                public int readInt() {
+                    synchronized (Task.this) {
+                        int val = 0;
+                        int prev = ' ';
+                        int b = next();
+                        while (b >= 0 && (b < '0' || b > '9')) {
+                            prev = b;
+                            b = next();
+                        }
+                        while (b >= '0' && b <= '9') {
+                            val = 10 * val + b - '0';
+                            b = next();
+                        }
+                        return prev == '-' ? -val : val;
+                    }
+                }
+
+                @Override
+                public void write(char c) {
+                    synchronized (Task.this) {
+                        output.append(c);
+                    }
+                }
+
+                @Override
+                public void write(char[] buf, int off, int len) {
+                    synchronized (Task.this) {
+                        output.append(buf, off, len);
+                    }
+                }
+            }, false);
+        }
+
+        /**
+         * Next char of the input, -1 at its end.
+         */
+        private int next() {
+            return inputPos < input.length() ? input.charAt(inputPos++) : -1;
+        }
+
+        /**
+         * True if a read, or a read of a number if number is set, finds its
+         * input. A number is complete when a char follows its digits.
+         */
+        private boolean available(boolean number) {
+            if (closed) {
+                return true;
+            }
+            if (!number) {
+                return inputPos < input.length();
+            }
+            int i = inputPos, n = input.length();
+            while (i < n && (input.charAt(i) < '0' || input.charAt(i) > '9')) {
+                i++;
+            }
+            if (i == n) {
+                return false;
+            }
+            while (i < n && input.charAt(i) >= '0' && input.charAt(i) <= '9') {
+                i++;
+            }
+            return i < n;
+        }
+
+        /**
+         * Run the next slice on a carrier thread.
+         */
+        private void slice() {
+            Interpreter.State s;
+            try {
+                s = vm.run(slice);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+                return;
+            }
+            switch (s) {
+                case SUSPENDED:
+                    schedule(this);
+                    break;
+                case BLOCKED:
+                    synchronized (this) {
+                        if (!available(waitsForNumber)) {
+                            parked = true;
+                            return;
+                        }
+                    }
+                    schedule(this); // the input arrived in the meantime
+                    break;
+                case FINISHED:
+                    done.complete(null);
+                    break;
+            }
+        }
+
+        /**
+         * Resume the program if it is parked and its input is there.
+         */
+        private void wake() {
+            boolean resume;
+            synchronized (this) {
+                resume = parked && available(waitsForNumber);
+                if (resume) {
+                    parked = false;
+                }
+            }
+            if (resume) {
+                schedule(this);
+            }
+        }
+
+        /**
+         * Add s to the input of the program.
+         */
+        public void feed(CharSequence s) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("input closed");
+                }
+                input.append(s);
+            }
+            wake();
+        }
+
+        /**
+         * Mark the end of the input.
+         */
+        public void closeInput() {
+            synchronized (this) {
+                closed = true;
+            }
+            wake();
+        }
+
+        /**
+         * The output written since the last call.
+         */
+        public synchronized String takeOutput() {
+            String s = output.toString();
+            output.setLength(0);
+            return s;
+        }
+
+        /**
+         * Completes when the program has finished, exceptionally with the
+         * IllegalStateException of a trap.
+         */
+        public Future<Void> done() {
+            return done;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Method names for profiles and reports
+// ===========================================================================
+package ssw.mj;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The method names the compiler writes behind the reference maps (see
+ * <code>Code.symbols()</code>). Methods without a name, e.g. in files of
+ * older compilers, are named after their entry address.
+ */
+final class Symbols {
+
+    static final Symbols NONE = new Symbols();
+
+    private final Map<Integer, String> names = new HashMap<>(); // per method entry
+
+    private Symbols() {
+    }
+
+    static Symbols read(DataInputStream in) throws IOException {
+        if (in.readByte() != 'S' || in.readByte() != 'Y') {
+            throw new FormatException("wrong symbol table marker");
+        }
+        Symbols symbols = new Symbols();
+        int n = in.readInt();
+        for (int i = 0; i < n; i++) {
+            int entry = in.readInt();
+            symbols.names.put(entry, in.readUTF());
+        }
+        return symbols;
+    }
+
+    /**
+     * Name of the method starting at entry.
+     */
+    String name(int entry) {
+        String name = names.get(entry);
+        return name != null ? name : "@" + entry;
+    }
+}
@@ -0,0 +1,107 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Tiered execution: invocation and loop counters, compiled code
+// ===========================================================================
+package ssw.mj;
+
+import java.lang.invoke.MethodHandle;
+
+/**
+ * Bookkeeping for tiered execution. The interpreter runs the counted stream
+ * (see {@link DecodedCode#counted()}) and reports every call and every
+ * backward jump here. A method is compiled by {@link JitCompiler} after
+ * <code>invocationThreshold</code> calls; from then on the interpreter calls
+ * the compiled code. After <code>backEdgeThreshold</code> iterations of a
+ * loop, the interpreted frame of the loop's method is moved into compiled code
+ * (on-stack replacement), so that a long-running loop in main is compiled
+ * although main is called only once.
+ */
+final class Tiering {
+
+    static final int invocationThreshold = 1000, // calls before a method is compiled
+            backEdgeThreshold = 10000; // loop iterations before a frame is compiled
+
+    /**
+     * Instruction stream for the interpreter.
+     */
+    final int[] ops;
+
+    private final DecodedCode decoded;
+    private final CodeAnalysis analysis;
+    // calls of the method whose enter is at a stream index, or iterations of
+    // the loop whose backward jump is at a stream index
+    private final int[] counters;
+    // per stream index of a method's enter
+    private final MethodHandle[] bridges; // compiled code, null if interpreted
+    private final JitCompiler.Unit[] units; // unit compiled with the method as root
+    private final boolean[] failed; // method cannot be compiled
+
+    Tiering(DecodedCode decoded, CodeAnalysis analysis) {
+        this.decoded = decoded;
+        this.analysis = analysis;
+        ops = decoded.counted();
+        counters = new int[ops.length];
+        bridges = new MethodHandle[ops.length];
+        units = new JitCompiler.Unit[ops.length];
+        failed = new boolean[ops.length];
+    }
+
+    /**
+     * Compiled code for a call of the method starting at stream index entry,
+     * see {@link JitCompiler.Unit#bridge}, or null if the method is still
+     * interpreted.
+     */
+    MethodHandle call(int entry) {
+        MethodHandle h = bridges[entry];
+        if (h == null && ++counters[entry] == invocationThreshold) {
+            compile(entry);
+            h = bridges[entry];
+        }
+        return h;
+    }
+
+    /**
+     * Count an iteration of the loop closed by the backward jump at stream
+     * index idx. Returns the on-stack replacement entry of the current method
+     * (see {@link JitCompiler.Unit#osr}) once the loop is hot, otherwise null.
+     */
+    MethodHandle loop(int idx, int target) {
+        if (++counters[idx] != backEdgeThreshold) {
+            return null;
+        }
+        CodeAnalysis.Method m = methodAt(target);
+        if (m == null) {
+            return null;
+        }
+        int entry = decoded.indexOf[m.entry];
+        JitCompiler.Unit u = units[entry] != null ? units[entry] : compile(entry);
+        return u != null && u.isLoopHeader(decoded.pcOf[target]) ? u.osr() : null;
+    }
+
+    /**
+     * Method containing the instruction at stream index idx.
+     */
+    CodeAnalysis.Method methodAt(int idx) {
+        return analysis.methodAt(decoded.pcOf[idx]);
+    }
+
+    private JitCompiler.Unit compile(int entry) {
+        if (failed[entry]) {
+            return null;
+        }
+        try {
+            JitCompiler.Unit u = JitCompiler.compile(analysis, methodAt(entry));
+            units[entry] = u;
+            for (CodeAnalysis.Method m : u.methods()) {
+                int idx = decoded.indexOf[m.entry];
+                if (bridges[idx] == null) {
+                    bridges[idx] = u.bridge(m);
+                }
+            }
+            return u;
+        } catch (IllegalArgumentException e) {
+            failed[entry] = true; // keep interpreting
+            return null;
+        }
+    }
+}
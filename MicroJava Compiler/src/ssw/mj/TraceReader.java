@@ -0,0 +1,186 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Syntax: java ssw.mj.TraceReader traceFile [-summary] [-pc from[-to]] [-op name] [-writes]
+//                                 [-limit n]
+// ===========================================================================
+package ssw.mj;
+
+import ssw.mj.codegen.Code.OpCode;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static ssw.mj.TraceRecorder.*;
+
+/**
+ * Decodes a trace written by {@link TraceRecorder}. Without -summary every
+ * record that passes the filters is printed as a line of text: instructions
+ * with their code address, name and top of stack before they execute, heap
+ * writes indented below their instruction. The filters select instructions
+ * by a code address range (-pc) or by name (-op); heap writes are shown with
+ * the instructions that pass, or alone with -writes. -summary counts the
+ * selected records instead, per opcode and per code address.
+ */
+public class TraceReader {
+
+    private int from = 0, to = Integer.MAX_VALUE; // code address range
+    private String op; // name of the selected opcode, null for all
+    private boolean writesOnly;
+    private long limit = Long.MAX_VALUE; // lines to print
+
+    private boolean heap; // trace contains heap writes
+    private long instructions, writes, printed;
+    private final Map<String, Long> perOpcode = new TreeMap<>();
+    private final Map<Integer, Long> perPc = new TreeMap<>();
+
+    private boolean selects(int pc, byte opcode) {
+        return pc >= from && pc <= to && (op == null || op.equals(name(opcode)));
+    }
+
+    private static String name(byte opcode) {
+        OpCode o = OpCode.get(opcode);
+        return o != null ? o.cleanName() : "???";
+    }
+
+    private void read(DataInputStream in, boolean summary) throws IOException {
+        if (in.readByte() != 'M' || in.readByte() != 'T') {
+            throw new FormatException("wrong marker");
+        }
+        if (in.readByte() != VERSION) {
+            throw new FormatException("unknown version");
+        }
+        heap = (in.readByte() & HEAP) != 0;
+        boolean selected = false; // instruction of the following writes passed the filters
+        for (; ; ) {
+            int tag = in.read();
+            if (tag < 0 || printed >= limit) {
+                return;
+            }
+            switch (tag) {
+                case INSTR:
+                case INSTR_TOS:
+                    int pc = in.readInt();
+                    byte opcode = in.readByte();
+                    int tos = tag == INSTR_TOS ? in.readInt() : 0;
+                    selected = selects(pc, opcode);
+                    if (!selected) {
+                        break;
+                    }
+                    instructions++;
+                    if (summary) {
+                        perOpcode.merge(name(opcode), 1L, Long::sum);
+                        perPc.merge(pc, 1L, Long::sum);
+                    } else if (!writesOnly) {
+                        System.out.printf("%5d: %-12s%s%n", pc, name(opcode), tag == INSTR_TOS ? " | " + tos : "");
+                        printed++;
+                    }
+                    break;
+                case WRITE:
+                    int adr = in.readInt();
+                    int val = in.readInt();
+                    if (selected) {
+                        writes++;
+                        if (!summary) {
+                            System.out.printf("       heap[%d] = %d%n", adr, val);
+                            printed++;
+                        }
+                    }
+                    break;
+                case CHAR_WRITE:
+                    adr = in.readInt();
+                    int idx = in.readInt();
+                    char c = (char) (in.readByte() & 0xff);
+                    if (selected) {
+                        writes++;
+                        if (!summary) {
+                            System.out.printf("       heap[%d].chars[%d] = '%c'%n", adr, idx, c);
+                            printed++;
+                        }
+                    }
+                    break;
+                default:
+                    throw new FormatException("unknown record " + tag);
+            }
+        }
+    }
+
+    private void printSummary(int top) {
+        System.out.println("-- " + instructions + " instructions"
+                + (heap ? ", " + writes + " heap writes" : " (heap writes not recorded)"));
+        System.out.println("-- instructions per opcode:");
+        perOpcode.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
+                .forEach(e -> System.out.printf("%12d %6.2f%%  %s%n", e.getValue(), percent(e.getValue()), e.getKey()));
+        System.out.println("-- hottest code addresses:");
+        perPc.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
+                .limit(top)
+                .forEach(e -> System.out.printf("%12d %6.2f%%  %5d%n", e.getValue(), percent(e.getValue()), e.getKey()));
+    }
+
+    private double percent(long n) {
+        return instructions == 0 ? 0 : 100.0 * n / instructions;
+    }
+
+    public static void main(String[] arg) {
+        TraceReader r = new TraceReader();
+        String fileName = null;
+        boolean summary = false;
+        boolean ok = true;
+        for (int i = 0; i < arg.length && ok; i++) {
+            if (arg[i].equals("-summary")) {
+                summary = true;
+            } else if (arg[i].equals("-writes")) {
+                r.writesOnly = true;
+            } else if (arg[i].equals("-op") && i + 1 < arg.length) {
+                r.op = arg[++i];
+            } else if (arg[i].equals("-pc") && i + 1 < arg.length) {
+                String[] range = arg[++i].split("-", 2);
+                try {
+                    r.from = Integer.parseInt(range[0]);
+                    r.to = range.length > 1 ? Integer.parseInt(range[1]) : r.from;
+                } catch (NumberFormatException e) {
+                    ok = false;
+                }
+            } else if (arg[i].equals("-limit") && i + 1 < arg.length) {
+                try {
+                    r.limit = Long.parseLong(arg[++i]);
+                } catch (NumberFormatException e) {
+                    ok = false;
+                }
+            } else if (arg[i].startsWith("-") || fileName != null) {
+                ok = false;
+            } else {
+                fileName = arg[i];
+            }
+        }
+        if (fileName == null || !ok) {
+            System.out.println("Syntax: java ssw.mj.TraceReader traceFile [-summary] [-pc from[-to]] [-op name] [-writes]");
+            System.out.println("                                [-limit n]");
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16))) {
+            r.read(in, summary);
+        } catch (FileNotFoundException e) {
+            System.out.println("-- file " + fileName + " not found");
+            return;
+        } catch (EOFException e) {
+            System.out.println("-- trace " + fileName + " is cut off");
+        } catch (FormatException e) {
+            System.out.println("-- corrupted trace file " + fileName + ": " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            System.out.println("-- error reading file " + fileName);
+            return;
+        }
+        if (summary) {
+            r.printSummary(25);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Binary execution trace (java ssw.mj.Run fileName -trace outFile [-trace-heap])
+// ===========================================================================
+package ssw.mj;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static ssw.mj.DecodedCode.*;
+
+/**
+ * Writes every executed instruction to a binary trace file, which
+ * {@link TraceReader} decodes. Records are collected in a direct buffer that
+ * is written to the file channel whenever it is full, so a long run costs
+ * one system call per megabyte instead of a line of text per instruction.
+ * <p>
+ * The file starts with the marker "MT", the format version and a flags byte.
+ * All numbers are big-endian. Each record starts with its tag:
+ * <pre>
+ *   INSTR      pc:int opcode:byte             stack empty
+ *   INSTR_TOS  pc:int opcode:byte tos:int     top of the stack before the instruction
+ *   WRITE      adr:int val:int                heap word written (flag HEAP)
+ *   CHAR_WRITE adr:int idx:int val:byte       char of an array written (flag HEAP)
+ * </pre>
+ * A heap write follows the record of the instruction that performs it.
+ * Writes that trap are not recorded.
+ */
+final class TraceRecorder implements ExecutionListener {
+
+    static final byte VERSION = 1;
+    static final byte HEAP = 1; // flag: heap writes are recorded
+    static final byte INSTR = 0, INSTR_TOS = 1, WRITE = 2, CHAR_WRITE = 3;
+    private static final int maxRecord = 13;
+    private static final int blockSize = 1 << 20;
+
+    private final Interpreter vm;
+    private final boolean heapWrites;
+    private final FileChannel out;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(blockSize);
+    private long records;
+
+    TraceRecorder(Interpreter vm, Path file, boolean heapWrites) throws IOException {
+        this.vm = vm;
+        this.heapWrites = heapWrites;
+        out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buf.put((byte) 'M').put((byte) 'T').put(VERSION).put(heapWrites ? HEAP : 0);
+    }
+
+    @Override
+    public void instruction(int[] ops, int idx) {
+        if (buf.remaining() < 2 * maxRecord) {
+            flush();
+        }
+        int pc = vm.decoded.pcOf[idx];
+        int esp = vm.esp;
+        int[] stack = vm.stack;
+        if (esp > 0) {
+            buf.put(INSTR_TOS).putInt(pc).put(vm.code[pc]).putInt(stack[esp - 1]);
+        } else {
+            buf.put(INSTR).putInt(pc).put(vm.code[pc]);
+        }
+        records++;
+        if (!heapWrites) {
+            return;
+        }
+        int adr;
+        switch (ops[idx]) {
+            case PUTFIELD:
+                adr = stack[esp - 2];
+                if (adr != 0) {
+                    buf.put(WRITE).putInt(adr + ops[idx + 1]).putInt(stack[esp - 1]);
+                    records++;
+                }
+                break;
+            case ASTORE:
+            case BASTORE:
+                adr = stack[esp - 3];
+                int i = stack[esp - 2];
+                if (adr == 0 || i < 0 || i >= vm.heap.get(adr - 1)) {
+                    break;
+                }
+                if (ops[idx] == ASTORE) {
+                    buf.put(WRITE).putInt(adr + i).putInt(stack[esp - 1]);
+                } else {
+                    buf.put(CHAR_WRITE).putInt(adr).putInt(i).put((byte) stack[esp - 1]);
+                }
+                records++;
+                break;
+            default:
+                break;
+        }
+    }
+
+    long records() {
+        return records;
+    }
+
+    private void flush() {
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buf.clear();
+    }
+
+    /**
+     * Write the rest of the buffer and close the file, also after a trap.
+     */
+    void close() throws IOException {
+        try {
+            flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            out.close();
+        }
+    }
+}
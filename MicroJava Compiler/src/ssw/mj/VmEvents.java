@@ -0,0 +1,194 @@
+// MicroJava Virtual Machine
+// -------------------------
+// JDK Flight Recorder events of the VM
+// ===========================================================================
+package ssw.mj;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder events for what a MicroJava program does, so that a
+ * recording of the host JVM shows it next to the JVM's own GC and CPU
+ * events. The JVM stack traces would only show the interpreter, so none are
+ * recorded.
+ * <p>
+ * Runs pay nothing for events that are disabled when they start: the
+ * interpreter only checks a flag per allocation, and only installs the
+ * sampler for method samples and the wrapped I/O for I/O bursts if these
+ * events are enabled. Errors are checked when they happen.
+ */
+final class VmEvents {
+
+    private VmEvents() {
+    }
+
+    @Name("ssw.mj.Allocation")
+    @Label("MicroJava Allocation")
+    @Category("MicroJava")
+    @Description("Heap block allocated by new or newarray")
+    @StackTrace(false)
+    static final class Allocation extends Event {
+        @Label("Method")
+        String method;
+        @Label("Code Address")
+        @Description("Address of the allocating instruction, -1 in compiled code")
+        int pc;
+        @Label("Size")
+        @DataAmount
+        long size;
+    }
+
+    @Name("ssw.mj.RuntimeError")
+    @Label("MicroJava Runtime Error")
+    @Category("MicroJava")
+    @Description("Trap or runtime error that stopped the program")
+    @StackTrace(false)
+    static final class RuntimeError extends Event {
+        @Label("Message")
+        String message;
+        @Label("Engine")
+        String engine;
+    }
+
+    @Name("ssw.mj.IoBurst")
+    @Label("MicroJava I/O Burst")
+    @Category("MicroJava")
+    @Description("Characters read or written without a pause of more than a millisecond")
+    @StackTrace(false)
+    static final class IoBurst extends Event {
+        @Label("Input")
+        boolean input;
+        @Label("Characters")
+        long chars;
+    }
+
+    @Name("ssw.mj.MethodSample")
+    @Label("MicroJava Method Sample")
+    @Category("MicroJava")
+    @Description("Method executing when the sampler fired, with its call path from main")
+    @StackTrace(false)
+    static final class MethodSample extends Event {
+        @Label("Method")
+        String method;
+        @Label("Call Path")
+        String path;
+        @Label("Depth")
+        int depth;
+    }
+
+    static void allocation(Interpreter vm, int pc, int size) {
+        Allocation e = new Allocation();
+        if (e.shouldCommit()) {
+            if (pc >= 0 && vm.analysis != null && vm.analysis.methodAt(pc) != null) {
+                e.method = vm.symbols.name(vm.analysis.methodAt(pc).entry);
+            }
+            e.pc = pc;
+            e.size = Collector.words(size) * 4L;
+            e.commit();
+        }
+    }
+
+    static void error(String message, Interpreter.Engine engine) {
+        if (!FlightRecorder.isInitialized()) {
+            return;
+        }
+        RuntimeError e = new RuntimeError();
+        if (e.shouldCommit()) {
+            e.message = message;
+            e.engine = engine.name().toLowerCase();
+            e.commit();
+        }
+    }
+
+    static void methodSample(String method, String path, int depth) {
+        MethodSample e = new MethodSample();
+        if (e.shouldCommit()) {
+            e.method = method;
+            e.path = path;
+            e.depth = depth;
+            e.commit();
+        }
+    }
+
+    // Event classes are only touched once the Flight Recorder is up:
+    // loading them sets up the recorder, which slows down the whole JVM.
+
+    static boolean allocationsEnabled() {
+        return FlightRecorder.isInitialized() && new Allocation().isEnabled();
+    }
+
+    static boolean methodSamplesEnabled() {
+        return FlightRecorder.isInitialized() && new MethodSample().isEnabled();
+    }
+
+    static boolean ioBurstsEnabled() {
+        return FlightRecorder.isInitialized() && new IoBurst().isEnabled();
+    }
+
+    /**
+     * I/O of an interpreter that reports its bursts.
+     */
+    static final class BurstIO implements Interpreter.IO {
+
+        private static final long pause = 1_000_000; // nanoseconds that end a burst
+
+        final Interpreter.IO io; // the wrapped I/O
+        private IoBurst burst; // current burst, null between bursts
+        private long last; // time of the last character
+
+        BurstIO(Interpreter.IO io) {
+            this.io = io;
+        }
+
+        @Override
+        public char read() {
+            char c = io.read();
+            count(true, 1);
+            return c;
+        }
+
+        @Override
+        public void write(char c) {
+            io.write(c);
+            count(false, 1);
+        }
+
+        @Override
+        public void write(char[] buf, int off, int len) {
+            io.write(buf, off, len);
+            count(false, len);
+        }
+
+        private void count(boolean input, int n) {
+            long now = System.nanoTime();
+            if (burst != null && (burst.input != input || now - last > pause)) {
+                close();
+            }
+            if (burst == null) {
+                burst = new IoBurst();
+                burst.input = input;
+                burst.begin();
+            }
+            burst.chars += n;
+            burst.end(); // the burst lasts until its last character
+            last = now;
+        }
+
+        /**
+         * Commit the current burst.
+         */
+        void close() {
+            if (burst != null) {
+                burst.commit();
+                burst = null;
+            }
+        }
+    }
+}
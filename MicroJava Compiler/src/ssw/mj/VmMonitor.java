@@ -0,0 +1,237 @@
+// MicroJava Virtual Machine
+// -------------------------
+// Live metrics of a running interpreter for JMX
+// ===========================================================================
+package ssw.mj;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes a monitored interpreter visible as the platform MBean
+ * <code>ssw.mj:type=Interpreter,name=n</code> while it runs, so that jconsole
+ * or any other JMX client can watch it.
+ * <p>
+ * The interpreter counts on the thread that runs the program: like the
+ * {@link Sampler}, it executes the instrumented stream
+ * ({@link DecodedCode#sampled()}) and reports calls and backward jumps, where
+ * every program that runs for long must pass. Counting every instruction
+ * would slow down the interpreter loop by about a third, so instructions are
+ * estimated with the weights of runs in slices instead. The register machine
+ * reports calls, and every engine reports allocations. The counts are
+ * published to other threads as an immutable snapshot every few thousand
+ * steps, and at the start and the end of the run.
+ */
+final class VmMonitor implements InterpreterMXBean {
+
+    private static final AtomicInteger ids = new AtomicInteger();
+    private static final int period = 4096; // steps between snapshots, a power of two
+
+    final int[] ops; // stream with counting points
+    private final int[] weights; // see ProgramImage.sliceWeights, null for unverified code
+    private final Interpreter vm;
+    private final ObjectName name;
+
+    // counted by the thread that runs the program
+    private long jumps, calls, instructions, allocations;
+    private int heapPeak, mStackPeak, eStackPeak;
+    private String engine;
+    private long start;
+
+    private volatile Snapshot last; // published for other threads, null before the run
+
+    /**
+     * Values at one point of the run.
+     */
+    private static final class Snapshot {
+        final String engine;
+        final long start, jumps, calls, instructions;
+        final int free, heapPeak, heapSize, mStackPeak, eStackPeak;
+
+        Snapshot(VmMonitor m) {
+            engine = m.engine;
+            start = m.start;
+            jumps = m.jumps;
+            calls = m.calls;
+            instructions = m.instructions;
+            free = m.vm.free();
+            heapPeak = m.heapPeak;
+            heapSize = m.vm.heap.words();
+            mStackPeak = m.mStackPeak;
+            eStackPeak = m.eStackPeak;
+        }
+    }
+
+    VmMonitor(Interpreter vm) {
+        this.vm = vm;
+        this.ops = vm.image.sampled();
+        this.weights = vm.analysis != null ? vm.image.sliceWeights() : null;
+        try {
+            this.name = new ObjectName("ssw.mj:type=Interpreter,name=" + ids.incrementAndGet());
+        } catch (JMException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    ObjectName name() {
+        return name;
+    }
+
+    /**
+     * Register the MBean for a run of main, whose frame is on the stacks
+     * first. main is null for unverified code.
+     */
+    void start(Interpreter.Engine engine, CodeAnalysis.Method main) {
+        this.engine = engine.name().toLowerCase();
+        start = System.nanoTime();
+        jumps = 0;
+        calls = 0;
+        instructions = 0;
+        allocations = 0;
+        heapPeak = vm.free();
+        if (main != null) {
+            mStackPeak = 1 + main.lsize; // saved fp and locals
+            eStackPeak = main.maxStack;
+        }
+        publish();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(new StandardMBean(this, InterpreterMXBean.class, true), name);
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register " + name, e);
+        }
+    }
+
+    /**
+     * Unregister the MBean at the end of the run.
+     */
+    void stop() {
+        publish();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // not registered
+        }
+    }
+
+    /**
+     * The backward jump at index idx of ops.
+     */
+    void jump(int idx) {
+        instructions += weights[idx];
+        if ((++jumps & (period - 1)) == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * The call at index idx of ops, see {@link #call(int, int)}.
+     */
+    void call(int idx, int frame, int expr) {
+        instructions += weights[idx];
+        call(frame, expr);
+    }
+
+    /**
+     * A call that leaves frame words on the method stack and may use up to
+     * expr words of the expression stack.
+     */
+    void call(int frame, int expr) {
+        if (frame > mStackPeak) {
+            mStackPeak = frame;
+        }
+        if (expr > eStackPeak) {
+            eStackPeak = expr;
+        }
+        if ((++calls & (period - 1)) == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * A heap block has been allocated, in any engine.
+     */
+    void allocated() {
+        if ((++allocations & (period - 1)) == 0) {
+            publish();
+        }
+    }
+
+    /**
+     * Garbage is about to be collected in the heap used up to free.
+     */
+    void collecting(int free) {
+        if (free > heapPeak) {
+            heapPeak = free;
+        }
+    }
+
+    private void publish() {
+        collecting(vm.free());
+        last = new Snapshot(this);
+    }
+
+    // ----- InterpreterMXBean, called by other threads
+
+    private Snapshot last() {
+        Snapshot s = last;
+        if (s == null) {
+            throw new IllegalStateException("not running");
+        }
+        return s;
+    }
+
+    @Override
+    public String getEngine() {
+        return last().engine;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        return (System.nanoTime() - last().start) / 1_000_000;
+    }
+
+    @Override
+    public long getBackwardJumps() {
+        return last().jumps;
+    }
+
+    @Override
+    public long getCalls() {
+        return last().calls;
+    }
+
+    @Override
+    public long getInstructions() {
+        return last().instructions;
+    }
+
+    @Override
+    public int getHeapFree() {
+        return last().free;
+    }
+
+    @Override
+    public int getHeapHighWater() {
+        return last().heapPeak;
+    }
+
+    @Override
+    public int getHeapSize() {
+        return last().heapSize;
+    }
+
+    @Override
+    public int getMethodStackHighWater() {
+        return last().mStackPeak;
+    }
+
+    @Override
+    public int getExprStackHighWater() {
+        return last().eStackPeak;
+    }
+}
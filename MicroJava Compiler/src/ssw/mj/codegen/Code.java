@@ -1,13 +1,20 @@
 package ssw.mj.codegen;
 
 import ssw.mj.Parser;
+import ssw.mj.symtab.Obj;
+import ssw.mj.symtab.Struct;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * MicroJava Code Generator.
@@ -94,6 +101,12 @@ public abstract class Code {
         trap(B), //
         nop;
 
+        /**
+         * Opcode table indexed by <code>code() - 1</code>. Cached because
+         * <code>values()</code> returns a fresh copy on every call.
+         */
+        private static final OpCode[] table = values();
+
         private final Operands[] ops;
 
         private OpCode(Operands... operands) {
@@ -129,10 +142,10 @@ public abstract class Code {
         }
 
         public static OpCode get(int code) {
-            if (code < 1 || code > values().length) {
+            if (code < 1 || code > table.length) {
                 return null;
             }
-            return values()[code - 1];
+            return table[code - 1];
         }
     }
 
@@ -178,6 +191,25 @@ public abstract class Code {
      */
     public int dataSize;
 
+    /**
+     * Declarations of the program scope (set by parser). Together with the
+     * allocation sites they make up the reference maps, see
+     * {@link #refMaps()}.
+     */
+    public List<Obj> declarations;
+
+    /**
+     * Type of the object created by every <code>new</code> and
+     * <code>newarray</code>, by address of the instruction.
+     */
+    private final Map<Integer, Struct> allocations = new TreeMap<>();
+
+    /**
+     * Source line of the code emitted from an address on, see
+     * {@link #line(int)}.
+     */
+    private final Map<Integer, Integer> lines = new TreeMap<>();
+
     /**
      * According parser.
      */
@@ -223,6 +255,22 @@ public abstract class Code {
         pc = oldpc;
     }
 
+    /**
+     * Record that the instruction emitted next creates an object of the given
+     * class or array type.
+     */
+    public void allocates(Struct type) {
+        allocations.put(pc, type);
+    }
+
+    /**
+     * Record that the code emitted next stems from the given source line. A
+     * later line at the same address replaces the earlier one.
+     */
+    public void line(int line) {
+        lines.put(pc, line);
+    }
+
     public int get(int pos) {
         return buf[pos];
     }
@@ -251,10 +299,189 @@ public abstract class Code {
         os.write(header.toByteArray());
 
         os.write(buf, 0, codeSize);
+        if (declarations != null) {
+            os.write(refMaps());
+            os.write(symbols());
+            os.write(lines());
+        }
         os.flush();
         os.close();
     }
 
+    /**
+     * Reference maps for the garbage collector of the VM, written behind the
+     * code. All numbers are 4-byte ints; a type reference is 0 for int and
+     * char values and 1 + i for a reference to type i of the type table.
+     * <pre>
+     * 'R' 'M'
+     * nTypes { 0 nFields { fieldType } | 1 elemType }  classes and arrays
+     * dataSize { globalType }
+     * nMethods { entry resultType nLocals { localType } }
+     * nSites { pc type }                               new and newarray
+     * </pre>
+     */
+    public byte[] refMaps() {
+        try {
+            return writeRefMaps();
+        } catch (IOException e) { // not thrown by byte array streams
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] writeRefMaps() throws IOException {
+        List<Struct> types = new ArrayList<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+
+        out.writeInt(dataSize);
+        int[] globals = new int[dataSize];
+        for (Obj obj : declarations) {
+            if (obj.kind == Obj.Kind.Var && obj.adr < dataSize) {
+                globals[obj.adr] = typeRef(types, obj.type);
+            }
+        }
+        for (int t : globals) {
+            out.writeInt(t);
+        }
+
+        List<Obj> methods = new ArrayList<>();
+        for (Obj obj : declarations) {
+            if (obj.kind == Obj.Kind.Meth) {
+                methods.add(obj);
+            }
+        }
+        out.writeInt(methods.size());
+        for (Obj meth : methods) {
+            int nLocals = 0;
+            for (Obj local : meth.locals) {
+                nLocals = Math.max(nLocals, local.adr + 1);
+            }
+            int[] locals = new int[nLocals];
+            for (Obj local : meth.locals) {
+                locals[local.adr] = typeRef(types, local.type);
+            }
+            out.writeInt(meth.adr);
+            out.writeInt(typeRef(types, meth.type));
+            out.writeInt(nLocals);
+            for (int t : locals) {
+                out.writeInt(t);
+            }
+        }
+
+        out.writeInt(allocations.size());
+        for (Map.Entry<Integer, Struct> site : allocations.entrySet()) {
+            out.writeInt(site.getKey());
+            out.writeInt(typeRef(types, site.getValue()) - 1);
+        }
+
+        // the type table grows while it is written, as fields refer to
+        // further types
+        ByteArrayOutputStream table = new ByteArrayOutputStream();
+        DataOutputStream tableOut = new DataOutputStream(table);
+        for (int i = 0; i < types.size(); i++) {
+            Struct type = types.get(i);
+            if (type.kind == Struct.Kind.Class) {
+                tableOut.writeInt(0);
+                tableOut.writeInt(type.nrFields());
+                int[] fields = new int[type.nrFields()];
+                for (Obj field : type.fields) {
+                    fields[field.adr] = typeRef(types, field.type);
+                }
+                for (int t : fields) {
+                    tableOut.writeInt(t);
+                }
+            } else {
+                tableOut.writeInt(1);
+                tableOut.writeInt(typeRef(types, type.elemType));
+            }
+        }
+
+        ByteArrayOutputStream maps = new ByteArrayOutputStream();
+        DataOutputStream mapsOut = new DataOutputStream(maps);
+        mapsOut.writeByte('R');
+        mapsOut.writeByte('M');
+        mapsOut.writeInt(types.size());
+        mapsOut.write(table.toByteArray());
+        mapsOut.write(body.toByteArray());
+        mapsOut.close();
+        return maps.toByteArray();
+    }
+
+    /**
+     * Names of the methods for profiles of the VM, written behind the
+     * reference maps. Entries are 4-byte ints, names are in modified UTF-8
+     * as written by DataOutput.writeUTF.
+     * <pre>
+     * 'S' 'Y'
+     * nMethods { entry name }
+     * </pre>
+     */
+    public byte[] symbols() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte('S');
+            out.writeByte('Y');
+            List<Obj> methods = new ArrayList<>();
+            for (Obj obj : declarations) {
+                if (obj.kind == Obj.Kind.Meth) {
+                    methods.add(obj);
+                }
+            }
+            out.writeInt(methods.size());
+            for (Obj meth : methods) {
+                out.writeInt(meth.adr);
+                out.writeUTF(meth.name);
+            }
+        } catch (IOException e) { // not thrown by byte array streams
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Source lines for coverage reports of the VM, written behind the
+     * symbols. All numbers are 4-byte ints; entries are sorted by address,
+     * and the line of an entry holds up to the address of the next one.
+     * <pre>
+     * 'L' 'N'
+     * nEntries { pc line }
+     * </pre>
+     */
+    public byte[] lines() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte('L');
+            out.writeByte('N');
+            out.writeInt(lines.size());
+            for (Map.Entry<Integer, Integer> e : lines.entrySet()) {
+                out.writeInt(e.getKey());
+                out.writeInt(e.getValue());
+            }
+        } catch (IOException e) { // not thrown by byte array streams
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Type reference of t, adding t to the type table on first use. Array
+     * types are created for every <code>new</code>, so they are identified
+     * by their element type.
+     */
+    private static int typeRef(List<Struct> types, Struct t) {
+        if (t.kind != Struct.Kind.Class && t.kind != Struct.Kind.Arr) {
+            return 0;
+        }
+        for (int i = 0; i < types.size(); i++) {
+            Struct u = types.get(i);
+            if (u == t || (u.kind == Struct.Kind.Arr && t.kind == Struct.Kind.Arr && u.elemType == t.elemType)) {
+                return i + 1;
+            }
+        }
+        types.add(t);
+        return types.size();
+    }
+
     /**
      * String representation for JUnit test cases.
      */
@@ -232,13 +232,14 @@ public final class CodeImpl extends Code {
     // array
     public Operand getArray(Operand opB, StructImpl objType) {
         load(opB);
+        Operand opA = new Operand(new StructImpl(objType));
+        allocates(opA.type);
         put(OpCode.newarray);
         if(objType == Tab.charType){
             put(0);
         }else{
             put(1);
         }
-        Operand opA = new Operand(new StructImpl(objType));
         opA.val = opB.val;
         return opA;
     }
@@ -258,6 +259,7 @@ public final class CodeImpl extends Code {
     // create empty array for vararg
     public void emptyArray(int val, Operand opMeth) {
         loadConst(val);
+        allocates(opMeth.obj.locals.get(opMeth.obj.nPars-1).type);
         put(OpCode.newarray);
         if(opMeth.obj.locals.get(opMeth.obj.nPars-1).type == Tab.charType){
             put(0);
@@ -110,6 +110,7 @@ public final class ParserImpl extends Parser {
         }
 
         program.locals = tab.curScope.locals();
+        code.declarations = program.locals;
         tab.closeScope();
     }
 
@@ -185,6 +186,7 @@ public final class ParserImpl extends Parser {
 
         check(ident);
         String methodName = t.str;
+        int line = t.line;
         Obj currMeth = tab.insert(Obj.Kind.Meth, methodName, type);
         currMeth.adr = code.pc;
         check(lpar);
@@ -217,6 +219,7 @@ public final class ParserImpl extends Parser {
 
         if (currMeth.kind == Obj.Kind.Meth) {
             currMeth.adr = code.pc;
+            code.line(line);
             code.put(OpCode.enter);
             code.put(currMeth.nPars);
             code.put(tab.curScope.nVars());
@@ -225,6 +228,7 @@ public final class ParserImpl extends Parser {
         Block(null, currMeth);
 
         currMeth.locals = tab.curScope.locals();
+        code.line(t.line); // closing brace
 
         if (currMeth.type == Tab.noType) {
             code.exitDefault();
@@ -296,6 +300,9 @@ public final class ParserImpl extends Parser {
     //           | ";".
     private void Statement(Label breakLabel, Obj currMeth){
         Operand opA;
+        if (sym != lbrace) { // blocks record the lines of their statements
+            code.line(la.line);
+        }
         switch(sym){
 
             // Designator ( Assignop Expr | ActPars | "++" | "--" ) ";"
@@ -564,6 +571,7 @@ public final class ParserImpl extends Parser {
         StructImpl varArgType = objVar.locals.get(objVar.nPars-1).type.elemType;
 
         code.loadConst(arrSize);
+        code.allocates(objVar.locals.get(objVar.nPars-1).type);
         code.put(OpCode.newarray);
         if(varArgType == Tab.charType){
             code.put(0);
@@ -771,6 +779,7 @@ public final class ParserImpl extends Parser {
                         if(obj.kind != Obj.Kind.Type ||  objType.kind != Struct.Kind.Class){
                             error(Errors.Message.NO_CLASS_TYPE);
                         }else{
+                            code.allocates(objType);
                             code.put(OpCode.new_);
                             code.put2(obj.type.nrFields());
                         }
@@ -323,6 +323,30 @@ public class CodeGenerationTest extends CompilerTestCaseSupport {
 		parseAndVerify();
 	}
 
+	@Test
+	public void expressionStack() {
+		// deep expressions with calls inside, and dup and dup2 of compound
+		// assignments, which move values between the cached top and the stack
+		init("program Stack" + LF + //
+				"  class P { int v; int[] w; }" + LF + //
+				"{" + LF + //
+				"  int f(int x, int y) { return x * 10 + y; }" + LF + //
+				"  int g(int x) { return x + 1; }" + LF + //
+				"  void main() int a, b, i; P p; int[] arr; {" + LF + //
+				"    a = 3; b = 4;" + LF + //
+				"    p = new P; p.w = new int[3]; arr = new int[3];" + LF + //
+				"    i = 0;" + LF + //
+				"    while (i < 3) { arr[i] += i + 1; arr[i]++; p.w[i] = -arr[i] * 2; i++; }" + LF + //
+				"    p.v = 5; p.v += f(a, g(b)); p.v--;" + LF + //
+				"    print(1 + (2 * (a + (b - (f(a + 1, b - 1) - g(a * (b + 1)))))));" + LF + //
+				"    print(' '); print(p.v); print(' '); print(arr[2] - p.w[1]);" + LF + //
+				"    print(' '); print(f(g(f(a, b)), p.w[len(arr) - 1] % 5));" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("-39 39 10 347");
+		parseAndVerify();
+	}
+
 	@Test
 	public void testElseIf() {
 		init("program Test {" + LF + // 1
@@ -613,6 +637,33 @@ public class CodeGenerationTest extends CompilerTestCaseSupport {
 		parseAndVerify();
 	}
 
+	@Test
+	public void longJumps() {
+		// the loop is longer than a byte offset reaches in both directions;
+		// the operands are negative, wider than a byte and above the short forms
+		init("program Ops" + LF + //
+				"  int g0, g1, g2, g3, g4, g5;" + LF + //
+				"{" + LF + //
+				"  void main() int a, b, c, d, e, f, i; {" + LF + //
+				"    i = 0; f = 0; g5 = 0;" + LF + //
+				"    while (i < 300) {" + LF + //
+				"      a = i * 100000 - 7000000;" + LF + //
+				"      b = -a / 7 + a % 13;" + LF + //
+				"      c = b * 3 - a;" + LF + //
+				"      d = c % 1000 + b % 100 - 100000;" + LF + //
+				"      e = d + c + b + a;" + LF + //
+				"      g0 = a % 1000; g1 = b % 1000; g2 = c % 1000; g3 = d % 1000; g4 = e % 1000;" + LF + //
+				"      g5 = g5 + g0 + g1 + g2 + g3 + g4;" + LF + //
+				"      if (i % 7 == 0) f = f - 300; else f = f + i;" + LF + //
+				"      i++;" + LF + //
+				"    }" + LF + //
+				"    print(g5); print(' '); print(f); print(' '); print(d);" + LF + //
+				"  }" + LF + //
+				"}");
+		addExpectedRun("-386392 25629 -100288");
+		parseAndVerify();
+	}
+
 	@Test
 	public void lenTest() {
 		init("program A" + LF + //
@@ -160,12 +160,36 @@ public abstract class CompilerTestCaseSupport {
 
 		for (int i = 0; i < runInputs.size(); i++) {
 			Interpreter.BufferIO io = new Interpreter.BufferIO(runInputs.get(i));
-			Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io,
-					Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT);
+			Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+					parser.code.refMaps(), io, Configuration.PRINT_INTERPRETER_DEBUG_OUTPUT);
 			inter.run();
 			String output = io.getOutput();
 			Assert.assertEquals("Unexpected result when input is \"" + runInputs.get(i) + "\": ",
 					expectedOutputs.get(i), output);
+
+			// the same run with the code compiled to JVM bytecode
+			io = new Interpreter.BufferIO(runInputs.get(i));
+			inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io, false);
+			Assert.assertEquals("Engine", Interpreter.Engine.JIT, inter.setEngine(Interpreter.Engine.JIT));
+			inter.run();
+			Assert.assertEquals("Unexpected JIT result when input is \"" + runInputs.get(i) + "\": ",
+					expectedOutputs.get(i), io.getOutput());
+
+			// and with the tiered engine, which compiles hot methods and loops
+			io = new Interpreter.BufferIO(runInputs.get(i));
+			inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io, false);
+			Assert.assertEquals("Engine", Interpreter.Engine.TIERED, inter.setEngine(Interpreter.Engine.TIERED));
+			inter.run();
+			Assert.assertEquals("Unexpected tiered result when input is \"" + runInputs.get(i) + "\": ",
+					expectedOutputs.get(i), io.getOutput());
+
+			// and with the stack code translated into register code
+			io = new Interpreter.BufferIO(runInputs.get(i));
+			inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io, false);
+			Assert.assertEquals("Engine", Interpreter.Engine.REGISTER, inter.setEngine(Interpreter.Engine.REGISTER));
+			inter.run();
+			Assert.assertEquals("Unexpected register engine result when input is \"" + runInputs.get(i) + "\": ",
+					expectedOutputs.get(i), io.getOutput());
 		}
 	}
 
@@ -3,6 +3,8 @@ package ssw.mj.test;
 import org.junit.Assert;
 import org.junit.Test;
 import ssw.mj.Errors.Message;
+import ssw.mj.codegen.Code.OpCode;
+import ssw.mj.codegen.Decoder;
 
 import static ssw.mj.Errors.Message.*;
 
@@ -678,6 +680,71 @@ public class SimpleCodeGenerationTest extends CompilerTestCaseSupport {
         parseAndVerify();
     }
 
+    @Test
+    public void testPrintNumbers() {
+        init("program A {" + LF + //
+                "  void main () int m; {" + LF + //
+                "    m = -2147483647 - 1;" + LF + //
+                "    print(m); print('|');" + LF + //
+                "    print(m, 5); print('|', 0);" + LF + //
+                "    print(12345, 2); print('|', 1);" + LF + //
+                "    print(-42, 5); print(0, 3);" + LF + //
+                "    print(2147483647, 12);" + LF + //
+                "  }" + LF + //
+                "}");
+        addExpectedRun("-2147483648|-2147483648|12345|  -42  0  2147483647");
+        parseAndVerify();
+    }
+
+    @Test
+    public void testPrintLongOutput() {
+        // more output than fits into the output buffer of the interpreter,
+        // which fills up in the middle of numbers and of padding
+        init("program A {" + LF + //
+                "  void main () int i; {" + LF + //
+                "    i = 0;" + LF + //
+                "    while (i < 2000) {" + LF + //
+                "      print(i * 7919 - 5000000, 13); print(';');" + LF + //
+                "      i++;" + LF + //
+                "    }" + LF + //
+                "  }" + LF + //
+                "}");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 2000; i++) {
+            expected.append(String.format("%13d;", i * 7919 - 5000000));
+        }
+        addExpectedRun(expected.toString());
+        parseAndVerify();
+    }
+
+    @Test
+    public void decodePrint() {
+        // every opcode is found by its code, also by the decoder
+        for (OpCode op : OpCode.values()) {
+            Assert.assertTrue(op.name(), OpCode.get(op.code()) == op);
+        }
+        Assert.assertNull(OpCode.get(0));
+        Assert.assertNull(OpCode.get(OpCode.values().length + 1));
+
+        init("program A {" + LF + //
+                "  void main () {" + LF + //
+                "    print('a');" + LF + //
+                "    print('b',1);" + LF + //
+                "  }" + LF + //
+                "}");
+        addExpectedRun("ab");
+        parseAndVerify();
+        Assert.assertEquals("0: enter 0, 0" + LF + //
+                "3: const 97" + LF + //
+                "8: const_0" + LF + //
+                "9: bprint" + LF + //
+                "10: const 98" + LF + //
+                "15: const_1" + LF + //
+                "16: bprint" + LF + //
+                "17: exit" + LF + //
+                "18: return" + LF, new Decoder().decode(parser.code.buf, 0, parser.code.pc));
+    }
+
     @Test
     public void testDesignator() {
         init("program A" + LF + //
@@ -0,0 +1,983 @@
+package ssw.mj.test;
+
+import org.junit.Assert;
+import org.junit.Test;
+import ssw.mj.ChannelIO;
+import ssw.mj.ExecutionService;
+import ssw.mj.Interpreter;
+import ssw.mj.InterpreterMXBean;
+import ssw.mj.ProgramImage;
+import ssw.mj.RecordingIO;
+import ssw.mj.ReplayIO;
+import ssw.mj.Run;
+import ssw.mj.Scheduler;
+import ssw.mj.TraceReader;
+import ssw.mj.codegen.Code.OpCode;
+
+import javax.management.JMException;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Test cases for the virtual machine: its engines, heap and limits, and the
+ * tools around it (monitoring, recording, profiling, tracing, coverage and
+ * running many programs at once).
+ */
+public class VirtualMachineTest extends CompilerTestCaseSupport {
+
+    /**
+     * Object file of the program compiled last.
+     */
+    private byte[] objectFile() throws IOException {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        parser.code.write(file);
+        return file.toByteArray();
+    }
+
+    /**
+     * The program compiled last, loaded with the given limits.
+     */
+    private ProgramImage image(Interpreter.Limits limits) throws IOException {
+        return ProgramImage.read(objectFile(), limits);
+    }
+
+    /**
+     * Jumps that lead into the middle of a fusable sequence: the jump of the
+     * if leads to the jmp after k++, so inc and jmp are not fused there.
+     * Runs with superinstructions give the same output as runs without them,
+     * i.e. the debug run, which interprets the traced stream, and the
+     * engines.
+     */
+    @Test
+    public void jumpIntoFusableSequence() {
+        init("program Fused {\n" +
+                "  void main() int i, n, k, s; {\n" +
+                "    read(n); i = 0; k = 0; s = 0;\n" +
+                "    while (i < n) {\n" +
+                "      s = s + i; i++;\n" +
+                "      if (i % 3 == 0) k++;\n" +
+                "    }\n" +
+                "    print(k); print(' '); print(s);\n" +
+                "  }\n" +
+                "}");
+        addExpectedRun("20", "6 190");
+        parseAndVerify();
+
+        Interpreter.BufferIO io = new Interpreter.BufferIO("20");
+        String debug = console(args -> new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+                io, true).run());
+        Assert.assertEquals("6 190", io.getOutput());
+        Assert.assertFalse("no debug output", debug.isEmpty());
+    }
+
+    /**
+     * The loader rejects code that could fail at run time in a way the
+     * interpreter does not check for, and names the first offending
+     * instruction.
+     */
+    @Test
+    public void verifier() throws IOException {
+        int enter = OpCode.enter.code(), exit = OpCode.exit.code(), ret = OpCode.return_.code();
+        int const1 = OpCode.const_1.code(), pop = OpCode.pop.code();
+        Interpreter.Limits limits = Interpreter.Limits.DEFAULT;
+
+        Assert.assertEquals("invalid jump target 103 at 3",
+                rejected(0, limits, enter, 0, 0, OpCode.jmp.code(), 0, 100, exit, ret));
+        Assert.assertEquals("expression stack underflow at 3",
+                rejected(0, limits, enter, 0, 0, pop, exit, ret));
+        Assert.assertEquals("exit not followed by return at 3",
+                rejected(0, limits, enter, 0, 0, exit, OpCode.trap.code(), 1));
+        Assert.assertEquals("return without exit at 3",
+                rejected(0, limits, enter, 0, 0, ret));
+        // the jump skips the second const_1
+        Assert.assertEquals("inconsistent stack depth at 9 (from 8)",
+                rejected(0, limits, enter, 0, 0, const1, const1, OpCode.jeq.code(), 0, 4, const1, exit, ret));
+        // main and the method it calls need 2 words each, together 4
+        Assert.assertEquals("calls from main need 4 expression stack words, only 3 available",
+                rejected(0, new Interpreter.Limits(1000, 1000, 3),
+                        enter, 0, 0, const1, const1, OpCode.call.code(), 0, 7, pop, pop, exit, ret,
+                        enter, 0, 0, const1, const1, pop, pop, exit, ret));
+
+        Assert.assertEquals("local variable 1 outside the frame at 3",
+                rejected(0, limits, enter, 0, 1, OpCode.load.code(), 1, pop, exit, ret));
+        Assert.assertEquals("local variable 2 outside the frame at 4",
+                rejected(0, limits, enter, 0, 2, const1, OpCode.store_2.code(), exit, ret));
+        Assert.assertEquals("local variable -1 outside the frame at 3",
+                rejected(0, limits, enter, 0, 1, OpCode.inc.code(), -1, 1, exit, ret));
+        Assert.assertEquals("global variable 2 outside the data at 3",
+                rejected(2, limits, enter, 0, 0, OpCode.getstatic.code(), 0, 2, pop, exit, ret));
+        Assert.assertEquals("global variable -1 outside the data at 4",
+                rejected(2, limits, enter, 0, 0, const1, OpCode.putstatic.code(), -1, -1, exit, ret));
+
+        ProgramImage.read(assemble(2, enter, 0, 1, OpCode.getstatic.code(), 0, 1, OpCode.store_0.code(),
+                exit, ret), limits); // the last local and global are fine
+    }
+
+    /**
+     * The message with which the loader rejects code with main at 0.
+     */
+    private static String rejected(int dataSize, Interpreter.Limits limits, int... code) {
+        try {
+            ProgramImage.read(assemble(dataSize, code), limits);
+        } catch (IOException e) {
+            return e.getMessage();
+        }
+        Assert.fail("code accepted");
+        return null;
+    }
+
+    /**
+     * Object file with the given code, main at 0.
+     */
+    private static byte[] assemble(int dataSize, int... code) {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(file)) {
+            out.writeByte('M');
+            out.writeByte('J');
+            out.writeInt(code.length);
+            out.writeInt(dataSize);
+            out.writeInt(0); // startPC
+            for (int b : code) {
+                out.writeByte(b);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return file.toByteArray();
+    }
+
+    /**
+     * Allocates several times the size of the heap, which only works if
+     * garbage is collected, as in the interpreter and the register machine.
+     * A reference is on the expression stack during some of the allocations
+     * (l.next = ...) and in the frames of callers. The JIT and tiered engines
+     * only bump allocate and need a heap for all the garbage.
+     */
+    @Test
+    public void garbageCollection() {
+        init("program Churn\n" +
+                "  class Node { int val; Node next; }\n" +
+                "  Node keep;\n" +
+                "{\n" +
+                "  Node push(int v, Node next) Node n; { n = new Node; n.val = v; n.next = next; return n; }\n" +
+                "  int sum(Node n) int s; { s = 0; while (n != null) { s = s + n.val; n = n.next; } return s; }\n" +
+                "  void main() int i, j, s; Node l; char[] name; {\n" +
+                "    i = 0; s = 0;\n" +
+                "    while (i < 20000) {\n" +
+                "      l = null; j = 0;\n" +
+                "      while (j < 10) { l = push(j, l); j++; }\n" +
+                "      l.next = push(100, l.next);\n" +
+                "      name = new char[i % 9];\n" +
+                "      s = s + sum(l) + len(name);\n" +
+                "      if (i % 5000 == 0) { keep = push(i, keep); }\n" +
+                "      i++;\n" +
+                "    }\n" +
+                "    print(s); print(' '); print(sum(keep));\n" +
+                "  }\n" +
+                "}");
+        parseAndVerify();
+
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            boolean collects = engine == Interpreter.Engine.INTERPRETER || engine == Interpreter.Engine.REGISTER;
+            Interpreter.BufferIO io = new Interpreter.BufferIO("");
+            Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+                    parser.code.refMaps(), io, false);
+            Assert.assertTrue(engine.name(), inter.setEngine(engine) == engine);
+            if (collects) {
+                inter.run();
+                Assert.assertEquals(engine.name(), "2979993 30000", io.getOutput());
+            } else {
+                try {
+                    inter.run();
+                    Assert.fail(engine.name() + ": heap overflow expected");
+                } catch (IllegalStateException e) {
+                    Assert.assertEquals(engine.name(), "heap overflow", e.getMessage());
+                }
+                io = new Interpreter.BufferIO("");
+                inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+                        parser.code.refMaps(), new Interpreter.Limits(1000000, 4000, 30), io, false);
+                Assert.assertTrue(engine.name(), inter.setEngine(engine) == engine);
+                inter.run();
+                Assert.assertEquals(engine.name(), "2979993 30000", io.getOutput());
+            }
+        }
+    }
+
+    /**
+     * Heap and stacks grow up to the limits given to the interpreter, in
+     * every engine. With the default limits the array does not fit.
+     */
+    @Test
+    public void growingLimits() {
+        init("program Deep {\n" +
+                "  int sum(int n) { if (n == 0) return 0; return n + sum(n - 1); }\n" +
+                "  void main() int[] a; {\n" +
+                "    a = new int[200000]; a[199999] = 7;\n" +
+                "    print(sum(2000) + a[199999]);\n" +
+                "  }\n" +
+                "}");
+        parseAndVerify();
+
+        Interpreter.Limits limits = new Interpreter.Limits(250000, 10000, 3000);
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            Interpreter.BufferIO io = new Interpreter.BufferIO("");
+            Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+                    parser.code.refMaps(), limits, io, false);
+            inter.setEngine(engine);
+            inter.run();
+            Assert.assertEquals(engine.name(), "2001007", io.getOutput());
+        }
+
+        try {
+            new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+                    new Interpreter.BufferIO(""), false).run();
+            Assert.fail("heap overflow expected");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("heap overflow", e.getMessage());
+        }
+    }
+
+    /**
+     * Recursion deeper than the JVM stack allows for compiled code gives the
+     * same result in every engine, with limits that admit it and with limits
+     * that do not.
+     */
+    @Test
+    public void deepRecursion() {
+        init("program Deep {\n" +
+                "  int depth(int n) { if (n == 0) return 0; return depth(n - 1) + 1; }\n" +
+                "  void main() int n; { read(n); print(depth(n)); }\n" +
+                "}");
+        parseAndVerify();
+
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            Interpreter.BufferIO io = new Interpreter.BufferIO("400000");
+            Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+                    parser.code.refMaps(), new Interpreter.Limits(100000, 5000000, 30), io, false);
+            inter.setEngine(engine);
+            inter.run();
+            Assert.assertEquals(engine.name(), "400000", io.getOutput());
+
+            inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+                    parser.code.refMaps(), new Interpreter.Limits(100000, 500000, 30),
+                    new Interpreter.BufferIO("400000"), false);
+            inter.setEngine(engine);
+            try {
+                inter.run();
+                Assert.fail(engine.name() + ": method stack overflow expected");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals(engine.name(), "method stack overflow", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Char arrays in a heap in native memory, which grows and is garbage
+     * collected like the heap in an int array. The JIT and tiered engines
+     * only bump allocate and get a larger heap.
+     */
+    @Test
+    public void offHeap() {
+        init("program Chars\n" +
+                "  class Word { char[] cs; Word next; }\n" +
+                "  Word list;\n" +
+                "{\n" +
+                "  Word word(int n, Word next) Word w; int i; {\n" +
+                "    w = new Word; w.cs = new char[n]; w.next = next;\n" +
+                "    i = 0; while (i < n) { w.cs[i] = chr(ord('a') + (n + i) % 26); i++; }\n" +
+                "    return w;\n" +
+                "  }\n" +
+                "  void main() int i, j, s; Word w; {\n" +
+                "    i = 0; s = 0;\n" +
+                "    while (i < 3000) {\n" +
+                "      w = word(i % 37 + 1, null);\n" +
+                "      if (i % 100 == 0) { list = word(i % 11 + 1, list); }\n" +
+                "      j = 0; while (j < len(w.cs)) { s = s + ord(w.cs[j]); j++; }\n" +
+                "      i++;\n" +
+                "    }\n" +
+                "    w = list;\n" +
+                "    while (w != null) { print(w.cs[len(w.cs) - 1]); w = w.next; }\n" +
+                "    print(' '); print(s);\n" +
+                "  }\n" +
+                "}");
+        parseAndVerify();
+
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            boolean collects = engine == Interpreter.Engine.INTERPRETER || engine == Interpreter.Engine.REGISTER;
+            Interpreter.BufferIO io = new Interpreter.BufferIO("");
+            Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+                    parser.code.refMaps(), new Interpreter.Limits(collects ? 2000 : 100000, 1000, 30), io, false);
+            inter.setOffHeap(true);
+            Assert.assertTrue(engine.name(), inter.setEngine(engine) == engine);
+            inter.run();
+            Assert.assertEquals(engine.name(), "pnljhfdbvtrpnljhfdbvtrpnljhfdb 6228366", io.getOutput());
+            try {
+                inter.setOffHeap(false);
+                Assert.fail(engine.name() + ": heap in use switched");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("heap storage cannot change while the heap is in use", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A monitored interpreter is visible to JMX clients while it runs. The
+     * program is looked at while it waits for input. The register engine
+     * counts calls but no loops.
+     */
+    @Test
+    public void monitor() throws JMException {
+        init("program Monitored {\n" +
+                "  int depth(int n) { if (n == 0) return 0; return 1 + depth(n - 1); }\n" +
+                "  void main() int i, s; char c; {\n" +
+                "    i = 0; s = 0;\n" +
+                "    while (i < 5000) { s = s + depth(3); i++; }\n" +
+                "    read(c); print(s);\n" +
+                "  }\n" +
+                "}");
+        parseAndVerify();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pattern = new ObjectName("ssw.mj:type=Interpreter,*");
+        for (Interpreter.Engine engine : new Interpreter.Engine[]{Interpreter.Engine.INTERPRETER,
+                Interpreter.Engine.REGISTER}) {
+            InterpreterMXBean[] seen = new InterpreterMXBean[1];
+            long[] values = new long[6];
+            Interpreter.BufferIO io = new Interpreter.BufferIO("x") {
+                @Override
+                public char read() {
+                    Set<ObjectName> names = server.queryNames(pattern, null);
+                    Assert.assertEquals(1, names.size());
+                    InterpreterMXBean bean = JMX.newMXBeanProxy(server, names.iterator().next(),
+                            InterpreterMXBean.class);
+                    seen[0] = bean;
+                    values[0] = bean.getCalls();
+                    values[1] = bean.getBackwardJumps();
+                    values[2] = bean.getMethodStackHighWater();
+                    values[3] = bean.getExprStackHighWater();
+                    values[4] = bean.getHeapFree();
+                    values[5] = bean.getInstructions();
+                    Assert.assertEquals(engine.name().toLowerCase(), bean.getEngine());
+                    return super.read();
+                }
+            };
+            Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io,
+                    false);
+            inter.setMonitored(true);
+            Assert.assertTrue(inter.setEngine(engine) == engine);
+            inter.run();
+            Assert.assertEquals("15000", io.getOutput());
+            Assert.assertNotNull("bean not found while running", seen[0]);
+            Assert.assertTrue("calls " + values[0], values[0] > 10000 && values[0] <= 20000);
+            Assert.assertEquals(16, values[2]);
+            Assert.assertEquals(7, values[3]);
+            Assert.assertEquals(1, values[4]);
+            if (engine == Interpreter.Engine.INTERPRETER) {
+                Assert.assertTrue("backward jumps " + values[1], values[1] > 0 && values[1] <= 5000);
+                // 5000 loop iterations and 20000 calls of about 10 instructions each
+                Assert.assertTrue("instructions " + values[5], values[5] > 100000 && values[5] < 1000000);
+            } else {
+                Assert.assertEquals(0, values[1]);
+                Assert.assertEquals(0, values[5]);
+            }
+            Assert.assertTrue("unregistered after the run", server.queryNames(pattern, null).isEmpty());
+        }
+    }
+
+    /**
+     * A Flight Recorder recording of the host JVM has an event for every
+     * allocation, for the output and for the trap that stops the program.
+     * Allocations are named after the method of a loaded image; compiled
+     * code has no code addresses.
+     */
+    @Test
+    public void flightRecorderEvents() throws IOException {
+        init("program Events\n" +
+                "  class Node { int val; Node next; }\n" +
+                "{\n" +
+                "  void main() Node n; int[] a; {\n" +
+                "    n = new Node; a = new int[5]; print('o'); print('k');\n" +
+                "    n = n.next; n.val = 1;\n" +
+                "  }\n" +
+                "}");
+        parseAndVerify();
+        ProgramImage image = image(new Interpreter.Limits(3000, 1000, 30));
+
+        Path file = Files.createTempFile("events", ".jfr");
+        try {
+            for (Interpreter.Engine engine : new Interpreter.Engine[]{Interpreter.Engine.INTERPRETER,
+                    Interpreter.Engine.JIT}) {
+                Interpreter.BufferIO io = new Interpreter.BufferIO("");
+                Interpreter inter;
+                if (engine == Interpreter.Engine.JIT) { // without reference maps, so that nothing is collected
+                    inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io, false);
+                    Assert.assertEquals(engine, inter.setEngine(engine));
+                } else {
+                    inter = new Interpreter(image, io, false);
+                }
+                try (Recording recording = new Recording()) {
+                    recording.enable("ssw.mj.Allocation");
+                    recording.enable("ssw.mj.RuntimeError");
+                    recording.enable("ssw.mj.IoBurst");
+                    recording.start();
+                    try {
+                        inter.run();
+                        Assert.fail("null reference expected");
+                    } catch (IllegalStateException e) {
+                        Assert.assertEquals("null reference used", e.getMessage());
+                    }
+                    recording.stop();
+                    recording.dump(file);
+                }
+                Assert.assertEquals("ok", io.getOutput());
+
+                List<String> events = new ArrayList<>();
+                for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+                    switch (e.getEventType().getName()) {
+                        case "ssw.mj.Allocation":
+                            events.add("allocation " + e.getString("method") + " " + (e.getInt("pc") >= 0) + " "
+                                    + e.getLong("size"));
+                            break;
+                        case "ssw.mj.RuntimeError":
+                            events.add("error " + e.getString("message") + " " + e.getString("engine"));
+                            break;
+                        case "ssw.mj.IoBurst":
+                            events.add("burst " + e.getBoolean("input") + " " + e.getLong("chars"));
+                            break;
+                        default:
+                            break;
+                    }
+                }
+                Assert.assertEquals(engine == Interpreter.Engine.JIT
+                        ? List.of("allocation null false 8", "allocation null false 24",
+                        "error null reference used jit", "burst false 2")
+                        : List.of("allocation main true 8", "allocation main true 24",
+                        "error null reference used interpreter", "burst false 2"), events);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Input read in blocks from a channel, with numbers that span the
+     * blocks, in every engine.
+     */
+    @Test
+    public void channelInput() {
+        init("program Sum {\n" +
+                "  void main() int n, i, x, s; char c; {\n" +
+                "    read(n); i = 0; s = 0;\n" +
+                "    while (i < n) { read(x); s = s + x; i++; }\n" +
+                "    read(c); print(c); read(c); print(c); print(s);\n" +
+                "  }\n" +
+                "}");
+        parseAndVerify();
+
+        int n = 40000, sum = 0;
+        StringBuilder input = new StringBuilder().append(n).append('\n');
+        for (int i = 0; i < n; i++) {
+            int x = i % 3 == 0 ? -i * 7 : i * 13;
+            sum += x;
+            input.append(x).append(i % 10 == 9 ? "\n" : "  ");
+        }
+        input.append("ab");
+        byte[] bytes = input.toString().getBytes(StandardCharsets.US_ASCII);
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            StringBuilder output = new StringBuilder();
+            ChannelIO io = new ChannelIO(Channels.newChannel(new ByteArrayInputStream(bytes))) {
+                @Override
+                public void write(char c) {
+                    output.append(c);
+                }
+
+                @Override
+                public void write(char[] buf, int off, int len) {
+                    output.append(buf, off, len);
+                }
+            };
+            Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, io, false);
+            inter.setEngine(engine);
+            inter.run();
+            Assert.assertEquals(engine.name(), "ab" + sum, output.toString());
+        }
+    }
+
+    /**
+     * A recorded run replays in every engine without real I/O. A program
+     * that prints something else does not match the recording.
+     */
+    @Test
+    public void recordAndReplay() throws IOException {
+        String program = "program Echo {\n" +
+                "  void main() int n, i; char c; {\n" +
+                "    read(n); i = 0;\n" +
+                "    while (i < n) { read(c); print(c); print(i * %d, 4); i++; }\n" +
+                "  }\n" +
+                "}";
+        init(String.format(program, 100));
+        parseAndVerify();
+
+        Path file = Files.createTempFile("echo", ".mjr");
+        try {
+            Interpreter.BufferIO io = new Interpreter.BufferIO("3 abc");
+            try (RecordingIO recording = new RecordingIO(io, file)) {
+                new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, recording, false).run();
+            }
+            Assert.assertEquals("a   0b 100c 200", io.getOutput());
+
+            for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+                try (ReplayIO replay = new ReplayIO(file)) {
+                    Interpreter inter = new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize,
+                            replay, false);
+                    inter.setEngine(engine);
+                    inter.run();
+                    replay.finish();
+                    Assert.assertEquals(engine.name(), 15, replay.written());
+                }
+            }
+
+            init(String.format(program, 10));
+            parseAndVerify();
+            try (ReplayIO replay = new ReplayIO(file)) {
+                new Interpreter(parser.code.buf, parser.code.mainpc, parser.code.dataSize, replay, false).run();
+                Assert.fail("mismatch expected");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("replay: output differs from the recording after 7 chars of output",
+                        e.getMessage());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * The profile of a run from the command line counts the calls of every
+     * method.
+     */
+    @Test
+    public void profile() throws IOException {
+        Path dir = Files.createTempDirectory("calls");
+        try {
+            Path obj = writeCalls(dir);
+            String report = console(Run::main, obj.toString(), "-profile");
+            Assert.assertTrue(report, report.contains("-- 105 instructions executed, 12 bytes allocated\n"));
+            int found = 0;
+            for (String line : report.split("\n")) {
+                String[] cols = line.trim().split(" +"); // self % total % calls bytes method
+                if (cols.length == 7 && (cols[6].equals("main") || cols[6].equals("sq"))) {
+                    Assert.assertEquals(line, cols[6].equals("main") ? "1" : "5", cols[4]);
+                    found++;
+                }
+            }
+            Assert.assertEquals(report, 2, found);
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * The allocation sites of a run from the command line, with the bytes
+     * still live after the last collection, and the sites of a run that
+     * stops with a heap overflow.
+     */
+    @Test
+    public void allocationSites() throws IOException {
+        init("program Alloc\n" +
+                "  class Node { int val; Node next; }\n" +
+                "  Node keep;\n" +
+                "{\n" +
+                "  void main() int i; Node n; char[] s; {\n" +
+                "    i = 0;\n" +
+                "    while (i < 1000) {\n" +
+                "      n = new Node;\n" +
+                "      s = new char[10];\n" +
+                "      if (i % 100 == 0) { n.next = keep; keep = n; }\n" +
+                "      i++;\n" +
+                "    }\n" +
+                "    print(i);\n" +
+                "  }\n" +
+                "}");
+        parseAndVerify();
+        Path dir = Files.createTempDirectory("alloc");
+        try {
+            Path obj = dir.resolve("Alloc.obj");
+            Files.write(obj, objectFile());
+            String report = console(Run::main, obj.toString(), "-allocs");
+            Assert.assertTrue(report, report.contains("-- 2000 heap blocks with 24000 bytes allocated\n"));
+            Map<String, String> sites = allocationSites(report);
+            Assert.assertEquals(report, "80 8000 1000", sites.get("14 new in main+14, line 8"));
+            Assert.assertEquals(report, "16 16000 1000", sites.get("23 newarray in main+23, line 9"));
+            Assert.assertEquals(report, 2, sites.size());
+
+            report = console(args -> {
+                try {
+                    Run.main(args);
+                } catch (IllegalStateException e) {
+                    System.out.println("-- " + e.getMessage());
+                }
+            }, obj.toString(), "-allocs", "-heap", "30");
+            Assert.assertTrue(report, report.endsWith("-- heap overflow\n"));
+            sites = allocationSites(report);
+            Assert.assertTrue(report, sites.containsKey("14 new in main+14, line 8"));
+            Assert.assertTrue(report, sites.containsKey("23 newarray in main+23, line 9"));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Live bytes, allocated bytes and blocks per site in the allocation
+     * report.
+     */
+    private static Map<String, String> allocationSites(String report) {
+        Map<String, String> sites = new HashMap<>();
+        Pattern row = Pattern.compile(" *([0-9]+) +\\S+ +([0-9]+) +\\S+ +([0-9]+)  (.*)");
+        for (String line : report.split("\n")) {
+            Matcher m = row.matcher(line);
+            if (m.matches()) {
+                sites.put(m.group(4), m.group(1) + " " + m.group(2) + " " + m.group(3));
+            }
+        }
+        return sites;
+    }
+
+    /**
+     * The samples of a run from the command line are collapsed stacks from
+     * main to the sampled method, which add up to the samples taken.
+     */
+    @Test
+    public void sample() throws IOException {
+        init("program Hot {\n" +
+                "  int inner(int n) int s; { s = 0; while (n > 0) { s = s + n % 7; n--; } return s; }\n" +
+                "  int outer(int n) { if (n == 0) return 0; return inner(1000) + outer(n - 1); }\n" +
+                "  void main() int i, s; { i = 0; s = 0; while (i < 300) { s = s + outer(10); i++; } print(s); }\n" +
+                "}");
+        parseAndVerify();
+        Path dir = Files.createTempDirectory("hot");
+        try {
+            Path obj = dir.resolve("Hot.obj");
+            Files.write(obj, objectFile());
+            Path stacks = dir.resolve("Hot.txt");
+            String run = console(Run::main, obj.toString(), "-sample", stacks.toString());
+            Assert.assertTrue(run, run.startsWith("9009000\n"));
+            long samples = 0;
+            for (String line : Files.readAllLines(stacks)) {
+                Assert.assertTrue(line, line.matches("main((;outer){1,10}(;inner)?)? [0-9]+"));
+                samples += Long.parseLong(line.substring(line.indexOf(' ') + 1));
+            }
+            Assert.assertTrue(run, samples > 0);
+            Assert.assertTrue(run, run.contains("-- " + samples + " samples written to " + stacks));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * The pairs and triples mined from a run from the command line are
+     * counted on the instructions without superinstructions.
+     */
+    @Test
+    public void minePairs() throws IOException {
+        Path dir = Files.createTempDirectory("calls");
+        try {
+            Path obj = writeCalls(dir);
+            String report = console(Run::main, obj.toString(), "-mine-pairs");
+            Assert.assertTrue(report, report.contains("-- 105 instructions executed\n"));
+            Map<String, String> counts = new HashMap<>();
+            for (String line : report.split("\n")) {
+                String[] cols = line.split("%  "); // count and percentage, handlers
+                if (cols.length == 2) {
+                    counts.put(cols[1], cols[0].trim().split(" +")[0]);
+                }
+            }
+            Assert.assertEquals(report, "5", counts.get("inc jmp"));
+            Assert.assertEquals(report, "7", counts.get("const jge"));
+            Assert.assertEquals(report, "5", counts.get("store inc jmp"));
+            Assert.assertEquals(report, "7", counts.get("load const jge"));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Only a debug run prints the instructions with the expression stack
+     * after them.
+     */
+    @Test
+    public void debugTrace() throws IOException {
+        Path dir = Files.createTempDirectory("calls");
+        try {
+            Path obj = writeCalls(dir);
+            String debug = console(Run::main, obj.toString(), "-debug");
+            Assert.assertTrue(debug, debug.contains("   23: load_0 \n" +
+                    "     | 0 0 \n" +
+                    "   24: call -24 \n" +
+                    "     | 0 0 \n" +
+                    "    0: enter 1 1 \n" +
+                    "     | 0 \n"));
+            String run = console(Run::main, obj.toString());
+            Assert.assertTrue(run, run.startsWith("30\nCompletion took "));
+            Assert.assertFalse(run, run.contains("call"));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * A trace written by a run from the command line reads back with the
+     * instructions executed, filtered by opcode with the top of the stack,
+     * and with the heap writes.
+     */
+    @Test
+    public void trace() throws IOException {
+        Path dir = Files.createTempDirectory("calls");
+        try {
+            Path obj = writeCalls(dir);
+            String trace = dir.resolve("Calls.trc").toString();
+            String run = console(Run::main, obj.toString(), "-trace", trace, "-trace-heap");
+            Assert.assertTrue(run, run.contains("-- 106 trace records written to " + trace));
+
+            String summary = console(TraceReader::main, trace, "-summary");
+            Assert.assertTrue(summary, summary.startsWith("-- 105 instructions, 1 heap writes\n"));
+            Assert.assertEquals("   24: call         | 0\n" +
+                    "   24: call         | 1\n" +
+                    "   24: call         | 2\n" +
+                    "   24: call         | 3\n" +
+                    "   24: call         | 4\n", console(TraceReader::main, trace, "-op", "call"));
+            Assert.assertEquals("       heap[3] = 30\n", console(TraceReader::main, trace, "-writes"));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    /**
+     * The coverage report of a run from the command line marks the lines of
+     * the source. The trap behind the return of sq and the then part of the
+     * if are never executed.
+     */
+    @Test
+    public void coverage() throws IOException {
+        Path dir = Files.createTempDirectory("calls");
+        try {
+            Path obj = writeCalls(dir);
+            Path report = dir.resolve("Calls.cov");
+            console(Run::main, obj.toString(), "-coverage", report.toString());
+            List<String> expected = List.of(
+                    "-- coverage: 9 of 11 lines, 7 of 9 blocks, 1 of 2 branches",
+                    "    1   | program Calls {",
+                    "    2 + |   int sq(int x) {",
+                    "    3 + |     return x * x;",
+                    "    4 - |   }",
+                    "    5 + |   void main() int i, s; int[] a; {",
+                    "    6 + |     i = 0; s = 0;",
+                    "    7 + |     while (i < 5) {",
+                    "    8 + |       s = s + sq(i); i++;",
+                    "    9   |     }",
+                    "   10 ~ |     if (s < 0) print(0);",
+                    "   11 + |     a = new int[2]; a[1] = s;",
+                    "   12 + |     print(a[1]);",
+                    "   13 + |   }",
+                    "   14   | }",
+                    "-- branches not covered both ways:",
+                    "  line 10, pc 37: never falls through");
+            Assert.assertEquals(expected, Files.readAllLines(report));
+        } finally {
+            delete(dir);
+        }
+    }
+
+    final String callsSource = "program Calls {\n" +
+            "  int sq(int x) {\n" +
+            "    return x * x;\n" +
+            "  }\n" +
+            "  void main() int i, s; int[] a; {\n" +
+            "    i = 0; s = 0;\n" +
+            "    while (i < 5) {\n" +
+            "      s = s + sq(i); i++;\n" +
+            "    }\n" +
+            "    if (s < 0) print(0);\n" +
+            "    a = new int[2]; a[1] = s;\n" +
+            "    print(a[1]);\n" +
+            "  }\n" +
+            "}";
+
+    /**
+     * Compile callsSource into Calls.obj in dir, with the source next to it
+     * in Calls.mj as the reports expect it. Returns the object file.
+     */
+    private Path writeCalls(Path dir) throws IOException {
+        init(callsSource);
+        addExpectedRun("30");
+        parseAndVerify();
+        Path obj = dir.resolve("Calls.obj");
+        Files.write(obj, objectFile());
+        Files.write(dir.resolve("Calls.mj"), callsSource.getBytes(StandardCharsets.US_ASCII));
+        return obj;
+    }
+
+    /**
+     * What main prints to System.out when it is called with args.
+     */
+    private static String console(Consumer<String[]> main, String... args) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(buf, true));
+        try {
+            main.accept(args);
+        } finally {
+            System.setOut(out);
+        }
+        return buf.toString().replace("\r\n", "\n");
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator) {
+                Files.delete(f);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Many runs of a program at once in an execution service, which loads
+     * the program once and reuses its interpreters. A reused interpreter
+     * starts with empty globals and an empty heap. An interpreter whose run
+     * trapped is dropped, and the runs after it are not affected.
+     */
+    @Test
+    public void executionService() throws Exception {
+        init("program Jobs\n" +
+                "  class Node { int val; Node next; }\n" +
+                "  int total; Node list;\n" +
+                "{\n" +
+                "  void main() int n, i; Node p; {\n" +
+                "    read(n); i = 0;\n" +
+                "    while (i < n) { p = new Node; p.val = i; p.next = list; list = p; total = total + i; i++; }\n" +
+                "    i = 0; p = list; while (p != null) { i = i + p.val; p = p.next; }\n" +
+                "    print(total); print(' '); print(i);\n" +
+                "  }\n" +
+                "}");
+        parseAndVerify();
+        byte[] obj = objectFile();
+
+        Interpreter.Limits limits = new Interpreter.Limits(3000, 1000, 30);
+        for (Interpreter.Engine engine : Interpreter.Engine.values()) {
+            try (ExecutionService service = new ExecutionService(3, engine, limits, 4)) {
+                Assert.assertTrue("image loaded again", service.load(obj) == service.load(obj.clone()));
+                List<Future<String>> runs = new ArrayList<>();
+                for (int k = 0; k < 60; k++) {
+                    runs.add(service.submit(obj, String.valueOf(k == 30 ? 5000 : 10 * k)));
+                }
+                for (int k = 0; k < 60; k++) {
+                    if (k == 30) {
+                        try {
+                            runs.get(k).get();
+                            Assert.fail("heap overflow expected");
+                        } catch (ExecutionException e) {
+                            Assert.assertEquals("heap overflow", e.getCause().getMessage());
+                        }
+                    } else {
+                        int sum = 10 * k * (10 * k - 1) / 2;
+                        Assert.assertEquals(engine.name(), sum + " " + sum, runs.get(k).get());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Programs run in slices take turns on one carrier thread, also with a
+     * program that never ends, and wait for input without holding it.
+     */
+    @Test
+    public void scheduler() throws Exception {
+        init("program Echo\n" +
+                "{\n" +
+                "  void main() int n, i; {\n" +
+                "    read(n);\n" +
+                "    while (n != 0) {\n" +
+                "      i = 0; while (i < 1000) i++;\n" +
+                "      while (n < 0) i++;\n" +
+                "      print(2 * n); print(' ');\n" +
+                "      read(n);\n" +
+                "    }\n" +
+                "  }\n" +
+                "}");
+        parseAndVerify();
+        ProgramImage image = image(new Interpreter.Limits(3000, 1000, 30));
+
+        Interpreter vm = new Interpreter(image, new Interpreter.BufferIO("3 4 0"), false);
+        int slices = 1;
+        while (vm.run(100) == Interpreter.State.SUSPENDED) {
+            slices++;
+        }
+        Assert.assertTrue("slices: " + slices, slices > 10);
+        try {
+            vm.run(100);
+            Assert.fail("finished program resumed");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("program has finished", e.getMessage());
+        }
+        vm = new Interpreter(image, new Interpreter.BufferIO("3 4 0"), false);
+        Assert.assertEquals(Interpreter.State.SUSPENDED, vm.run(100));
+        try {
+            vm.run();
+            Assert.fail("suspended program run to the end");
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("program runs in slices", e.getMessage());
+        }
+
+        try (Scheduler scheduler = new Scheduler(1, 500)) {
+            Scheduler.Task spinning = scheduler.start(image);
+            spinning.feed("-1 ");
+            List<Scheduler.Task> tasks = new ArrayList<>();
+            for (int k = 0; k < 200; k++) {
+                tasks.add(scheduler.start(image));
+            }
+            for (int k = 0; k < 200; k++) {
+                tasks.get(k).feed(String.valueOf(k + 1)); // not complete before the next char
+            }
+            for (int k = 0; k < 200; k++) {
+                tasks.get(k).feed("1 -");
+                tasks.get(k).feed("0");
+                if (k % 2 == 0) {
+                    tasks.get(k).feed("\n");
+                } else {
+                    tasks.get(k).closeInput();
+                }
+            }
+            for (int k = 0; k < 200; k++) {
+                tasks.get(k).done().get();
+                Assert.assertEquals(2 * (10 * (k + 1) + 1) + " ", tasks.get(k).takeOutput());
+            }
+            Assert.assertFalse(spinning.done().isDone());
+        }
+    }
+}